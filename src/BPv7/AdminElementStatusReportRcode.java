@@ -2,10 +2,11 @@ package BPv7;
 import BPv7.containers.StatusReport;
 import BPv7.containers.Timestamp;
 import BPv7.utils.BundleStatusReport;
+import BPv7.utils.JsonCodec;
 import BPv7.utils.StatusReportUtilObject;
 import Configs.ReasonCodeResponseActions;
 import Configs.SimulationParams;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import java.io.IOException;
 import java.text.ParseException;
@@ -17,6 +18,9 @@ public class AdminElementStatusReportRcode implements Runnable {
     /** Logger for this class. Prepends all logs from this class with the class name */
     private static final Logger logger = Logger.getLogger(AdminElementStatusReportRcode.class.getName());
 
+    /** Cached (thread safe) JSON reader for status reports */
+    private static final ObjectReader statusReportReader = JsonCodec.mapper().readerFor(StatusReport.class);
+
     /**
      * The only instance of this class allowed in the entire program
      * @implNote not making this volatile because its value only changes once
@@ -69,11 +73,9 @@ public class AdminElementStatusReportRcode implements Runnable {
                 //}
 
                 byte[] payload = BPA.readStatusReportBuffer.take();//blocks, putting thread to sleep (ideal behavior) (until something arrives)
-                ObjectMapper mapper = new ObjectMapper();
-
                 StatusReport replyStatusReport;
                 try {
-                    replyStatusReport = mapper.readValue(payload, StatusReport.class);
+                    replyStatusReport = statusReportReader.readValue(payload);
                 } catch (IOException e) {
                     logger.severe("ERROR! Unable to read a bundle from byte array: " + e.getMessage());
                     continue;
@@ -1,5 +1,6 @@
 package BPv7;
 
+import BPv7.containers.BundlePriority;
 import BPv7.containers.NodeID;
 import BPv7.containers.Timestamp;
 import BPv7.interfaces.ApplicationAgentInterface;
@@ -67,6 +68,18 @@ public class ApplicationAgent implements ApplicationAgentInterface {
         return BPA.getInstance().send(packetToSend, destNodeID);
     }
 
+    /**
+     * [blocking] Sends a message to the BPA to bundle with a priority class and send to the end destination
+     *
+     * @param packetToSend message to send
+     * @param priority priority class of the bundle
+     * @return packet ID or -1 if packetToSend is Null or BP layer is full
+     */
+    @Override
+    public Timestamp send(byte[] packetToSend, NodeID destNodeID, BundlePriority priority) {
+        return BPA.getInstance().send(packetToSend, destNodeID, priority);
+    }
+
     /**
      * Returns the next message from the stream.
      * todo:: Calls BPA::getPayload once and saves the entire payload in a buffer to return to user at some point
@@ -112,4 +125,16 @@ public class ApplicationAgent implements ApplicationAgentInterface {
     public Timestamp sendWithACK(byte[] payload, NodeID destNodeID) {
         return BPA.getInstance().sendWithACK(payload, destNodeID);
     }
+
+    /**
+     * create the bundle with a priority class and request an ACK from [the next hop, the final destination]
+     * @param payload message to send in payload block of the bundle
+     * @param destNodeID destination node id of the bundle
+     * @param priority priority class of the bundle
+     * @return key (timestamp) for the bundle
+     */
+    @Override
+    public Timestamp sendWithACK(byte[] payload, NodeID destNodeID, BundlePriority priority) {
+        return BPA.getInstance().sendWithACK(payload, destNodeID, priority);
+    }
 }
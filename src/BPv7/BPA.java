@@ -4,14 +4,14 @@ package BPv7;
 import BPv7.containers.*;
 import BPv7.interfaces.ApplicationAgentInterface.ReceivePackage;
 import BPv7.interfaces.BPAInterface;
-import BPv7.utils.BundleDispatchStatusMap;
 import BPv7.utils.DispatchStatus;
+import BPv7.utils.RingBuffer;
 import BPv7.utils.StatusReportUtilObject;
+import Configs.ConvergenceLayerParams;
+import Configs.SimulationParams;
+import DTCP.DTCP;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.logging.Logger;
 
 /**
@@ -38,30 +38,36 @@ class BPA implements BPAInterface {//package-private (not private/public)
     /**
      * Queue for creating status reports for bundles
      */
-    public static BlockingQueue<StatusReportUtilObject> sendStatusReportBuffer = new LinkedBlockingDeque<>();
+    public static BlockingQueue<StatusReportUtilObject> sendStatusReportBuffer = newRingBuffer();
     /**
-     * Queue of Bundles to be sent
+     * Bundles to be sent, one lane per next hop, higher priority first in each
      */
-    protected static BlockingQueue<Bundle> sendBuffer = new LinkedBlockingDeque<>();
+    protected static final OutboundLanes sendBuffer = new OutboundLanes(DTCP.getInstance(),
+            BPADispatcher::dropNoTimelyContact, BPADispatcher::dropExpired,
+            ConvergenceLayerParams.getInstance().dispatchWorkers,
+            ConvergenceLayerParams.getInstance().priorityStarvationLimit,
+            ConvergenceLayerParams.getInstance().outboundScheduling.equals(ConvergenceLayerParams.SCHEDULING_EDF),
+            ConvergenceLayerParams.getInstance().linkRate);
     /**
      * Queue of received bundles
      */
-    protected static BlockingQueue<Bundle> receiveBuffer = new LinkedBlockingDeque<>();
+    protected static BlockingQueue<Bundle> receiveBuffer = newRingBuffer();
     /**
      * Queue for reading status reports from bundles
      */
-    public static BlockingQueue<byte[]> readStatusReportBuffer = new LinkedBlockingDeque<>();
+    public static BlockingQueue<byte[]> readStatusReportBuffer = newRingBuffer();
     /**
-     * Threads for sending and receiving
+     * Threads for sending (one per dispatcher worker) and receiving
      */
     @SuppressWarnings("FieldCanBeLocal")
-    private final Thread sendingThread;
+    private final Thread[] sendingThreads;
     @SuppressWarnings("FieldCanBeLocal")
     private final Thread receivingThread;
     /**
-     * Map to maintain bundle dispatching status
+     * Dispatch status of the bundles sent (updated by the AA, the dispatchers and their senders concurrently)
      */
-    public static Map<Timestamp, BundleDispatchStatusMap> bundleStatusMap = new HashMap<>();
+    static final BundleStatusStore bundleStatuses = new BundleStatusStore(ConvergenceLayerParams.getInstance().maxStatusEntries,
+            ConvergenceLayerParams.getInstance().statusRetentionMS, SimulationParams.getInstance().scenario.bundleLifetimeMS());
 
 
     //functions!
@@ -90,11 +96,24 @@ class BPA implements BPAInterface {//package-private (not private/public)
      * Start sending and receiving threads for bundles
      */
     protected BPA() {
-        sendingThread = new Thread(new BPADispatcher());
-        sendingThread.start();
+        sendingThreads = new Thread[sendBuffer.shards()];
+        for (int i = 0; i < sendingThreads.length; i++) {
+            sendingThreads[i] = new Thread(new BPADispatcher(i), "BPA-dispatcher-" + i);
+            sendingThreads[i].start();
+        }
         receivingThread = new Thread(new BPAReceiver());
         receivingThread.start();
-        logger.info("Started BPA sending and receiving threads");
+        logger.info("Started " + sendingThreads.length + " BPA sending threads and the receiving thread");
+    }
+
+    /**
+     * Creates a ring buffer for handing objects between the BPA stages (ringCapacity slots, any number of producers)
+     * @param <T> type of the objects
+     * @return the ring buffer
+     */
+    static <T> RingBuffer<T> newRingBuffer() {
+        ConvergenceLayerParams convParams = ConvergenceLayerParams.getInstance();
+        return new RingBuffer<>(convParams.ringCapacity, false, convParams.queueWaitStrategy);
     }
 
 //    /**
@@ -165,8 +184,20 @@ class BPA implements BPAInterface {//package-private (not private/public)
      * @return key (timestamp) for the bundle
      */
     public Timestamp send(byte[] payload, NodeID destNodeID) {
+        return send(payload, destNodeID, BundlePriority.NORMAL);
+    }
+
+    /**
+     * create the bundle with a priority class and save to outgoing queue
+     * @param payload message to send in payload block of the bundle
+     * @param destNodeID destination node id of the bundle
+     * @param priority priority class of the bundle
+     * @return key (timestamp) for the bundle
+     */
+    @Override
+    public Timestamp send(byte[] payload, NodeID destNodeID, BundlePriority priority) {
         if(payload != null && payload.length > 0) {
-            Bundle bundle = bpaUtils.createBundle(payload, destNodeID, false, false);
+            Bundle bundle = bpaUtils.createBundle(payload, destNodeID, false, false, priority);
             logger.info("saving the bundle, timestamp: " + bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
             // save to queue
             return bpaUtils.saveToQueue(bundle);
@@ -183,8 +214,20 @@ class BPA implements BPAInterface {//package-private (not private/public)
      */
     @Override
     public Timestamp sendWithACK(byte[] payload, NodeID destNodeID) {
+        return sendWithACK(payload, destNodeID, BundlePriority.NORMAL);
+    }
+
+    /**
+     * create the bundle with a priority class and request an ACK from [the next hop, the final destination]
+     * @param payload message to send in payload block of the bundle
+     * @param destNodeID destination node id of the bundle
+     * @param priority priority class of the bundle
+     * @return key (timestamp) for the bundle
+     */
+    @Override
+    public Timestamp sendWithACK(byte[] payload, NodeID destNodeID, BundlePriority priority) {
         if(payload != null && payload.length > 0) {
-            Bundle bundle = bpaUtils.createBundle(payload, destNodeID, false, true);
+            Bundle bundle = bpaUtils.createBundle(payload, destNodeID, false, true, priority);
             logger.info("saving the bundle with ack flag, timestamp: " + bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
             // save to queue
             return bpaUtils.saveToQueue(bundle);
@@ -219,12 +262,14 @@ class BPA implements BPAInterface {//package-private (not private/public)
     @Override
     public Timestamp resendBundle(Timestamp bundleTimestamp) {
         if(bundleTimestamp.seqNum() != -1) {
-            if(bundleStatusMap.containsKey(bundleTimestamp)){
-                bpaUtils.saveToQueue(bundleStatusMap.get(bundleTimestamp).bundle());
+            Bundle bundle = bundleStatuses.bundle(bundleTimestamp);
+            if(bundle != null){
+                bpaUtils.saveToQueue(bundle);
                 logger.info("Resending bundle with timestamp " + bundleTimestamp.creationTime().getTimeInMS());
                 return bundleTimestamp;
             } else {
-                logger.severe("Can't find bundle with timestamp " + bundleTimestamp.creationTime().getTimeInMS());
+                logger.severe("Can't find bundle with timestamp " + bundleTimestamp.creationTime().getTimeInMS()
+                        + " (unknown, or kept no longer: it can no longer be resent)");
                 return Timestamp.UNKNOWN_TIMESTAMP;
             }
         }
@@ -235,7 +280,7 @@ class BPA implements BPAInterface {//package-private (not private/public)
     @Override
     public DispatchStatus getBundleStatus(Timestamp bundleTimestamp) {
         if(bundleTimestamp != null && bundleTimestamp != Timestamp.UNKNOWN_TIMESTAMP) {
-            return bundleStatusMap.get(bundleTimestamp).status();
+            return bundleStatuses.status(bundleTimestamp);
         }
         return DispatchStatus.NONE;
     }
@@ -250,7 +295,12 @@ class BPA implements BPAInterface {//package-private (not private/public)
     @Override
     public Timestamp resendBundleWithExtendedTime(Timestamp bundleTimestamp, int extendedTime) {
         if(bundleTimestamp.seqNum() != -1 && extendedTime > 0) {
-            Bundle bundle = bundleStatusMap.get(bundleTimestamp).bundle();
+            Bundle bundle = bundleStatuses.bundle(bundleTimestamp);
+            if (bundle == null) {
+                logger.warning("Can't find bundle with timestamp " + bundleTimestamp.creationTime().getTimeInMS()
+                        + " to resend (unknown, or kept no longer: it can no longer be resent)");
+                return Timestamp.UNKNOWN_TIMESTAMP;
+            }
 
             //creation time: 0, TTL = 5 (deleted at time 5)
             //current time = 100
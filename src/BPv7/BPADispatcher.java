@@ -1,36 +1,30 @@
 package BPv7;
 
 import BPv7.containers.*;
-import BPv7.utils.BundleDispatchStatusMap;
 import BPv7.utils.BundleStatusReport;
+import Configs.ConvergenceLayerParams;
 import DTCP.DTCP;
 import DTCP.interfaces.DTCPInterface;
 import DTCP.interfaces.ReachableStatus;
 
 import java.util.InvalidPropertiesFormatException;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static BPv7.BPA.bundleStatusMap;
+import static BPv7.BPA.bundleStatuses;
 import static BPv7.BPA.sendBuffer;
 import static BPv7.utils.DispatchStatus.DELETED;
 import static BPv7.utils.DispatchStatus.SENT;
 
 /**
- * BPA Dispatcher class is used to send bundles from BPA to DTCP
+ * BPA Dispatcher class is used to send bundles from BPA to DTCP. The BPA runs dispatchWorkers of them, each one
+ * serving its own shard of the next hops in the sendBuffer (see OutboundLanes)
  */
 public class BPADispatcher implements Runnable {
     /** Logger for this class. Prepends all logs from this class with the class name */
     private static final Logger logger = Logger.getLogger(BPADispatcher.class.getName());
 
-    /**
-     * The only instance of this class allowed in the entire program
-     *
-     * @implNote not making this volatile because its value only changes once
-     * (null -> instance), thus only one set of double-checked locking is needed
-     * (caching ok because all variables are final)
-     */
-    private static BPADispatcher instance = null;
     /**
      * DTCP class Instance
      */
@@ -39,39 +33,33 @@ public class BPADispatcher implements Runnable {
      * BPA Util class Instance
      */
     private static final BPAUtils bpaUtils = BPAUtils.getInstance();
+    /**
+     * Sends that may still be started (maxSendsInFlight at most in flight), taken before sending and given back
+     * when the send completes (shared by all the workers)
+     */
+    private static final Semaphore sendsAvailable = new Semaphore(ConvergenceLayerParams.getInstance().maxSendsInFlight);
+    /**
+     * Index of this worker, and of the shard of the sendBuffer it serves
+     */
+    private final int worker;
 
 
     //functions!
 
     /**
-     * Gets the singleton instance of the BPADispatcher
-     * @return a reference to the simulation parameters instance
-     * @implNote not making this instance volatile because its value only changes once
-     *  (null -> instance), thus only one set of double-checked locking is needed
+     * Creates a dispatcher worker (the BPA creates one per shard of the sendBuffer)
+     * @param worker index of the worker, and of the shard of the sendBuffer it serves
      */
-    public static BPADispatcher getInstance() {
-        //noinspection DoubleCheckedLocking
-        if (instance == null) {
-            synchronized (BPADispatcher.class) {
-                if (instance == null) {
-                    instance = new BPADispatcher();
-                    logger.info("Created BPADispatcher singleton");
-                }
-            }
-        }
-        return instance;
+    protected BPADispatcher(int worker) {
+        this.worker = worker;
     }
 
-    /**
-     * Hiding this constructor to force use of singleton accessor getInstance()
-     */
-    protected BPADispatcher() {}
-
     /**
      * passive sender thread: will spawn when we want to send a message and only remain alive until all messages are sent.
-     * More efficient than having it busy-wait until a new message is ready to be sent. Checks if destination node ID
-     * can be reached and tries to send it. If sending fails, deleting is attempted. If deleted, bundleStatusMap is updated,
-     * otherwise the bundle is re-added to the sendBuffer.
+     * More efficient than having it busy-wait until a new message is ready to be sent. Takes bundles from the lanes
+     * of this worker's next hops whose link is up, in turn (see OutboundLanes). Sends are asynchronous, so a slow or
+     * blackholed destination does not hold up bundles to the others; waits only when maxSendsInFlight are in flight.
+     * A next hop has one send in flight at a time, so its bundles are sent in order.
      */
     @Override
     public void run() {
@@ -79,97 +67,171 @@ public class BPADispatcher implements Runnable {
         while(true) {
             Bundle bundleToSend;
             try {
-                bundleToSend = sendBuffer.take();
+                bundleToSend = sendBuffer.take(worker);
             } catch (InterruptedException e) {
                 logger.severe("Unable to get bundle from the Queue (sendBuffer). " +
                         "Queue was interrupted: " + e.getMessage());
                 continue;
             }
-            NodeID destNode = bundleToSend.getPrimary().getDestNode();
-            Timestamp creationTimestamp = bundleToSend.getPrimary().getCreationTimestamp();
-            boolean deliverFlag = bundleToSend.getPrimary().getDLIV();
-            ReachableStatus reachable = dtcp.canReach(destNode);
-            if(reachable == ReachableStatus.REACHABLE) {
-                logger.info("DTCP reported: Can reach destination nodeID");
-                if(dtcp.send(bundleToSend)) {//try to send
-                    bundleStatusMap.put(creationTimestamp, new BundleDispatchStatusMap(bundleToSend, SENT));
-                    logger.info("[NetStats] BPA Sent: " + bundleToSend.getLoggingBundleId()
-                                        + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundleToSend.getPrimary().getCreationTimestamp().creationTime().timeInMS));
-                    logger.info("Sent bundle to DTCP and updated the dispatch status for bundle timestamp: " +
-                            bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
-                } else {//failed to send
-                    if(!canDelete(bundleToSend)) {//try to delete
-                        sendBuffer.add(bundleToSend);
-                        logger.info("Adding the bundle again to the queue for resending, timestamp: " +
-                                bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
-                    } else {//delete!
-                        // send status report if ack requested
-                        if (deliverFlag) {
-                            StatusReport statusReport = bpaUtils.sendStatusReport(bundleToSend, BundleStatusReport.DELETED, 1);
-                            Bundle statusReportBundle;
-                            try {
-                                statusReportBundle = bpaUtils.createBundle(BPAUtils.objectToByteArray(statusReport), bundleToSend.getPrimary().getDestNode(), true, false);
-                                sendBuffer.add(statusReportBundle);
-                                logger.info("Sending status report, timestamp: " +
-                                        bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
-                            } catch (InvalidPropertiesFormatException e) {
-                                logger.severe("Unable to parse status report! " + e.getMessage());
-                                //drop status report
-                            }
-                        }
-                        bundleStatusMap.put(creationTimestamp, new BundleDispatchStatusMap(bundleToSend, DELETED));
-                        logger.info("[NetStats] Bundle Deleted: " + bundleToSend.getLoggingBundleId()
-                                            + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundleToSend.getPrimary().getCreationTimestamp().creationTime().timeInMS)
-                                            + "; Size of bundle payload (bytes):" + bundleToSend.getPayload().getPayload().length);
-                        logger.info("deleted the bundle, timestamp: " +
-                                bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
+            dispatch(bundleToSend);
+        }
+    }
+
+    /**
+     * Checks if the next hop of the bundle's lane can be reached and starts sending the bundle there (see
+     * sendCompleted). Releases the lane of the bundle in the sendBuffer unless a send is started (sendCompleted does then)
+     * @param bundleToSend bundle to send
+     */
+    private void dispatch(Bundle bundleToSend) {
+        NodeID destNode = bundleToSend.getPrimary().getDestNode();
+        boolean deliverFlag = bundleToSend.getPrimary().getDLIV();
+        String nextHop = sendBuffer.nextHop(worker, bundleToSend);
+        ReachableStatus reachable;
+        if (nextHop != null)
+            reachable = dtcp.canReachHop(nextHop);
+        else//no route for it when it was added, whatever the default route is now
+            reachable = dtcp.canReach(destNode) == ReachableStatus.UNKNOWN_ID ? ReachableStatus.UNKNOWN_ID : ReachableStatus.NO_ROUTE;
+        if(reachable == ReachableStatus.REACHABLE) {
+            logger.info("DTCP reported: Can reach destination nodeID");
+            try {
+                sendsAvailable.acquire();
+            } catch (InterruptedException e) {
+                logger.severe("Interrupted waiting for a send to complete, readding bundle "
+                        + bundleToSend.getLoggingBundleId() + " to the send buffer: " + e.getMessage());
+                sendBuffer.release(worker, bundleToSend, true);
+                return;
+            }
+            dtcp.sendAsync(bundleToSend, nextHop).whenComplete((sent, e) -> {
+                sendsAvailable.release();
+                if (e != null)
+                    logger.warning("Sending bundle " + bundleToSend.getLoggingBundleId() + " failed: " + e.getMessage());
+                sendCompleted(bundleToSend, e == null && sent);
+            });
+        } else {//can't reach destination for some reason...
+            switch (reachable) {
+                case EXPECTED_DOWN ->  {
+                    if (bundleToSend.getPrimary().getLifetime() + bundleToSend.getPrimary().getCreationTimestamp().creationTime().timeInMS <= DTNTime.getCurrentDTNTime().timeInMS) {
+                        logger.log(Level.INFO, "Bundle not deliverable due to expected down and reached lifetime. Bundle: " + bundleToSend.getLoggingBundleId());
+                    } else {
+                        // This means it's temporarily down, but might not be in the future and hasn't reached lifetime, so re add it to the (head of) its lane
+                        sendBuffer.release(worker, bundleToSend, true);
+                        logger.info("Expected down, readding to the buffer: "  + bundleToSend.getLoggingBundleId());
+                        return;//don't send deleted status report
                     }
                 }
-            } else {//can't reach destination for some reason...
-                switch (reachable) {
-                    case EXPECTED_DOWN ->  {
-                        if (bundleToSend.getPrimary().getLifetime() + bundleToSend.getPrimary().getCreationTimestamp().creationTime().timeInMS <= DTNTime.getCurrentDTNTime().timeInMS) {
-                            logger.log(Level.INFO, "Bundle not deliverable due to expected down and reached lifetime. Bundle: " + bundleToSend.getLoggingBundleId());
-                        } else {
-                            // This means it's temporarily down, but might not be in the future and hasn't reached lifetime, so re add it to the (back of) the queue
-                            if(!sendBuffer.offer(bundleToSend)){
-                                logger.severe("Could not readd bundle " + bundleToSend.getLoggingBundleId() + " to send buffer!!");
-                            } else {
-                                logger.info("Expected down, readding to the buffer: "  + bundleToSend.getLoggingBundleId());
-                            }
-                            continue;//don't send deleted status report
-                        }
-                    }
-                    case NO_ROUTE -> logger.log(Level.INFO, "Bundle not deliverable due to no known route. Bundle: "
-                            + bundleToSend.getLoggingBundleId());
-                    case UNKNOWN_ID -> logger.log(Level.INFO, "Bundle not deliverable due to an unknown Destination ID = \""
-                            + bundleToSend.getPrimary().getDestNode().id() + "\". Bundle: " + bundleToSend.getLoggingBundleId());
-                    default -> {
-                        logger.warning("UNKNOWN REACHABLE ID = " + reachable + " readding to send queue...");
-                        if(!sendBuffer.offer(bundleToSend)){
-                            logger.severe("Could not readd bundle " + bundleToSend.getLoggingBundleId() + " to send buffer!!");
-                        } else {
-                            logger.info("Expected down, readding to the buffer: "  + bundleToSend.getLoggingBundleId());
-                        }
-                        continue;//don't send deleted status report
-                    }
+                case NO_ROUTE -> logger.log(Level.INFO, "Bundle not deliverable due to no known route. Bundle: "
+                        + bundleToSend.getLoggingBundleId());
+                case UNKNOWN_ID -> logger.log(Level.INFO, "Bundle not deliverable due to an unknown Destination ID = \""
+                        + bundleToSend.getPrimary().getDestNode().id() + "\". Bundle: " + bundleToSend.getLoggingBundleId());
+                default -> {
+                    logger.warning("UNKNOWN REACHABLE ID = " + reachable + " readding to send queue...");
+                    sendBuffer.release(worker, bundleToSend, true);
+                    return;//don't send deleted status report
                 }
+            }
+            sendBuffer.release(worker, bundleToSend, false);
+            // send status report if ack requested
+            if (deliverFlag) {
+                StatusReport statusReport = bpaUtils.sendStatusReport(bundleToSend, BundleStatusReport.DELETED, 5);
+                Bundle statusReportBundle;
+                try {
+                    statusReportBundle = bpaUtils.createBundle(BPAUtils.objectToByteArray(statusReport), bundleToSend.getPrimary().getDestNode(), true, false);
+                    sendBuffer.add(statusReportBundle);
+                    logger.info("deleted the bundle. Sending status report, timestamp: " +
+                            bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
+                } catch (InvalidPropertiesFormatException e) {
+                    logger.severe("Unable to parse status report! " + e.getMessage());
+                    //drop status report
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles the outcome of a send (on the thread that finished it). If sending failed, deleting is attempted.
+     * If deleted, bundleStatuses is updated, otherwise the bundle is re-added to the head of its lane in the sendBuffer.
+     * Releases the lane of the bundle either way.
+     * @param bundleToSend bundle that was sent
+     * @param sent true if it was sent
+     */
+    private void sendCompleted(Bundle bundleToSend, boolean sent) {
+        boolean deliverFlag = bundleToSend.getPrimary().getDLIV();
+        if(sent) {
+            bundleStatuses.put(bundleToSend, SENT);
+            sendBuffer.release(worker, bundleToSend, false);
+            logger.info("[NetStats] BPA Sent: " + bundleToSend.getLoggingBundleId()
+                                + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundleToSend.getPrimary().getCreationTimestamp().creationTime().timeInMS));
+            logger.info("Sent bundle to DTCP and updated the dispatch status for bundle timestamp: " +
+                    bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
+        } else {//failed to send
+            if(!canDelete(bundleToSend)) {//try to delete
+                sendBuffer.release(worker, bundleToSend, true);
+                logger.info("Adding the bundle again to the queue for resending, timestamp: " +
+                        bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
+            } else {//delete!
+                sendBuffer.release(worker, bundleToSend, false);
                 // send status report if ack requested
                 if (deliverFlag) {
-                    StatusReport statusReport = bpaUtils.sendStatusReport(bundleToSend, BundleStatusReport.DELETED, 5);
+                    StatusReport statusReport = bpaUtils.sendStatusReport(bundleToSend, BundleStatusReport.DELETED, 1);
                     Bundle statusReportBundle;
                     try {
                         statusReportBundle = bpaUtils.createBundle(BPAUtils.objectToByteArray(statusReport), bundleToSend.getPrimary().getDestNode(), true, false);
                         sendBuffer.add(statusReportBundle);
-                        logger.info("deleted the bundle. Sending status report, timestamp: " +
+                        logger.info("Sending status report, timestamp: " +
                                 bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
                     } catch (InvalidPropertiesFormatException e) {
                         logger.severe("Unable to parse status report! " + e.getMessage());
                         //drop status report
                     }
                 }
+                bundleStatuses.put(bundleToSend, DELETED);
+                logger.info("[NetStats] Bundle Deleted: " + bundleToSend.getLoggingBundleId()
+                                    + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundleToSend.getPrimary().getCreationTimestamp().creationTime().timeInMS)
+                                    + "; Size of bundle payload (bytes):" + bundleToSend.getPayloadLength());
+                logger.info("deleted the bundle, timestamp: " +
+                        bundleToSend.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
+            }
+        }
+    }
+
+    /**
+     * Deletes a bundle whose next hop will not be reachable before its lifetime ends (no timely contact in the
+     * contact plan) without waiting for it to expire, and sends a status report if requested
+     * @param bundle the bundle
+     */
+    static void dropNoTimelyContact(Bundle bundle) {
+        dropWaiting(bundle, 7, "No timely contact");
+    }
+
+    /**
+     * Deletes a bundle whose lifetime ended while it was waiting to be sent, and sends a status report if requested
+     * @param bundle the bundle
+     */
+    static void dropExpired(Bundle bundle) {
+        dropWaiting(bundle, 1, "Lifetime expired");
+    }
+
+    /**
+     * Deletes a bundle taken out of the sendBuffer before it was sent, and sends a status report if requested
+     * @param bundle the bundle
+     * @param reasonCode status report reason code
+     * @param reason why it was deleted, for the logs
+     */
+    private static void dropWaiting(Bundle bundle, int reasonCode, String reason) {
+        if (bundle.getPrimary().getDLIV()) {
+            StatusReport statusReport = bpaUtils.sendStatusReport(bundle, BundleStatusReport.DELETED, reasonCode);
+            try {
+                sendBuffer.add(bpaUtils.createBundle(BPAUtils.objectToByteArray(statusReport), bundle.getPrimary().getDestNode(), true, false));
+            } catch (InvalidPropertiesFormatException e) {
+                logger.severe("Unable to parse status report! " + e.getMessage());
+                //drop status report
             }
         }
+        bundleStatuses.put(bundle, DELETED);
+        logger.info("[NetStats] Bundle Deleted: " + bundle.getLoggingBundleId()
+                            + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS)
+                            + "; Size of bundle payload (bytes):" + bundle.getPayloadLength()
+                            + "; " + reason);
     }
 
     /**
@@ -2,12 +2,19 @@ package BPv7;
 
 import BPv7.containers.*;
 import BPv7.utils.BundleStatusReport;
+import BPv7.utils.RingBuffer;
 import BPv7.utils.StatusReportUtilObject;
+import Configs.ConvergenceLayerParams;
 import Configs.SimulationParams;
 import DTCP.DTCP;
+import DTCP.interfaces.CutThroughListener;
 import DTCP.interfaces.DTCPInterface;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.InvalidPropertiesFormatException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Logger;
 
 import static BPv7.BPA.*;
@@ -17,7 +24,7 @@ import static BPv7.utils.BundleStatusReport.FORWARDED;
 /**
  * BPA class for receiving bundles form DTCP
  */
-public class BPAReceiver implements Runnable {
+public class BPAReceiver implements Runnable, CutThroughListener {
     /** Logger for this class. Prepends all logs from this class with the class name */
     private static final Logger logger = Logger.getLogger(BPAReceiver.class.getName());
 
@@ -45,6 +52,15 @@ public class BPAReceiver implements Runnable {
      * BPA util class Instance
      */
     private static final BPAUtils bpaUtils = BPAUtils.getInstance();
+    /** How often (ms) the depths of the receive workers' queues are logged while bundles arrive */
+    private static final long QUEUE_DEPTH_REPORT_MS = 10_000;
+    /** Most bundles a receive worker takes from its queue at once */
+    private static final int RECEIVE_BATCH = 64;
+    /**
+     * Bundles waiting for each receive worker (receiveWorkers of them), by source node: bundles from one source
+     * always go to the same worker. Ring buffers with a single producer (run)
+     */
+    private final List<BlockingQueue<Bundle>> partitions;
 
 
     //functions!
@@ -72,93 +88,194 @@ public class BPAReceiver implements Runnable {
     /**
      * Hiding this constructor to force use of singleton accessor getInstance()
      */
-    protected BPAReceiver() {}
+    protected BPAReceiver() {
+        ConvergenceLayerParams convParams = ConvergenceLayerParams.getInstance();
+        partitions = new ArrayList<>(convParams.receiveWorkers);
+        for (int i = 0; i < convParams.receiveWorkers; i++)
+            partitions.add(new RingBuffer<>(convParams.ringCapacity, true, convParams.queueWaitStrategy));
+    }
 
     /**
-     * Receives bundles and checks if the bundle is to be deleted. If it is, creates a status report bundle and sends it back to the sender.
-     * If not, checks if destination node ID is itself. If it is not, checks acknowledgment requirement and either adds acknowledgment
-     * bundle and saves bundle to queue, or just saves bundle to queue. If destination node id is itself, adds to status
-     * report buffer if it's an admin bundle, otherwise adds to receive buffer and also generated acknowledgment if needed.
+     * Receives bundles from DTCP, in order, and hands each one to the worker of its source node (see process):
+     * bundles from one source are handled one at a time, in the order they arrived, and bundles from different
+     * sources in parallel. A worker takes up to RECEIVE_BATCH bundles from its queue at once. Waits for room when the
+     * queue of a worker is full. Reports the depth of every worker's queue every QUEUE_DEPTH_REPORT_MS while bundles
+     * arrive.
      */
     @Override
     public void run() {
+        dtcp.setCutThroughListener(this);
+        for (int i = 0; i < partitions.size(); i++) {
+            BlockingQueue<Bundle> partition = partitions.get(i);
+            Thread worker = new Thread(() -> {
+                List<Bundle> batch = new ArrayList<>(RECEIVE_BATCH);
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    try {
+                        batch.add(partition.take());
+                        partition.drainTo(batch, RECEIVE_BATCH - 1);
+                    } catch (InterruptedException e) {
+                        logger.warning("BPA receive worker interrupted, carrying on: " + e.getMessage());
+                        continue;
+                    }
+                    for (Bundle bundle : batch) {
+                        try {
+                            process(bundle);
+                        } catch (InterruptedException e) {
+                            logger.warning("BPA receive worker interrupted handling bundle " + bundle.getLoggingBundleId()
+                                    + ", carrying on: " + e.getMessage());
+                        }
+                    }
+                    batch.clear();
+                }
+            }, "BPA-receiver-" + i);
+            worker.start();
+        }
+        logger.info("Started " + partitions.size() + " BPA receive workers");
+
+        long nextReport = System.currentTimeMillis() + QUEUE_DEPTH_REPORT_MS;
         //noinspection InfiniteLoopStatement
         while(true) {
             Bundle bundle = dtcp.recv();
-
-
-            int deletionCode = bpaUtils.checkIfBundleToDelete(bundle);
-            boolean deliveryFlag = bundle.getPrimary().getDLIV();
-            boolean adminFlag = bundle.getPrimary().isAdminRecord();
-            //if we are deleting it and an delivery ACK is requested (and not admin record), send a status report back to the sender 
-            if (deletionCode != -1 && deliveryFlag && !adminFlag) {
-                logger.info("Deleting bundle reason code = " + deletionCode + "! " + bundle.getLoggingBundleId());
-                if(deletionCode == 1){
-                    long timeGap = Math.subtractExact(DTNTime.getCurrentDTNTime().getTimeInMS(), bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
-                    logger.info("  deleting bundle because it expired, bundle = " + bundle.getLoggingBundleId()
-                            + "; TTL = " + bundle.getPrimary().getLifetime() + "; time since creation: " + timeGap);
-                }
-                StatusReport statusReport = bpaUtils.sendStatusReport(bundle, BundleStatusReport.DELETED, deletionCode);
-                Bundle statusReportBundle;
-                try {
-                    statusReportBundle = bpaUtils.createBundle(BPAUtils.objectToByteArray(statusReport), bundle.getPrimary().getSrcNode(), true, false);
-                    sendBuffer.add(statusReportBundle);
-                    logger.info("Sending status report for deleted bundle, timestamp: " +
-                            statusReportBundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
-                } catch (InvalidPropertiesFormatException e) {
-                    logger.severe("Unable to parse status report! " + e.getMessage());
-                    //drop status report
-                }
-                logger.info("[NetStats] Bundle Deleted: " + bundle.getLoggingBundleId()
-                        + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS)
-                        + "; Size of bundle payload (bytes):" + bundle.getPayload().getPayload().length);
-                continue;
+            if (bundle == null)
+                continue;//interrupted waiting for DTCP
+            try {
+                partitions.get(Math.floorMod(bundle.getPrimary().getSrcNode().id().hashCode(), partitions.size())).put(bundle);
+            } catch (InterruptedException e) {
+                logger.warning("Interrupted waiting for room for bundle " + bundle.getLoggingBundleId() + ", dropping it: " + e.getMessage());
             }
+            if (System.currentTimeMillis() >= nextReport) {
+                logger.info("[NetStats] BPA receive queue depths: " + Arrays.toString(queueDepths()));
+                nextReport = System.currentTimeMillis() + QUEUE_DEPTH_REPORT_MS;
+            }
+        }
+    }
 
+    /**
+     * Gets how many bundles wait in the queue of each receive worker
+     * @return the depth of every worker's queue, by worker
+     */
+    public int[] queueDepths() {
+        int[] depths = new int[partitions.size()];
+        for (int i = 0; i < partitions.size(); i++)
+            depths[i] = partitions.get(i).size();
+        return depths;
+    }
 
-            logger.info("[NetStats] BPA Received: " + bundle.getLoggingBundleId()
-                    + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS));
-
+    /**
+     * Checks if the bundle is to be deleted. If it is, creates a status report bundle and sends it back to the sender.
+     * If not, checks if destination node ID is itself. If it is not, checks acknowledgment requirement and either adds acknowledgment
+     * bundle and saves bundle to queue, or just saves bundle to queue. If destination node id is itself, adds to status
+     * report buffer if it's an admin bundle, otherwise adds to receive buffer and also generated acknowledgment if needed.
+     * Runs on the receive worker of the bundle's source node, waits for room when a queue it adds to is full
+     * @param bundle the bundle received
+     * @throws InterruptedException if interrupted while waiting for room in a queue
+     */
+    private void process(Bundle bundle) throws InterruptedException {
+        int deletionCode = bpaUtils.checkIfBundleToDelete(bundle);
+        boolean deliveryFlag = bundle.getPrimary().getDLIV();
+        boolean adminFlag = bundle.getPrimary().isAdminRecord();
+        //if we are deleting it and an delivery ACK is requested (and not admin record), send a status report back to the sender 
+        if (deletionCode != -1 && deliveryFlag && !adminFlag) {
+            logger.info("Deleting bundle reason code = " + deletionCode + "! " + bundle.getLoggingBundleId());
+            if(deletionCode == 1){
+                long timeGap = Math.subtractExact(DTNTime.getCurrentDTNTime().getTimeInMS(), bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
+                logger.info("  deleting bundle because it expired, bundle = " + bundle.getLoggingBundleId()
+                        + "; TTL = " + bundle.getPrimary().getLifetime() + "; time since creation: " + timeGap);
+            }
+            StatusReport statusReport = bpaUtils.sendStatusReport(bundle, BundleStatusReport.DELETED, deletionCode);
+            Bundle statusReportBundle;
+            try {
+                statusReportBundle = bpaUtils.createBundle(BPAUtils.objectToByteArray(statusReport), bundle.getPrimary().getSrcNode(), true, false);
+                sendBuffer.add(statusReportBundle);
+                logger.info("Sending status report for deleted bundle, timestamp: " +
+                        statusReportBundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
+            } catch (InvalidPropertiesFormatException e) {
+                logger.severe("Unable to parse status report! " + e.getMessage());
+                //drop status report
+            }
+            logger.info("[NetStats] Bundle Deleted: " + bundle.getLoggingBundleId()
+                    + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS)
+                    + "; Size of bundle payload (bytes):" + bundle.getPayloadLength());
+            return;
+        }
 
+        logger.info("[NetStats] BPA Received: " + bundle.getLoggingBundleId()
+                + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS));
 
-            // read nodeID of system and see if matches bundle destination ID
-            if (bundle.getPrimary().getDestNode().id().equals(simulationParams.hostID)) {//REACHED DESTINATION (this node)
-                // if bundle has admin flag set
-                // add the payload to readStatusReportBuffer
-                if (adminFlag) {
-                    readStatusReportBuffer.add(bundle.getPayload().getPayload());
-                    logger.info("Added status report to the queue for AA");
-                } else {
-                    // else if bundle has ack flag set
-                    // make a StatusReportUtilObject object add to sendStatusReportBuffer
-                    if (deliveryFlag) {
-                        NodeID nodeID = bundle.getPrimary().getSrcNode();
-                        Timestamp timestamp = bundle.getPrimary().getCreationTimestamp();
-                        sendStatusReportBuffer.add(new StatusReportUtilObject(nodeID, timestamp, DELIVERED));
-                        logger.info("Sending status report for delivered bundle, timestamp: " +
-                                timestamp.creationTime().getTimeInMS());
-                    }
-                    // add bundle to receiveBuffer
-                    receiveBuffer.add(bundle);
-                    logger.info("Added bundle to the queue for AA, timestamp: " +
-                            bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
-                }
-                logger.info("[NetStats] Bundle Arrived: " + bundle.getLoggingBundleId()
-                        + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS)
-                        + "; Size of bundle payload (bytes):" + bundle.getPayload().getPayload().length);
-            } else {//FORWARD
-                // check if bundle has ack flag
-                if (deliveryFlag && !adminFlag) {
+        // read nodeID of system and see if matches bundle destination ID
+        if (bundle.getPrimary().getDestNode().id().equals(simulationParams.hostID)) {//REACHED DESTINATION (this node)
+            // if bundle has admin flag set
+            // add the payload to readStatusReportBuffer
+            if (adminFlag) {
+                readStatusReportBuffer.put(bundle.getPayload().getPayload());
+                logger.info("Added status report to the queue for AA");
+            } else {
+                // else if bundle has ack flag set
+                // make a StatusReportUtilObject object add to sendStatusReportBuffer
+                if (deliveryFlag) {
                     NodeID nodeID = bundle.getPrimary().getSrcNode();
                     Timestamp timestamp = bundle.getPrimary().getCreationTimestamp();
-                    sendStatusReportBuffer.add(new StatusReportUtilObject(nodeID, timestamp, FORWARDED));
-                    logger.info("Sending status report for forwarded bundle, timestamp: " +
+                    sendStatusReportBuffer.put(new StatusReportUtilObject(nodeID, timestamp, DELIVERED));
+                    logger.info("Sending status report for delivered bundle, timestamp: " +
                             timestamp.creationTime().getTimeInMS());
                 }
-                bpaUtils.saveToQueue(bundle);
-                logger.info("Added bundle to send to DTCP, timestamp: " +
+                // add bundle to receiveBuffer
+                receiveBuffer.put(bundle);
+                logger.info("Added bundle to the queue for AA, timestamp: " +
                         bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
             }
+            logger.info("[NetStats] Bundle Arrived: " + bundle.getLoggingBundleId()
+                    + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS)
+                    + "; Size of bundle payload (bytes):" + bundle.getPayloadLength());
+        } else {//FORWARD
+            // check if bundle has ack flag
+            if (deliveryFlag && !adminFlag) {
+                NodeID nodeID = bundle.getPrimary().getSrcNode();
+                Timestamp timestamp = bundle.getPrimary().getCreationTimestamp();
+                sendStatusReportBuffer.put(new StatusReportUtilObject(nodeID, timestamp, FORWARDED));
+                logger.info("Sending status report for forwarded bundle, timestamp: " +
+                        timestamp.creationTime().getTimeInMS());
+            }
+            bpaUtils.saveToQueue(bundle);
+            logger.info("Added bundle to send to DTCP, timestamp: " +
+                    bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
+        }
+    }
+
+    /**
+     * Only bundles that would be forwarded as-is (not deleted, not for us, not admin records) may be relayed
+     * while they are still arriving
+     * @param header the bundle, only its primary block is available
+     * @return true if the bundle may be relayed as it arrives
+     */
+    @Override
+    public boolean mayCutThrough(Bundle header) {
+        PrimaryBlock primary = header.getPrimary();
+        return !primary.isAdminRecord()
+                && !primary.getDestNode().id().equals(simulationParams.hostID)
+                && bpaUtils.checkIfBundleToDelete(primary) == -1;
+    }
+
+    /**
+     * Does what run() does for a forwarded bundle, except queueing it (it is already sent)
+     * @param bundle the relayed bundle
+     */
+    @Override
+    public void cutThroughSent(Bundle bundle) {
+        logger.info("[NetStats] BPA Received: " + bundle.getLoggingBundleId()
+                + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS));
+        if (bundle.getPrimary().getDLIV() && !bundle.getPrimary().isAdminRecord()) {
+            NodeID nodeID = bundle.getPrimary().getSrcNode();
+            Timestamp timestamp = bundle.getPrimary().getCreationTimestamp();
+            if (sendStatusReportBuffer.offer(new StatusReportUtilObject(nodeID, timestamp, FORWARDED)))
+                logger.info("Sending status report for forwarded bundle, timestamp: " +
+                        timestamp.creationTime().getTimeInMS());
+            else//not waiting on the relaying connection's thread
+                logger.warning("Status report queue full, dropping the forwarded report for timestamp: " +
+                        timestamp.creationTime().getTimeInMS());
         }
+        logger.info("Relayed bundle as it arrived, timestamp: " +
+                bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
     }
 }
@@ -1,15 +1,15 @@
 package BPv7;
 
 import BPv7.containers.*;
-import BPv7.utils.BundleDispatchStatusMap;
 import BPv7.utils.BundleStatusReport;
 import BPv7.utils.DispatchStatus;
+import BPv7.utils.JsonCodec;
 import Configs.SimulationParams;
 import DTCP.DTCP;
 import DTCP.interfaces.DTCPInterface;
 import DTCP.interfaces.ReachableStatus;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectOutputStream;
@@ -28,6 +28,9 @@ public class BPAUtils {
      */
     private static final Logger logger = Logger.getLogger(BPAUtils.class.getName());
 
+    /** Cached (thread safe) compact JSON writer for status reports, readers accept pretty JSON too */
+    private static final ObjectWriter statusReportWriter = JsonCodec.mapper().writer();
+
     /**
      * The only instance of this class allowed in the entire program
      * @implNote not making this volatile because its value only changes once
@@ -78,12 +81,9 @@ public class BPAUtils {
      * @throws InvalidPropertiesFormatException if bad status report
      */
     public static byte[] objectToByteArray(StatusReport obj) throws InvalidPropertiesFormatException{//if CBOR is desired:: call CBOR functions here
-        ObjectMapper mapper = new ObjectMapper();
-
-
         try {
-            //            logger.info("Wrote this bundle as JSON:\n" + mapper.writerWithDefaultPrettyPrinter().writeValueAsString(obj));
-            return mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(obj);
+            //            logger.info("Wrote this bundle as JSON:\n" + statusReportWriter.writeValueAsString(obj));
+            return statusReportWriter.writeValueAsBytes(obj);
         } catch (JsonProcessingException e) {
             logger.severe("ERROR! Unable to write status report to byte[]: " + e.getMessage());
             throw new InvalidPropertiesFormatException(e.getMessage());
@@ -109,8 +109,8 @@ public class BPAUtils {
      */
     @SuppressWarnings("unused")
     public DispatchStatus getBundleStatus(Timestamp key) {
-        if (key.seqNum() != -1 && BPA.bundleStatusMap.containsKey(key)) {
-            DispatchStatus status = BPA.bundleStatusMap.get(key).status();
+        DispatchStatus status = key.seqNum() == -1 ? NONE : BPA.bundleStatuses.status(key);
+        if (status != NONE) {
             logger.info("Bundle status" + status + " for timestamp " + key.creationTime().getTimeInMS());
             return status;
         }
@@ -119,20 +119,20 @@ public class BPAUtils {
     }
 
     /**
-     * Util function to save bundle to sending queue (sendBuffer)
+     * Util function to save bundle to sending queue (the sendBuffer lane of its next hop)
      * @param bundle: bundle to be saved
      * @return creation Timestamp of the bundle
      */
     public Timestamp saveToQueue(Bundle bundle) {
         BPA.sendBuffer.add(bundle);
         Timestamp creationTimestamp = bundle.getPrimary().getCreationTimestamp();
-        BPA.bundleStatusMap.put(creationTimestamp, new BundleDispatchStatusMap(bundle, PENDING));
+        BPA.bundleStatuses.put(bundle, PENDING);
         logger.info("save the bundle in the sending queue: " + bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
         return creationTimestamp;
     }
 
     /**
-     * Util function to check status of bundle
+     * Util function to check status of bundle. Administrative records are EXPEDITED, other bundles NORMAL
      * @param payload:  bundle payload
      * @param destID    : destination node id for the bundle
      * @param adminFlag : true if status report, false if normal bundle
@@ -140,6 +140,19 @@ public class BPAUtils {
      * @return newly created bundle
      */
     public Bundle createBundle(byte[] payload, NodeID destID, boolean adminFlag, boolean ackFlag) {
+        return createBundle(payload, destID, adminFlag, ackFlag, adminFlag ? BundlePriority.EXPEDITED : BundlePriority.NORMAL);
+    }
+
+    /**
+     * Util function to check status of bundle
+     * @param payload:  bundle payload
+     * @param destID    : destination node id for the bundle
+     * @param adminFlag : true if status report, false if normal bundle
+     * @param ackFlag   : true if acknowledgement required, false otherwise
+     * @param priority  : priority class of the bundle
+     * @return newly created bundle
+     */
+    public Bundle createBundle(byte[] payload, NodeID destID, boolean adminFlag, boolean ackFlag, BundlePriority priority) {
         //read lifetime from config files
         PrimaryBlock primaryBlock = new PrimaryBlock(destID, new NodeID(SimulationParams.getInstance().hostID),
                                                      SimulationParams.getInstance().scenario.bundleLifetimeMS());
@@ -154,6 +167,7 @@ public class BPAUtils {
 
         PayloadBlock payloadBlock = new PayloadBlock(payload);
         Bundle bundle = new Bundle(primaryBlock, payloadBlock, null);
+        bundle.setPriority(priority);
 
         logger.info("creating bundle for the payload, bundle = " + bundle.getLoggingBundleId());
         return bundle;
@@ -164,17 +178,33 @@ public class BPAUtils {
      * @return : reason code if bundle needs to be deleted, -1 otherwise
      */
     public int checkIfBundleToDelete(Bundle bundle) {
-        long timeGap = Math.subtractExact(DTNTime.getCurrentDTNTime().getTimeInMS(), bundle.getPrimary().getCreationTimestamp().creationTime().getTimeInMS());
-        if (timeGap > bundle.getPrimary().getLifetime()) {
+        int deletionCode = checkIfBundleToDelete(bundle.getPrimary());
+        if (deletionCode != -1) {
+            return deletionCode;
+        } else if (bundle.getPayloadLength() < 0) {
+            return 11;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Checks everything checkIfBundleToDelete(Bundle) checks that only needs the primary block
+     * @param primary: primary block of the bundle to be checked for deletion
+     * @return : reason code if bundle needs to be deleted, -1 otherwise
+     */
+    public int checkIfBundleToDelete(PrimaryBlock primary) {
+        long timeGap = Math.subtractExact(DTNTime.getCurrentDTNTime().getTimeInMS(), primary.getCreationTimestamp().creationTime().getTimeInMS());
+        if (timeGap > primary.getLifetime()) {
             return 1;
-        } else if (dtcp.canReach(bundle.getPrimary().getDestNode()) == ReachableStatus.UNKNOWN_ID) {
+        }
+        ReachableStatus reachable = dtcp.canReach(primary.getDestNode());
+        if (reachable == ReachableStatus.UNKNOWN_ID) {
             return 5;
-        } else if (dtcp.canReach(bundle.getPrimary().getDestNode()) == ReachableStatus.NO_ROUTE) {
+        } else if (reachable == ReachableStatus.NO_ROUTE) {
             return 6;
-        }  else if (dtcp.canReach(bundle.getPrimary().getDestNode()) == ReachableStatus.EXPECTED_DOWN) {
+        }  else if (reachable == ReachableStatus.EXPECTED_DOWN) {
             return 7;
-        } else if (bundle.getPayload() == null || bundle.getPayload().getPayload() == null) {
-            return 11;
         } else {
             return -1;
         }
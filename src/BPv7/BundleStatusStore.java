@@ -0,0 +1,286 @@
+package BPv7;
+
+import BPv7.containers.Bundle;
+import BPv7.containers.DTNTime;
+import BPv7.containers.Timestamp;
+import BPv7.utils.DispatchStatus;
+import BPv7.utils.TimingWheel;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Dispatch status of the bundles this node sent, by creation timestamp (updated by the AA, the dispatcher and its
+ * senders concurrently).
+ * <p>
+ * A bundle is kept with its status only while it may still be resent: until a status report about it could still
+ * come back (its lifetime, then the lifetime of the report). Its status alone is kept statusRetentionMS longer, then
+ * forgotten, and at most maxStatusEntries are kept at once (the least recently updated are forgotten first), so the
+ * store does not grow with the total traffic. Entries are keyed by the creation timestamp packed into a long, in an
+ * open-addressing table.
+ */
+class BundleStatusStore {//package-private (not private/public)
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(BundleStatusStore.class.getName());
+
+    /** Length of a tick of the wheel releasing bundles and forgetting statuses (ms) */
+    private static final long TICK_MS = 100;
+
+    /**
+     * Status of one bundle
+     */
+    private static class Entry {
+        /** Packed creation timestamp of the bundle */
+        final long key;
+        /** Its status */
+        DispatchStatus status;
+        /** The bundle, null once it can no longer be resent */
+        Bundle bundle;
+        /** Its timer: releases the bundle, then forgets the entry */
+        TimingWheel.Timer<Entry> timer;
+        /** Neighbours in the order entries were last updated */
+        Entry older = null, newer = null;
+
+        /** @param key packed creation timestamp of the bundle */
+        Entry(long key) { this.key = key; }
+    }
+
+    /** Most entries kept at once */
+    private final int maxEntries;
+    /** How long (ms) a status is kept once its bundle can no longer be resent */
+    private final long retentionMS;
+    /** How long (ms) status reports live, how long after a bundle's lifetime one may still come back about it */
+    private final long reportLifetimeMS;
+    /** Guards everything below */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Entries by packed key, linear probing (a power of 2 long, at most half full) */
+    private Entry[] table = new Entry[16];
+    /** Entries in the table */
+    private int size = 0;
+    /** Least and most recently updated entries */
+    private Entry oldest = null, newest = null;
+    /** When each entry releases its bundle, or is forgotten */
+    private final TimingWheel<Entry> timers = new TimingWheel<>(TICK_MS, System.currentTimeMillis());
+
+    /**
+     * Creates an empty store
+     * @param maxEntries most entries kept at once
+     * @param retentionMS how long (ms) a status is kept once its bundle can no longer be resent
+     * @param reportLifetimeMS how long (ms) status reports live
+     */
+    BundleStatusStore(int maxEntries, long retentionMS, long reportLifetimeMS) {
+        this.maxEntries = maxEntries;
+        this.retentionMS = retentionMS;
+        this.reportLifetimeMS = reportLifetimeMS;
+    }
+
+    /**
+     * Sets the status of a bundle (keeping the bundle until it can no longer be resent)
+     * @param bundle the bundle
+     * @param status its status
+     */
+    void put(Bundle bundle, DispatchStatus status) {
+        long key = pack(bundle.getPrimary().getCreationTimestamp());
+        long now = System.currentTimeMillis();
+        long resendableUntil = now + bundle.getPrimary().getLifetime()
+                + bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS - DTNTime.getCurrentDTNTime().timeInMS
+                + reportLifetimeMS;
+        lock.lock();
+        try {
+            timers.advance(now, this::expire);
+            Entry entry = find(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                insert(entry);
+            } else {
+                timers.cancel(entry.timer);
+                unlinkAge(entry);
+            }
+            entry.status = status;
+            entry.bundle = bundle;
+            entry.timer = timers.schedule(entry, resendableUntil);
+            linkNewest(entry);
+            while (size > maxEntries) {
+                logger.fine("Status store full, forgetting the status of the bundle with key " + oldest.key);
+                forget(oldest);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timestamp creation timestamp of a bundle
+     * @return its status, NONE if unknown or forgotten
+     */
+    DispatchStatus status(Timestamp timestamp) {
+        lock.lock();
+        try {
+            timers.advance(System.currentTimeMillis(), this::expire);
+            Entry entry = find(pack(timestamp));
+            return entry == null ? DispatchStatus.NONE : entry.status;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timestamp creation timestamp of a bundle
+     * @return the bundle, null if unknown or it can no longer be resent
+     */
+    Bundle bundle(Timestamp timestamp) {
+        lock.lock();
+        try {
+            timers.advance(System.currentTimeMillis(), this::expire);
+            Entry entry = find(pack(timestamp));
+            return entry == null ? null : entry.bundle;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of statuses kept */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Timer of an entry fired: releases its bundle (keeping its status retentionMS longer), or forgets it
+     * @param entry the entry
+     */
+    private void expire(Entry entry) {
+        if (entry.bundle != null) {
+            entry.bundle = null;
+            entry.timer = timers.schedule(entry, System.currentTimeMillis() + retentionMS);
+        } else {
+            entry.timer = null;
+            forget(entry);
+        }
+    }
+
+    /**
+     * Removes an entry
+     * @param entry the entry, in the store
+     */
+    private void forget(Entry entry) {
+        if (entry.timer != null)
+            timers.cancel(entry.timer);
+        unlinkAge(entry);
+        remove(entry.key);
+    }
+
+    /**
+     * @param timestamp a creation timestamp
+     * @return it packed into a long: creation time in the high half, sequence number in the low half
+     */
+    private static long pack(Timestamp timestamp) {
+        return ((long) timestamp.creationTime().timeInMS << 32) | (timestamp.seqNum() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key a packed key
+     * @param mask table length - 1
+     * @return the slot to start looking for it at
+     */
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;//spreads nearby timestamps over the table
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @param key a packed key
+     * @return its entry, null if none
+     */
+    private Entry find(long key) {
+        int mask = table.length - 1;
+        for (int i = slot(key, mask); table[i] != null; i = (i + 1) & mask)
+            if (table[i].key == key)
+                return table[i];
+        return null;
+    }
+
+    /**
+     * Adds an entry to the table, growing it if it would be more than half full
+     * @param entry the entry, its key not in the table
+     */
+    private void insert(Entry entry) {
+        if (2 * (size + 1) > table.length) {
+            Entry[] old = table;
+            table = new Entry[old.length * 2];
+            for (Entry e : old)
+                if (e != null)
+                    place(e);
+        }
+        place(entry);
+        size++;
+    }
+
+    /**
+     * Puts an entry in the first free slot from its own
+     * @param entry the entry
+     */
+    private void place(Entry entry) {
+        int mask = table.length - 1;
+        int i = slot(entry.key, mask);
+        while (table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = entry;
+    }
+
+    /**
+     * Removes a key from the table, moving back the entries after it that would no longer be found
+     * @param key the key, in the table
+     */
+    private void remove(long key) {
+        int mask = table.length - 1;
+        int i = slot(key, mask);
+        while (table[i].key != key)
+            i = (i + 1) & mask;
+        table[i] = null;
+        size--;
+        for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+            int home = slot(table[j].key, mask);
+            //move it into the hole if its home slot is not between the hole and where it is (cyclically)
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                table[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * Makes an entry the most recently updated
+     * @param entry the entry, not in the update order
+     */
+    private void linkNewest(Entry entry) {
+        entry.older = newest;
+        entry.newer = null;
+        if (newest != null)
+            newest.newer = entry;
+        else
+            oldest = entry;
+        newest = entry;
+    }
+
+    /**
+     * Takes an entry out of the update order
+     * @param entry the entry, in the update order
+     */
+    private void unlinkAge(Entry entry) {
+        if (entry.older != null)
+            entry.older.newer = entry.newer;
+        else
+            oldest = entry.newer;
+        if (entry.newer != null)
+            entry.newer.older = entry.older;
+        else
+            newest = entry.older;
+        entry.older = entry.newer = null;
+    }
+}
@@ -0,0 +1,716 @@
+package BPv7;
+
+import BPv7.containers.Bundle;
+import BPv7.containers.BundlePriority;
+import BPv7.utils.TimingWheel;
+import DTCP.interfaces.Contact;
+import DTCP.interfaces.DTCPInterface;
+import DTCP.interfaces.ReachableStatus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.logging.Logger;
+
+/**
+ * Bundles waiting to be sent, in one lane (FIFO queue) per next hop.
+ * The next hops are split into shards (by the hash of their address), one per dispatcher worker, each with its own
+ * lock: a worker only takes bundles of its own shard, so workers never wait on each other nor send to the same next
+ * hop. A lane is handed to one bundle at a time: once its bundle is taken the lane is out of turn until the send
+ * completes (release), so bundles to one next hop are sent one after another, in the order they were queued.
+ * <p>
+ * A worker takes bundles round-robin from the lanes of its shard whose link is up, one bundle per lane per turn, so
+ * every next hop that can be reached gets an equal share and a disrupted one does not hold up the others.
+ * Within a lane, bundles wait in one FIFO queue per priority class (Bundle.getPriority) and the highest class goes
+ * first, except that a lower class passed over starvationLimit times in a row gets the next turn, so bulk transfers
+ * still move while control traffic keeps coming.
+ * With earliest-deadline-first scheduling (edf) each class is ordered by the end of the lifetime of its bundles
+ * instead, so a bundle about to expire is not stuck behind ones with hours left, and bundles that can no longer be sent
+ * before their lifetime ends are deleted instead of being sent. Every lane keeps a simulated FIFO clock to count the
+ * bundles sent in time that FIFO order would have sent too late (deletions avoided, an estimate).
+ * A lane whose link is down is planned into the upcoming contacts of its next hop (DTCPInterface.nextContact), in
+ * order, as many bytes per contact as it is expected to carry: bundles that fit in no contact before their lifetime
+ * ends are deleted right away (no timely contact), the others are parked until the first contact starts. A worker
+ * sleeps while every lane of its shard with bundles is parked or has a send in flight.
+ * <p>
+ * Every bundle waiting is also scheduled on a timing wheel (one per shard) at the end of its lifetime, so a bundle that
+ * expires while waiting is taken out of its lane and deleted then (by the expiry thread of its shard), instead of when
+ * the dispatcher gets to it.
+ */
+class OutboundLanes {//package-private (not private/public)
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(OutboundLanes.class.getName());
+
+    /** Lane of bundles with no next hop (no route or unknown destination), always served so they are dropped */
+    private static final String UNROUTABLE = "";
+    /** Length of a tick of the expiry wheel (ms), how late an expired bundle may be deleted */
+    private static final long EXPIRY_TICK_MS = 10;
+    /** How often (ms) the expiry thread of a shard logs its EDF counts while bundles wait, if they changed */
+    private static final long EDF_REPORT_MS = 10_000;
+
+    /** Number of priority classes (BundlePriority), a class is the index of a queue of a lane */
+    private static final int CLASSES = BundlePriority.values().length;
+
+    /**
+     * A bundle waiting in a lane
+     */
+    private static class Queued {
+        /** The bundle */
+        final Bundle bundle;
+        /** Lane it is waiting in */
+        final Lane lane;
+        /** Its priority class (BundlePriority ordinal, higher goes first) */
+        final int priority;
+        /** When its lifetime is over (ms since epoch) */
+        final long expiresAt;
+        /** Position in its lane, lower first within its class (with edf, among bundles expiring at the same time) */
+        long seq;
+        /** When a FIFO lane would have finished sending it (ms since epoch, estimated), 0 if unknown (resent bundles) */
+        double fifoDue = 0;
+        /** Its timer on the expiry wheel */
+        TimingWheel.Timer<Queued> expiry;
+        /** True once it expired while waiting: it stays in its queue, skipped, until it reaches the head */
+        boolean removed = false;
+
+        /**
+         * @param bundle the bundle
+         * @param lane lane it is waiting in
+         * @param expiresAt when its lifetime is over (ms since epoch)
+         */
+        Queued(Bundle bundle, Lane lane, long expiresAt) {
+            this.bundle = bundle;
+            this.lane = lane;
+            this.priority = bundle.getPriority().ordinal();
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** Order of the bundles of a class with edf: the first to expire first, then in the order they were queued */
+    private static final Comparator<Queued> BY_DEADLINE =
+            Comparator.<Queued>comparingLong(queued -> queued.expiresAt).thenComparingLong(queued -> queued.seq);
+
+    /**
+     * Bundles to one next hop
+     */
+    private static class Lane {
+        /** Address of the next hop */
+        final String nextHop;
+        /** Bundles waiting by priority class, oldest first in each (FIFO) or the first to expire first (edf) */
+        final List<Queue<Queued>> bundles;
+        /** Times in a row each class had bundles waiting while a higher one was served */
+        final int[] passedOver = new int[CLASSES];
+        /** Bundles waiting in all classes */
+        int size = 0;
+        /** When a parked lane is looked at again (ms since epoch), 0 if it is not parked */
+        long wakeAt = 0;
+        /** True while a bundle taken from it is being sent (it is then neither in turn nor parked) */
+        boolean busy = false;
+        /** Positions given to the next bundle put at the head and at the end of a class */
+        long head = 0, tail = 0;
+        /** When a FIFO lane would have finished sending every bundle queued so far (ms since epoch, estimated, edf) */
+        double fifoClock = 0;
+        /** Average time a send to the next hop took (ms, exponentially weighted, edf), 0 until one completed */
+        double sendMS = 0;
+        /** When the bundle being sent was taken (System.nanoTime) */
+        long takenAt;
+
+        /**
+         * Creates an empty lane
+         * @param nextHop address of the next hop
+         * @param edf true to order each class by the end of the lifetime of its bundles, false for FIFO
+         */
+        Lane(String nextHop, boolean edf) {
+            this.nextHop = nextHop;
+            this.bundles = new ArrayList<>(CLASSES);
+            for (int i = 0; i < CLASSES; i++)
+                bundles.add(edf ? new PriorityQueue<>(BY_DEADLINE) : new ArrayDeque<>());
+        }
+
+        /** @return true if no bundle waits */
+        boolean isEmpty() { return size == 0; }
+
+        /**
+         * Puts a bundle in the queue of its class
+         * @param queued the bundle
+         * @param first true to put it at the head of the queue, false at the end (with edf, ahead of or behind the
+         *              bundles expiring at the same time)
+         */
+        void add(Queued queued, boolean first) {
+            Queue<Queued> queue = bundles.get(queued.priority);
+            queued.seq = first ? --head : tail++;
+            if (first && queue instanceof ArrayDeque<Queued> deque)
+                deque.addFirst(queued);
+            else
+                queue.add(queued);
+            size++;
+        }
+
+        /**
+         * Takes a bundle out of its lane in O(1): it is only marked, and dropped once it reaches the head of its queue
+         * @param queued the bundle, waiting in this lane
+         */
+        void remove(Queued queued) {
+            queued.removed = true;
+            size--;
+        }
+
+        /**
+         * @param c a class
+         * @return its queue, with the bundles removed from its head dropped (its head, if any, is waiting)
+         */
+        Queue<Queued> live(int c) {
+            Queue<Queued> queue = bundles.get(c);
+            while (queue.peek() != null && queue.peek().removed)
+                queue.poll();
+            return queue;
+        }
+
+        /**
+         * Picks the class to serve next: the highest with bundles waiting, unless a lower one was passed over
+         * starvationLimit times in a row (the lowest such class then)
+         * @param starvationLimit times in a row a class may be passed over
+         * @return the class, -1 if no bundle waits
+         */
+        int nextClass(int starvationLimit) {
+            int highest = -1;
+            for (int c = CLASSES - 1; c >= 0 && highest == -1; c--)
+                if (!live(c).isEmpty())
+                    highest = c;
+            for (int c = 0; c < highest; c++)
+                if (!live(c).isEmpty() && passedOver[c] >= starvationLimit)
+                    return c;
+            return highest;
+        }
+
+        /**
+         * Takes the next bundle of a class, counting the lower classes with bundles waiting as passed over (a higher
+         * class keeps its count when a starved class goes ahead of it)
+         * @param served the class (from nextClass, which dropped the removed bundles from the head of every class)
+         * @return the bundle
+         */
+        Queued poll(int served) {
+            for (int c = 0; c < CLASSES; c++)
+                if (c == served || bundles.get(c).isEmpty())
+                    passedOver[c] = 0;
+                else if (c < served)
+                    passedOver[c]++;
+            size--;
+            return bundles.get(served).poll();
+        }
+
+        /**
+         * @param c a class
+         * @return its bundles in the order they are served (the queue itself if FIFO, a sorted copy with edf), removed
+         *  ones included
+         */
+        Collection<Queued> inOrder(int c) {
+            if (bundles.get(c) instanceof ArrayDeque<Queued> deque)
+                return deque;
+            List<Queued> ordered = new ArrayList<>(bundles.get(c));
+            ordered.sort(BY_DEADLINE);
+            return ordered;
+        }
+    }
+
+    /**
+     * The lanes of a share of the next hops, served by one dispatcher worker
+     */
+    private class Shard {
+        /** Index of the shard (and of the worker serving it) */
+        final int index;
+        /** Guards the lanes of the shard */
+        final ReentrantLock lock = new ReentrantLock();
+        /** Signalled when a bundle is added or a lane is released */
+        final Condition added = lock.newCondition();
+        /** Signalled when a bundle expiring before the expiry thread wakes up is scheduled */
+        final Condition scheduled = lock.newCondition();
+        /** When the expiry thread wakes up next (ms since epoch), Long.MAX_VALUE while no bundle waits */
+        long expiryWakeAt = Long.MAX_VALUE;
+        /** End of the lifetime of every bundle waiting */
+        final TimingWheel<Queued> expiries = new TimingWheel<>(EXPIRY_TICK_MS, System.currentTimeMillis());
+        /** Lanes with bundles waiting or a send in flight, by next hop (other lanes are removed) */
+        final Map<String, Lane> lanes = new HashMap<>();
+        /** Lanes with bundles waiting whose link may be up, in the order they are served */
+        final ArrayDeque<Lane> turns = new ArrayDeque<>();
+        /** Lanes with bundles waiting whose link is down, the first to wake up first */
+        final PriorityQueue<Lane> parked = new PriorityQueue<>(Comparator.comparingLong(lane -> lane.wakeAt));
+        /** Every bundle taken and not released yet, as it waited in its lane */
+        final Map<Bundle, Queued> inFlight = new IdentityHashMap<>();
+        /** Bundles waiting in all lanes */
+        int size = 0;
+        /** Bundles sent in time that FIFO order would have sent after their lifetime ended (estimated, edf) */
+        long deletionsAvoided = 0;
+        /** Bundles deleted unsent because they could no longer be sent before their lifetime ends (edf) */
+        long hopelessSkipped = 0;
+
+        /**
+         * Creates an empty shard, and starts the thread deleting the bundles that expire in it
+         * @param index index of the shard
+         */
+        Shard(int index) {
+            this.index = index;
+            Thread expiryThread = new Thread(this::expire, "bundle-expiry-" + index);
+            expiryThread.setDaemon(true);
+            expiryThread.start();
+        }
+
+        /**
+         * Adds a bundle at the end of the lane of a next hop
+         * @param bundle bundle to send
+         * @param nextHop address of its next hop (UNROUTABLE if none)
+         */
+        void add(Bundle bundle, String nextHop) {
+            lock.lock();
+            try {
+                Lane lane = lanes.get(nextHop);
+                if (lane == null) {
+                    lane = new Lane(nextHop, edf);
+                    lanes.put(nextHop, lane);
+                    turns.addLast(lane);
+                }
+                long now = System.currentTimeMillis();
+                Queued queued = new Queued(bundle, lane, expiresAt(bundle, now));
+                if (edf) {//FIFO would send it once everything queued before it is sent
+                    lane.fifoClock = Math.max(now, lane.fifoClock)
+                            + (linkRate != 0 ? transmitMS(bundle) : lane.sendMS);
+                    queued.fifoDue = lane.fifoClock;
+                }
+                enqueue(queued, false);
+                if (lane.wakeAt != 0 && queued.expiresAt <= lane.wakeAt) {
+                    //parked, but this bundle expires before the next contact: plan the lane again
+                    parked.remove(lane);
+                    lane.wakeAt = 0;
+                    turns.addLast(lane);
+                }
+                added.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Puts a bundle in its lane and schedules its expiry (the lock is held)
+         * @param queued the bundle
+         * @param first true to put it at the head of its lane, false at the end
+         */
+        private void enqueue(Queued queued, boolean first) {
+            queued.expiry = expiries.schedule(queued, queued.expiresAt);
+            queued.lane.add(queued, first);
+            size++;
+            if (queued.expiresAt < expiryWakeAt)
+                scheduled.signal();
+        }
+
+        /**
+         * Takes the next bundle to send: the next bundle (by priority) of the next lane (round-robin) whose link is up
+         * and that has no send in flight. Waits until there is one, deleting the bundles with no timely contact (or,
+         * with edf, that expired) found meanwhile.
+         * @return the bundle, to release once its send completes
+         * @throws InterruptedException if interrupted while waiting
+         */
+        Bundle take() throws InterruptedException {
+            List<Bundle> noContact = new ArrayList<>();
+            List<Bundle> lapsed = new ArrayList<>();
+            while (true) {
+                Bundle next;
+                lock.lockInterruptibly();
+                try {
+                    while ((next = poll(noContact, lapsed)) == null && noContact.isEmpty() && lapsed.isEmpty()) {
+                        if (parked.isEmpty())
+                            added.await();
+                        else//every lane with bundles is waiting for a contact (or a send)
+                            added.await(Math.max(1, parked.peek().wakeAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                for (Bundle bundle : noContact)
+                    noTimelyContact.accept(bundle);
+                noContact.clear();
+                for (Bundle bundle : lapsed)
+                    expired.accept(bundle);
+                lapsed.clear();
+                if (next != null)
+                    return next;
+            }
+        }
+
+        /**
+         * Takes the next bundle to send if there is one, planning (and parking) the lanes whose link is down on the way
+         * @param noContact where to put the bundles found to have no timely contact
+         * @param lapsed where to put the bundles found expired (edf)
+         * @return the bundle, or null if none can be sent now
+         */
+        private Bundle poll(List<Bundle> noContact, List<Bundle> lapsed) {
+            long now = System.currentTimeMillis();
+            while (!parked.isEmpty() && parked.peek().wakeAt <= now) {
+                Lane lane = parked.poll();
+                lane.wakeAt = 0;
+                turns.addLast(lane);
+            }
+
+            for (int i = turns.size(); i > 0; i--) {
+                Lane lane = turns.pollFirst();
+                if (edf && skipHopeless(lane, now, noContact, lapsed)) {
+                    lanes.remove(lane.nextHop);//not busy, it was in turn
+                    continue;
+                }
+                int served = lane.nextClass(starvationLimit);//lanes in turns are never empty
+                Queued next = lane.bundles.get(served).peek();
+                if (!lane.nextHop.equals(UNROUTABLE) && dtcp.canReachHop(lane.nextHop) == ReachableStatus.EXPECTED_DOWN) {
+                    plan(lane, now, noContact);
+                    continue;
+                }
+                lane.poll(served);
+                expiries.cancel(next.expiry);
+                size--;
+                if (edf && next.fifoDue > next.expiresAt)
+                    deletionsAvoided++;
+                lane.busy = true;//back in turn once released
+                lane.takenAt = System.nanoTime();
+                inFlight.put(next.bundle, next);
+                return next.bundle;
+            }
+            return null;
+        }
+
+        /**
+         * @param bundle a bundle taken and not released yet
+         * @return address of the next hop of its lane, null if it has none (UNROUTABLE) or was not taken
+         */
+        String nextHop(Bundle bundle) {
+            lock.lock();
+            try {
+                Queued taken = inFlight.get(bundle);
+                return taken == null || taken.lane.nextHop.equals(UNROUTABLE) ? null : taken.lane.nextHop;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gives back the lane of a bundle taken, once its send completed
+         * @param bundle the bundle
+         * @param retry true to put it back at the head of its lane (to be sent again before the bundles after it)
+         */
+        void release(Bundle bundle, boolean retry) {
+            lock.lock();
+            try {
+                Queued taken = inFlight.remove(bundle);
+                if (taken == null) {
+                    logger.warning("Released bundle " + bundle.getLoggingBundleId() + " that was not taken from shard " + index);
+                    return;
+                }
+                Lane lane = taken.lane;
+                lane.busy = false;
+                if (edf) {
+                    double sendMS = (System.nanoTime() - lane.takenAt) / 1e6;
+                    lane.sendMS = lane.sendMS == 0 ? sendMS : lane.sendMS + (sendMS - lane.sendMS) / 8;
+                }
+                if (retry)
+                    enqueue(new Queued(bundle, lane, taken.expiresAt), true);//same deadline, so the same place with edf
+                if (lane.isEmpty()) {
+                    lanes.remove(lane.nextHop);
+                } else {
+                    turns.addLast(lane);
+                    added.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Takes out of a lane the bundles at the head of each class that could not reach its next hop before their
+         * lifetime ends even if sent now: those already expired and, if the link rate is known, those whose lifetime ends
+         * before they are transmitted. With edf these are the first bundles of their class
+         * @param lane the lane, in turn
+         * @param now current time (ms since epoch)
+         * @param noContact where to put the bundles that cannot be transmitted in time
+         * @param lapsed where to put the bundles already expired
+         * @return true if the lane is left empty
+         */
+        private boolean skipHopeless(Lane lane, long now, List<Bundle> noContact, List<Bundle> lapsed) {
+            for (int c = 0; c < CLASSES; c++) {
+                Queued head;
+                while ((head = lane.live(c).peek()) != null && head.expiresAt <= now + transmitMS(head.bundle)) {
+                    lane.bundles.get(c).poll();
+                    lane.size--;
+                    expiries.cancel(head.expiry);
+                    size--;
+                    hopelessSkipped++;
+                    (head.expiresAt <= now ? lapsed : noContact).add(head.bundle);
+                }
+            }
+            return lane.isEmpty();
+        }
+
+        /**
+         * Plans the bundles of a lane whose link is down into the upcoming contacts of its next hop, in order (highest
+         * priority class first, in the order each class is served), and parks it until the first contact starts. Bundles that fit in
+         * no contact before their lifetime ends are taken out
+         * (those already expired are left to the expiry wheel, which deletes them within a tick).
+         * @param lane the lane
+         * @param now current time (ms since epoch)
+         * @param noContact where to put the bundles taken out
+         */
+        private void plan(Lane lane, long now, List<Bundle> noContact) {
+            long horizon = now;
+            for (Queue<Queued> queue : lane.bundles)
+                for (Queued queued : queue)
+                    horizon = Math.max(horizon, queued.expiresAt);
+
+            Contact first = dtcp.nextContact(lane.nextHop, now, horizon);
+            Contact contact = first;
+            long room = contact == null ? 0 : contact.capacity();
+            List<Queued> doomed = new ArrayList<>();
+            for (int c = CLASSES - 1; c >= 0; c--) {
+                for (Queued queued : lane.inOrder(c)) {
+                    if (queued.removed || queued.expiresAt <= now)
+                        continue;
+                    long length = queued.bundle.getPayloadLength();
+                    while (contact != null && queued.expiresAt > contact.start() && length > room) {//does not fit, try the next one
+                        contact = dtcp.nextContact(lane.nextHop, contact.end(), horizon);
+                        room = contact == null ? 0 : contact.capacity();
+                    }
+                    if (contact == null || queued.expiresAt <= contact.start()) {
+                        doomed.add(queued);
+                        continue;
+                    }
+                    room -= length;
+                }
+                if (doomed.isEmpty())
+                    continue;
+                lane.bundles.get(c).removeAll(new HashSet<>(doomed));//Queued has identity equality
+                lane.size -= doomed.size();
+                size -= doomed.size();
+                for (Queued queued : doomed) {
+                    expiries.cancel(queued.expiry);
+                    noContact.add(queued.bundle);
+                }
+                doomed.clear();
+            }
+
+            if (lane.isEmpty()) {
+                lanes.remove(lane.nextHop);
+                return;
+            }
+            //only expired bundles are kept if no contact was found, the wheel takes them out within a tick
+            lane.wakeAt = first == null ? now + EXPIRY_TICK_MS : Math.max(now + 1, first.start());
+            parked.add(lane);
+            logger.fine("Parked lane of " + lane.nextHop + " (" + lane.size + " bundles) until its next contact in "
+                    + (lane.wakeAt - now) + " ms, " + noContact.size() + " bundles without a timely contact");
+        }
+
+        /**
+         * Expiry thread: deletes the bundles whose lifetime ends while they wait, sleeping until the wheel has something
+         * due (or a bundle expiring sooner is scheduled)
+         */
+        private void expire() {
+            List<Bundle> expiredBundles = new ArrayList<>();
+            long nextReport = System.currentTimeMillis() + EDF_REPORT_MS;
+            long reported = 0;
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                lock.lock();
+                try {
+                    long now = System.currentTimeMillis();
+                    expiries.advance(now, queued -> {
+                        remove(queued);
+                        expiredBundles.add(queued.bundle);
+                    });
+                    if (edf && now >= nextReport) {
+                        if (deletionsAvoided + hopelessSkipped != reported) {
+                            logger.info("[NetStats] EDF dispatch shard " + index + ": " + deletionsAvoided
+                                    + " deletions avoided (estimated), " + hopelessSkipped + " bundles deleted unsent");
+                            reported = deletionsAvoided + hopelessSkipped;
+                        }
+                        nextReport = now + EDF_REPORT_MS;
+                    }
+                    expiryWakeAt = expiries.nextDue();
+                    if (edf && !expiries.isEmpty())
+                        expiryWakeAt = Math.min(expiryWakeAt, nextReport);
+                    if (expiredBundles.isEmpty()) {//else delete them first, and come back
+                        if (expiryWakeAt == Long.MAX_VALUE)
+                            scheduled.await();
+                        else if (expiryWakeAt > now)
+                            scheduled.await(expiryWakeAt - now, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    logger.warning("Bundle expiry thread interrupted, carrying on: " + e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+                for (Bundle bundle : expiredBundles)
+                    expired.accept(bundle);
+                expiredBundles.clear();
+            }
+        }
+
+        /**
+         * Takes a bundle out of its lane, and the lane out of the turns or the parked lanes if it is left empty
+         * (a lane with a send in flight stays until it is released)
+         * @param queued the bundle
+         */
+        private void remove(Queued queued) {
+            Lane lane = queued.lane;
+            lane.remove(queued);
+            size--;
+            if (!lane.isEmpty() || lane.busy)
+                return;
+            lanes.remove(lane.nextHop);
+            if (lane.wakeAt != 0)
+                parked.remove(lane);
+            else
+                turns.remove(lane);
+        }
+    }
+
+    /** Finds next hops and whether they can be reached */
+    private final DTCPInterface dtcp;
+    /** Deletes bundles that cannot reach their next hop before their lifetime ends (called without a lock held) */
+    private final Consumer<Bundle> noTimelyContact;
+    /** Deletes bundles whose lifetime ended while they were waiting (called without a lock held) */
+    private final Consumer<Bundle> expired;
+    /** Times in a row a priority class with bundles waiting may be passed over for a higher one in a lane */
+    private final int starvationLimit;
+    /** True to order each class of a lane by the end of the lifetime of its bundles (EDF), false for FIFO */
+    private final boolean edf;
+    /** Bytes per second a link carries, 0 if unknown */
+    private final long linkRate;
+    /** The shards, by index */
+    private final Shard[] shards;
+
+    /**
+     * Creates empty lanes, and starts the threads deleting the bundles that expire in them
+     * @param dtcp finds next hops and whether they can be reached
+     * @param noTimelyContact deletes bundles that cannot reach their next hop before their lifetime ends
+     * @param expired deletes bundles whose lifetime ended while they were waiting
+     * @param shards number of shards (dispatcher workers)
+     * @param starvationLimit times in a row a priority class with bundles waiting may be passed over for a higher one
+     * @param edf true for earliest-deadline-first scheduling within each priority class, false for FIFO
+     * @param linkRate bytes per second a link carries, 0 if unknown
+     */
+    OutboundLanes(DTCPInterface dtcp, Consumer<Bundle> noTimelyContact, Consumer<Bundle> expired, int shards,
+                  int starvationLimit, boolean edf, long linkRate) {
+        this.dtcp = dtcp;
+        this.starvationLimit = starvationLimit;
+        this.edf = edf;
+        this.linkRate = linkRate;
+        this.noTimelyContact = noTimelyContact;
+        this.expired = expired;
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++)
+            this.shards[i] = new Shard(i);
+    }
+
+    /** @return the number of shards (dispatcher workers) */
+    int shards() { return shards.length; }
+
+    /**
+     * Adds a bundle at the end of the lane of its next hop
+     * @param bundle bundle to send
+     * @return true (lanes are not bounded)
+     */
+    boolean add(Bundle bundle) {
+        String nextHop = dtcp.nodeToNetwork(bundle.getPrimary().getDestNode(), expiresAt(bundle, System.currentTimeMillis()));
+        if (nextHop == null)
+            nextHop = UNROUTABLE;
+        shards[Math.floorMod(nextHop.hashCode(), shards.length)].add(bundle, nextHop);
+        return true;
+    }
+
+    /**
+     * Adds a bundle at the end of the lane of its next hop
+     * @param bundle bundle to send
+     * @return true (lanes are not bounded)
+     */
+    boolean offer(Bundle bundle) { return add(bundle); }
+
+    /**
+     * Takes the next bundle to send from a shard: the next bundle of its next lane (round-robin) whose link is up
+     * and that has no send in flight. Waits until there is one, deleting the bundles with no timely contact found
+     * meanwhile. The bundle must be released (release) once its send completes, its lane waits until then
+     * @param shard index of the shard (of the worker taking it)
+     * @return the bundle
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Bundle take(int shard) throws InterruptedException { return shards[shard].take(); }
+
+    /**
+     * Gets the next hop a bundle taken must be sent to: the one its lane was picked for when it was added, so it goes
+     * where the lane's link was checked (and the lane's shard owns it) even if routing changed since
+     * @param shard index of the shard it was taken from
+     * @param bundle the bundle, taken and not released yet
+     * @return address of the next hop, null if there was no route for it
+     */
+    String nextHop(int shard, Bundle bundle) { return shards[shard].nextHop(bundle); }
+
+    /**
+     * Gives back the lane of a bundle taken, once its send completed (or was given up)
+     * @param shard index of the shard it was taken from
+     * @param bundle the bundle
+     * @param retry true to put it back at the head of its lane, to be sent again before the bundles after it
+     */
+    void release(int shard, Bundle bundle, boolean retry) { shards[shard].release(bundle, retry); }
+
+    /** @return bundles waiting in all lanes */
+    int size() { return (int) sum(shard -> shard.size); }
+
+    /**
+     * @return bundles sent in time that FIFO order would have sent after their lifetime ended, in all shards
+     *  (estimated from the simulated FIFO clock of each lane, 0 unless edf)
+     */
+    long deletionsAvoided() { return sum(shard -> shard.deletionsAvoided); }
+
+    /** @return bundles deleted unsent because they could no longer be sent before their lifetime ends (0 unless edf) */
+    long hopelessSkipped() { return sum(shard -> shard.hopelessSkipped); }
+
+    /**
+     * @param count a count of a shard (read with its lock held)
+     * @return the count summed over all shards
+     */
+    private long sum(ToLongFunction<Shard> count) {
+        long sum = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                sum += count.applyAsLong(shard);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param bundle a bundle
+     * @return how long (ms) transmitting it takes at linkRate, 0 if it is unknown
+     */
+    private double transmitMS(Bundle bundle) {
+        return linkRate == 0 ? 0 : bundle.getPayloadLength() * 1000.0 / linkRate;
+    }
+
+    /**
+     * @param bundle a bundle
+     * @param now current time (ms since epoch)
+     * @return when its lifetime is over (ms since epoch), the same whenever it is asked (deadlines of bundles queued
+     *  one after the other with the same lifetime do not cross)
+     */
+    private static long expiresAt(Bundle bundle, long now) {
+        return bundle.getPrimary().getCreationTimestamp().creationTime().toEpochMillis(now) + bundle.getPrimary().getLifetime();
+    }
+}
@@ -1,6 +1,10 @@
 package BPv7.containers;
 
+import BPv7.utils.CBOREncoder;
+
 import javax.naming.directory.InvalidAttributesException;
+import java.io.DataOutput;
+import java.io.IOException;
 
 /**
  * Parent class for primary blocks and canonical blocks
@@ -11,6 +15,18 @@ public abstract class Block implements NetworkSerializable {
      */
     protected static final int GLOBAL_CRC_TYPE = 1;
 
+    /**
+     * Number of times this block was changed, so that cached encodings of its bundle can tell they are stale
+     * @implNote not serialized, and every setter must call modified()
+     */
+    private int modCount = 0;
+
+    /** Records that this block was changed (call from every setter) */
+    protected void modified() { modCount++; }
+
+    /** @return number of times this block was changed */
+    int getModCount() { return modCount; }
+
     //other functions
     /**
      * Checks if a block is completely ready to be encoded (all required fields are set)
@@ -26,4 +42,19 @@ public abstract class Block implements NetworkSerializable {
      * @throws InvalidAttributesException if block is in an unfixable state
      */
     abstract void readyForTransmission(boolean bundleIsAdminRecord, NodeID src) throws InvalidAttributesException;
-}
\ No newline at end of file
+
+    /**
+     * Writes this block (CRC included) as a CBOR array, following RFC 9171 section 4.3
+     * @param out encoder to write to
+     * @throws IllegalArgumentException if a field cannot be encoded (missing or negative)
+     */
+    abstract void writeCBOR(CBOREncoder out) throws IllegalArgumentException;
+
+    /**
+     * Writes this block in the fixed-layout binary format (big-endian fields, no CRC)
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     * @throws IllegalArgumentException if a field cannot be encoded
+     */
+    abstract void writeBinary(DataOutput out) throws IOException, IllegalArgumentException;
+}
@@ -1,21 +1,28 @@
 package BPv7.containers;
 
+import BPv7.interfaces.Codec;
+import BPv7.utils.CBORDecoder;
+import BPv7.utils.CBOREncoder;
+import BPv7.utils.JsonCodec;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.security.InvalidParameterException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.InvalidPropertiesFormatException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
  * Contains all the information pertinent to a BP bundle
- * @implSpec CBOR:: todo (array?)
+ * @implSpec CBOR indefinite-length array: [primary, other blocks..., payload, CBOR "break" stop code]
  */
 public class Bundle implements NetworkSerializable {
     /** ID of the null source, per BP specs */
@@ -33,6 +40,41 @@ public class Bundle implements NetworkSerializable {
     private PrimaryBlock primary = null;
     /** Payload block (actual content being sent) */
     private PayloadBlock payload = null;
+    /**
+     * Every block but the primary block, still CBOR-encoded exactly as received, or null once they are
+     * decoded into blocks and payload (see readCBORLazy). Forwarded as-is until someone asks for the blocks.
+     * @implNote volatile and only ever set to null after blocks and payload are set, so writers that see
+     *  null also see the decoded blocks
+     */
+    private volatile byte[] rawBlocks = null;
+    /** Length of the payload while it is still in rawBlocks */
+    private int rawPayloadLength = -1;
+    /** Priority from the priority block in rawBlocks (while they are still encoded), null if there is none */
+    private BundlePriority rawPriority = null;
+    /** Number of times a block of this bundle was replaced (see encodingStamp) */
+    private int modCount = 0;
+    /** Encodings cached by getEncoding, at most one per codec (never modified, replaced as a whole) */
+    private volatile CachedEncoding[] encodings = new CachedEncoding[0];
+
+    /**
+     * An encoding of this bundle
+     * @param codecId id of the codec that produced it
+     * @param stamp encodingStamp() when it was produced
+     * @param bytes the encoded bundle
+     */
+    private record CachedEncoding(int codecId, long stamp, byte[] bytes) {}
+
+    /**
+     * Encoder buffer reused by every bundle encoded on a given thread, so that encoding only
+     * allocates the returned array (the buffer grows to the largest bundle that thread has sent)
+     */
+    private static final ThreadLocal<CBOREncoder> encoders = ThreadLocal.withInitial(CBOREncoder::new);
+    /** Version of the binary format written by writeBinary (first byte of the encoding) */
+    private static final int BINARY_FORMAT_VERSION = 1;
+    /** Sanity limit on extension blocks in the binary format, so a bad count can't make us loop forever */
+    private static final int MAX_EXTENSION_BLOCKS = 255;
+    /** Initial capture buffer size for readCBORLazy (it grows as needed) */
+    private static final int LAZY_CAPTURE_SIZE = 4096;
 
 //    /**
 //     * Constructor
@@ -113,21 +155,21 @@ public class Bundle implements NetworkSerializable {
     @JsonIgnore
     @Override
     public byte[] getNetworkEncoding(final Logger logger) throws InvalidPropertiesFormatException {
-        ObjectMapper mapper = new ObjectMapper();
-
+        CBOREncoder out = encoders.get();
+        out.reset();
         try {
-            byte[] ret = mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(this);
-            logger.info("[UNIQUE IDENTIFIER] Wrote bundle as JSON (not logging for speed purposes");
-//            logger.info("Wrote this bundle as JSON:\n" + mapper.writerWithDefaultPrettyPrinter().writeValueAsString(this));
-            return ret;
-        } catch (JsonProcessingException e) {
+            writeCBOR(out);
+        } catch (IllegalArgumentException e) {
             logger.severe("ERROR! Unable to write bundle to byte[]: " + e.getMessage());
             throw new InvalidPropertiesFormatException(e.getMessage());
         }
+        logger.info("[UNIQUE IDENTIFIER] Wrote bundle as CBOR (not logging for speed purposes");
+        return out.toByteArray();
     }
 
     /**
-     * Decodes the byte array into the implementing object (each class only responsible for its own decoding)
+     * Decodes the byte array into the implementing object (each class only responsible for its own decoding).
+     * Accepts both CBOR and the JSON encoding older nodes still send.
      *
      * @param toDecode network-encoded array to decode
      * @param logger logger to log things with (containers don't get loggers -- no context)
@@ -136,10 +178,21 @@ public class Bundle implements NetworkSerializable {
      */
     @Override
     public Bundle deserializeNetworkEncoding(byte[] toDecode, final Logger logger) throws ParseException {
-        ObjectMapper mapper = new ObjectMapper();
+        if (toDecode.length > 0 && (toDecode[0] & 0xFF) == CBOREncoder.INDEFINITE_ARRAY) {
+            try {
+                Bundle ret = readCBOR(new CBORDecoder(toDecode));
+                logger.info("Deserialized bundle ID = \"" + ret.getLoggingBundleId() + "\"");
+                return ret;
+            } catch (ParseException e) {
+                logger.severe("ERROR! Unable to read a bundle from byte array (offset " + e.getErrorOffset()
+                        + "): " + e.getMessage());
+                throw e;
+            }
+        }
 
+        //not CBOR, so it must be the JSON format from before we did CBOR
         try {
-            Bundle ret = mapper.readValue(toDecode, Bundle.class);
+            Bundle ret = JsonCodec.mapper().readValue(toDecode, Bundle.class);
             logger.info("Deserialized bundle ID = \"" + ret.getLoggingBundleId() + "\"");
             return ret;
         } catch (IOException e) {
@@ -148,20 +201,331 @@ public class Bundle implements NetworkSerializable {
         }
     }
 
+    /**
+     * Encodes this bundle, reusing the previous encoding with the same codec if nothing changed since
+     * (resends, requeues and retries of the same bundle then cost nothing)
+     * @param codec codec to encode with
+     * @return the encoded bundle, shared with later callers, so it must not be modified
+     * @throws InvalidPropertiesFormatException if the bundle is not ready to be encoded
+     */
+    @JsonIgnore
+    public byte[] getEncoding(Codec codec) throws InvalidPropertiesFormatException {
+        long stamp = encodingStamp();
+        CachedEncoding[] cached = encodings;
+        for (CachedEncoding encoding : cached) {
+            if (encoding.codecId() == codec.id() && encoding.stamp() == stamp)
+                return encoding.bytes();
+        }
+        byte[] bytes = codec.encode(this);
+        List<CachedEncoding> updated = new ArrayList<>(cached.length + 1);
+        for (CachedEncoding encoding : cached) {
+            if (encoding.codecId() != codec.id())
+                updated.add(encoding);
+        }
+        updated.add(new CachedEncoding(codec.id(), stamp, bytes));
+        encodings = updated.toArray(new CachedEncoding[0]);
+        return bytes;
+    }
+
+    /**
+     * Sums the change counters of this bundle and its blocks. They only ever go up, so
+     * a different sum means something changed since an encoding was cached.
+     * @return the current stamp
+     */
+    private long encodingStamp() {
+        long stamp = modCount + (primary == null ? 0L : primary.getModCount());
+        if (payload != null)
+            stamp += payload.getModCount();
+        if (blocks != null) {
+            for (CanonicalBlock block : blocks)
+                stamp += block.getModCount();
+        }
+        return stamp;
+    }
+
+    /**
+     * Writes this bundle as a CBOR indefinite-length array of its blocks, payload block last
+     * @param out encoder to write to
+     * @throws IllegalArgumentException if the bundle is missing blocks or a block cannot be encoded
+     */
+    public void writeCBOR(CBOREncoder out) throws IllegalArgumentException {
+        byte[] raw = rawBlocks;
+        if (primary == null || (payload == null && raw == null))
+            throw new IllegalArgumentException("Bundle must have a primary block and a payload block");
+        writeCBORHeader(out);
+        if (raw != null) {
+            //nobody looked at the blocks, so they are still exactly what we received
+            out.writeRaw(raw, 0, raw.length);
+            out.writeBreak();
+            return;
+        }
+        if (blocks != null) {
+            for (CanonicalBlock block : blocks)
+                block.writeCBOR(out);
+        }
+        payload.writeCBOR(out);
+        out.writeBreak();
+    }
+
+    /**
+     * Writes the part of the CBOR encoding that comes before the canonical blocks (array head, primary block)
+     * @param out encoder to write to
+     * @throws IllegalArgumentException if the primary block cannot be encoded
+     */
+    public void writeCBORHeader(CBOREncoder out) throws IllegalArgumentException {
+        if (primary == null)
+            throw new IllegalArgumentException("Bundle must have a primary block");
+        out.writeIndefiniteArrayHeader();
+        primary.writeCBOR(out);
+    }
+
+    /**
+     * Reads a CBOR-encoded bundle (inverse of writeCBOR). Anything that does not conform is rejected.
+     * @param in decoder to read from
+     * @return the bundle
+     * @throws ParseException if the bundle is malformed in any way
+     */
+    public static Bundle readCBOR(CBORDecoder in) throws ParseException {
+        if (in.readArrayHeader() != -1)
+            throw new ParseException("A bundle must be an indefinite-length array", 0);
+        Bundle ret = new Bundle(PrimaryBlock.readCBOR(in), null, null);
+        ret.readCBORBlocks(in);
+        in.readBreak();
+        if (ret.payload == null)
+            throw new ParseException("Bundle has no payload block", in.position());
+        if (in.hasRemaining())
+            throw new ParseException("Unexpected bytes after the end of the bundle", in.position());
+        return ret;
+    }
+
+    /**
+     * Reads a CBOR-encoded bundle, but only decodes the primary block. The other blocks are checked
+     * (structure and CRCs, so bad bundles are still rejected here) and kept encoded until something asks for
+     * them, which a node that is only forwarding the bundle never does.
+     * @param in decoder to read from
+     * @return the bundle
+     * @throws ParseException if the bundle is malformed in any way
+     */
+    public static Bundle readCBORLazy(CBORDecoder in) throws ParseException { return readCBORLazy(in, null); }
+
+    /**
+     * Reads a CBOR-encoded bundle like readCBORLazy(CBORDecoder), telling someone about the primary block
+     * as soon as it is decoded (before the rest of the bundle is read)
+     * @param in decoder to read from
+     * @param onPrimary called with the bundle (primary block only) right after its primary block is read, may be null.
+     *                  If it starts copying what is read (CBORDecoder.beginTee), the copy is aborted as soon as a block
+     *                  turns out to be one to discard (extension blocks come before the payload, so none of it is copied)
+     * @return the bundle
+     * @throws ParseException if the bundle is malformed in any way
+     */
+    public static Bundle readCBORLazy(CBORDecoder in, Consumer<Bundle> onPrimary) throws ParseException {
+        if (in.readArrayHeader() != -1)
+            throw new ParseException("A bundle must be an indefinite-length array", 0);
+        Bundle ret = new Bundle(PrimaryBlock.readCBOR(in), null, null);
+        if (onPrimary != null)
+            onPrimary.accept(ret);
+        boolean discardBlocks = false;
+        in.beginCapture(LAZY_CAPTURE_SIZE);
+        while (!in.peekBreak()) {
+            if (ret.rawPayloadLength >= 0)
+                throw new ParseException("Payload block must be the last block in a bundle", in.position());
+            int skipped = CanonicalBlock.skipCBOR(in, ret);
+            if (skipped >= 0)
+                ret.rawPayloadLength = skipped;
+            else if (skipped == CanonicalBlock.DISCARDED_BLOCK) {
+                discardBlocks = true;
+                //forwarded without that block, so whoever relays the bytes as they arrive must not finish doing so
+                in.abortTee("Bundle has a block to discard, it cannot be relayed as it arrives");
+            }
+        }
+        ret.rawBlocks = in.endCapture();
+        in.readBreak();
+        if (ret.rawPayloadLength < 0)
+            throw new ParseException("Bundle has no payload block", in.position());
+        if (in.hasRemaining())
+            throw new ParseException("Unexpected bytes after the end of the bundle", in.position());
+        if (discardBlocks)
+            ret.materialize();//so the blocks we are supposed to drop really are dropped when forwarding
+        return ret;
+    }
+
+    /**
+     * Reads the canonical blocks of a CBOR-encoded bundle into this bundle, up to the "break" or the end of input
+     * @param in decoder to read from
+     * @throws ParseException if a block is malformed or the payload block is not last
+     */
+    private void readCBORBlocks(CBORDecoder in) throws ParseException {
+        while (in.hasRemaining() && !in.peekBreak()) {
+            if (payload != null)
+                throw new ParseException("Payload block must be the last block in a bundle", in.position());
+            CanonicalBlock block = CanonicalBlock.readCBOR(in);
+            if (block instanceof PayloadBlock p) {
+                payload = p;
+            } else if (block != null) {
+                if (blocks == null)
+                    blocks = new ArrayList<>();
+                blocks.add(block);
+            }
+        }
+    }
+
+    /**
+     * Decodes the blocks kept encoded by readCBORLazy (once, does nothing after that)
+     * @throws IllegalStateException if they no longer decode, which cannot happen as they were checked when read
+     */
+    private void materialize() throws IllegalStateException {
+        if (rawBlocks == null)
+            return;
+        synchronized (this) {
+            byte[] raw = rawBlocks;
+            if (raw == null)
+                return;
+            try {
+                readCBORBlocks(new CBORDecoder(raw));
+            } catch (ParseException e) {
+                throw new IllegalStateException("Blocks checked on receipt failed to decode: " + e.getMessage(), e);
+            }
+            rawBlocks = null;
+        }
+    }
+
+    /**
+     * Writes this bundle in the fixed-layout binary format: format version, primary block,
+     * number of other blocks, the other blocks, payload block
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     * @throws IllegalArgumentException if the bundle is missing blocks or a block cannot be encoded
+     */
+    public void writeBinary(DataOutput out) throws IOException, IllegalArgumentException {
+        materialize();
+        if (primary == null || payload == null)
+            throw new IllegalArgumentException("Bundle must have a primary block and a payload block");
+        out.writeByte(BINARY_FORMAT_VERSION);
+        primary.writeBinary(out);
+        out.writeInt(blocks == null ? 0 : blocks.size());
+        if (blocks != null) {
+            for (CanonicalBlock block : blocks)
+                block.writeBinary(out);
+        }
+        payload.writeBinary(out);
+    }
+
+    /**
+     * Reads a bundle in the fixed-layout binary format (inverse of writeBinary)
+     * @param in stream to read from
+     * @param maxBlockLength largest block data length we are willing to allocate
+     * @return the bundle
+     * @throws IOException if the stream throws or ends early
+     * @throws ParseException if the bundle is malformed
+     */
+    public static Bundle readBinary(DataInput in, int maxBlockLength) throws IOException, ParseException {
+        int version = in.readUnsignedByte();
+        if (version != BINARY_FORMAT_VERSION)
+            throw new ParseException("Unknown binary bundle format version: " + version, 0);
+        PrimaryBlock primary = PrimaryBlock.readBinary(in);
+        int numBlocks = in.readInt();
+        if (numBlocks < 0 || numBlocks > MAX_EXTENSION_BLOCKS)
+            throw new ParseException("Invalid number of extension blocks: " + numBlocks, -1);
+        List<CanonicalBlock> blocks = null;
+        for (int i = 0; i < numBlocks; i++) {
+            CanonicalBlock block = CanonicalBlock.readBinary(in, maxBlockLength);
+            if (block instanceof PayloadBlock)
+                throw new ParseException("Payload block must be the last block in a bundle", -1);
+            if (block != null) {
+                if (blocks == null)
+                    blocks = new ArrayList<>();
+                blocks.add(block);
+            }
+        }
+        if (!(CanonicalBlock.readBinary(in, maxBlockLength) instanceof PayloadBlock payload))
+            throw new ParseException("Bundle has no payload block", -1);
+        return new Bundle(primary, payload, blocks);
+    }
+
 
 
     //getters and setters for explicitly the primary and payload blocks
     public PrimaryBlock getPrimary() { return primary; }
-    public final PayloadBlock getPayload() { return payload; }//final because you should use the setter to set a new payload
+    public final PayloadBlock getPayload() {//final because you should use the setter to set a new payload
+        materialize();
+        return payload;
+    }
     /** this must be done in the constructor */
     private  void setPrimary(PrimaryBlock primary) { ; }
-    public void setPayload(PayloadBlock payload) { this.payload = payload; }
+    public void setPayload(PayloadBlock payload) {
+        materialize();
+        //carry the old payload's changes over, so the stamp still only ever goes up
+        modCount += 1 + (this.payload == null ? 0 : this.payload.getModCount());
+        this.payload = payload;
+    }
     @JsonIgnore
     public CanonicalBlock getBlock(int blockID){
+        materialize();
         //todo
         return null;
     }
 
+    /**
+     * Gets the priority class of this bundle without decoding its blocks (for the dispatcher, on the forwarding path)
+     * @return the priority of its priority block, NORMAL if it has none
+     */
+    @JsonIgnore
+    public BundlePriority getPriority() {
+        if (rawBlocks != null)
+            return rawPriority == null ? BundlePriority.NORMAL : rawPriority;
+        if (blocks != null) {
+            for (CanonicalBlock block : blocks)
+                if (block instanceof PriorityBlock priorityBlock)
+                    return priorityBlock.getPriority();
+        }
+        return BundlePriority.NORMAL;
+    }
+
+    /**
+     * Sets the priority class of this bundle, replacing its priority block (a NORMAL bundle carries none)
+     * @param priority the priority class
+     */
+    public void setPriority(BundlePriority priority) {
+        materialize();
+        //carry the removed blocks' changes over, so the stamp still only ever goes up (like setPayload)
+        int removedModCount = 0;
+        int blockNum = PayloadBlock.PAYLOAD_BLOCK_NUM;
+        if (blocks != null) {
+            for (Iterator<CanonicalBlock> it = blocks.iterator(); it.hasNext(); ) {
+                CanonicalBlock block = it.next();
+                if (block instanceof PriorityBlock) {
+                    removedModCount += block.getModCount();
+                    it.remove();
+                } else {
+                    blockNum = Math.max(blockNum, block.getBlockNum());
+                }
+            }
+        }
+        if (priority != BundlePriority.NORMAL) {
+            if (blocks == null)
+                blocks = new ArrayList<>();
+            blocks.add(new PriorityBlock(priority, blockNum + 1));
+        }
+        modCount += 1 + removedModCount;
+    }
+
+    /**
+     * Records the priority of the priority block found by readCBORLazy
+     * @param priority the priority
+     */
+    void setRawPriority(BundlePriority priority) { this.rawPriority = priority; }
+
+    /**
+     * Gets the payload length without decoding the payload (for logging and checks on the forwarding path)
+     * @return length of the payload in bytes, -1 if there is no payload
+     */
+    @JsonIgnore
+    public int getPayloadLength() {
+        if (rawBlocks != null)
+            return rawPayloadLength;
+        return payload == null || payload.getPayload() == null ? -1 : payload.getPayload().length;
+    }
+
     /**
      * Sets the creation time to right now (called anytime and in the constructor by default)
      */
@@ -0,0 +1,34 @@
+package BPv7.containers;
+
+/**
+ * Priority class of a bundle (carried in a PriorityBlock), the three classes of the bundle protocol's class of service:
+ * bundles of a higher class waiting for the same next hop are sent first
+ */
+public enum BundlePriority {
+    /** Bulk transfers, sent when nothing else waits */
+    BULK(0),
+    /** Everything else (bundles without a priority block) */
+    NORMAL(1),
+    /** Control traffic (administrative records included), sent before everything else */
+    EXPEDITED(2);
+
+    /**
+     * Value of this class on the wire
+     * @implSpec CBOR unsigned int
+     */
+    public final int code;
+
+    /** @param code value of this class on the wire */
+    BundlePriority(int code) { this.code = code; }
+
+    /**
+     * @param code value of a class on the wire
+     * @return the class, null if none has that value
+     */
+    public static BundlePriority of(long code) {
+        for (BundlePriority priority : values())
+            if (priority.code == code)
+                return priority;
+        return null;
+    }
+}
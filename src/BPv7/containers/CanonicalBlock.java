@@ -1,12 +1,15 @@
 package BPv7.containers;
 
+import BPv7.utils.BlockCRC;
+import BPv7.utils.CBORDecoder;
+import BPv7.utils.CBOREncoder;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import javax.naming.directory.InvalidAttributesException;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.InvalidPropertiesFormatException;
@@ -22,7 +25,8 @@ public abstract class CanonicalBlock extends Block {
     /**
      * Flag bitmasks
      */
-    private final int   REPL = 0x1,//1 = block must be replicated in every fragment
+    private static final int
+                        REPL = 0x1,//1 = block must be replicated in every fragment
                         TMFR = 0x2,//1 = transmit status report if block fails to be processed
                         FDBU = 0x4,//1 = delete bundle if block fails to be processed
                         FDBL = 0x10;//1 = discard block if block fails to be processed
@@ -34,7 +38,7 @@ public abstract class CanonicalBlock extends Block {
      * 7 = Bundle age (ms)<br>
      * 10 = Hop count (#prior transmit (xmit) attempts)<br>
      * 11-191 = reserved for private/experimental use<br>
-     * 192-255 = not reserved, free for experimentation
+     * 192-255 = not reserved, free for experimentation (192 = Bundle priority, see PriorityBlock)
      * All other code values are reserved for future use
      *
      * @implSpec CBOR unsigned int
@@ -126,15 +130,15 @@ public abstract class CanonicalBlock extends Block {
     //setters
     public void setCrc(short crc) { this.crc = crc; }
 
-    public void setREPL() { this.flags = flags | REPL;/*sets the REPL flag*/ }
-    public void setTMFR() { this.flags = flags | TMFR;/*sets the TMFR flag*/ }
-    public void setFDBU() { this.flags = flags | FDBU;/*sets the FDBU flag*/ }
-    public void setFDBL() { this.flags = flags | FDBL;/*sets the FDBL flag*/ }
+    public void setREPL() { this.flags = flags | REPL; modified();/*sets the REPL flag*/ }
+    public void setTMFR() { this.flags = flags | TMFR; modified();/*sets the TMFR flag*/ }
+    public void setFDBU() { this.flags = flags | FDBU; modified();/*sets the FDBU flag*/ }
+    public void setFDBL() { this.flags = flags | FDBL; modified();/*sets the FDBL flag*/ }
     //unsetters :)
-    private void unsetREPL() { this.flags = flags & (~REPL);/*unsets the REPL flag*/ }
-    private void unsetTMFR() { this.flags = flags & (~TMFR);/*unsets the TMFR flag*/ }
-    private void unsetFDBU() { this.flags = flags & (~FDBU);/*unsets the FDBU flag*/ }
-    private void unsetFDBL() { this.flags = flags & (~FDBL);/*unsets the FDBL flag*/ }
+    private void unsetREPL() { this.flags = flags & (~REPL); modified();/*unsets the REPL flag*/ }
+    private void unsetTMFR() { this.flags = flags & (~TMFR); modified();/*unsets the TMFR flag*/ }
+    private void unsetFDBU() { this.flags = flags & (~FDBU); modified();/*unsets the FDBU flag*/ }
+    private void unsetFDBL() { this.flags = flags & (~FDBL); modified();/*unsets the FDBL flag*/ }
 
     /**
      * Returns a valid network encoding as a byte array
@@ -146,14 +150,14 @@ public abstract class CanonicalBlock extends Block {
     @JsonIgnore
     @Override
     public byte[] getNetworkEncoding(final Logger logger) throws InvalidPropertiesFormatException {
-        ObjectMapper mapper = new ObjectMapper();
-
+        CBOREncoder out = new CBOREncoder();
         try {
-            return mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(this);//no logging, done only in Bundle
-        } catch (JsonProcessingException e) {
+            writeCBOR(out);//no logging, done only in Bundle
+        } catch (IllegalArgumentException e) {
             logger.severe("ERROR! Unable to write CanonicalBlock to byte[]: " + e.getMessage());
             throw new InvalidPropertiesFormatException(e.getMessage());
         }
+        return out.toByteArray();
     }
 
     /**
@@ -166,16 +170,216 @@ public abstract class CanonicalBlock extends Block {
      */
     @Override
     public NetworkSerializable deserializeNetworkEncoding(byte[] toDecode, final Logger logger) throws ParseException {
-        //todo:: figure out which subclass to instantiate and finish decoding with
-        //  isn't this done automatically?
-        ObjectMapper mapper = new ObjectMapper();
-
         try {
-            return mapper.readValue(toDecode, CanonicalBlock.class);//no logging, done only in Bundle
-        } catch (IOException e) {
+            return readCBOR(new CBORDecoder(toDecode));//no logging, done only in Bundle
+        } catch (ParseException e) {
             logger.severe("ERROR! Unable to read a CanonicalBlock from byte array: " + e.getMessage());
-            throw new ParseException(e.getMessage(), -1);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes this block as a CBOR array (see class header for the length), CRC included
+     * @param out encoder to write to
+     * @throws IllegalArgumentException if a field cannot be encoded
+     */
+    @Override
+    void writeCBOR(CBOREncoder out) throws IllegalArgumentException {
+        int blockStart = out.position();
+        out.writeArrayHeader(crcType != BlockCRC.CRC_NONE ? 6 : 5);
+        out.writeUnsigned(blockType);
+        out.writeUnsigned(blockNum);
+        out.writeUnsigned(flags);
+        out.writeUnsigned(crcType);
+        writeBlockData(out);
+        if (crcType != BlockCRC.CRC_NONE) {
+            int crcPos = out.writeCRCPlaceholder(crcType);
+            out.patchCRC(crcType, blockStart, crcPos);
+        }
+    }
+
+    /**
+     * Writes the block-type-specific data of this block, which RFC 9171 always wraps in a CBOR byte string
+     * @param out encoder to write to
+     * @throws IllegalArgumentException if the data cannot be encoded
+     */
+    abstract void writeBlockData(CBOREncoder out) throws IllegalArgumentException;
+
+    /**
+     * Reads a CBOR-encoded canonical block, checking its CRC, and instantiates the subclass
+     * matching its block type (inverse of writeCBOR)
+     * @param in decoder to read from
+     * @return the block, or null if the block is not recognized and its flags say to discard it
+     * @throws ParseException if the block is malformed or fails its CRC check
+     */
+    static CanonicalBlock readCBOR(CBORDecoder in) throws ParseException {
+        int blockStart = in.position();
+        CBORHeader header = readCBORHeader(in, blockStart);
+        byte[] data = in.readByteString();
+        short crc = readCBORCRC(in, header, blockStart);
+        return newBlock(header.blockType(), header.blockNum(), header.flags(), crc, data, blockStart);
+    }
+
+    /** What skipCBOR returns for a block that is not the payload block */
+    static final int SKIPPED_BLOCK = -1;
+    /** What skipCBOR returns for a block that readCBOR would discard */
+    static final int DISCARDED_BLOCK = -2;
+
+    /**
+     * Reads past a CBOR-encoded canonical block, checking it exactly like readCBOR does (CRC included),
+     * but without instantiating it or allocating its data. The priority of a priority block is still decoded (it is
+     * tiny, and the dispatcher needs it even for bundles it only forwards); a block of that type without a known
+     * priority code is skipped like any unknown block
+     * @param in decoder to read from
+     * @param bundle bundle the block belongs to, given the priority of a priority block
+     * @return length of the payload if this is the payload block, otherwise SKIPPED_BLOCK,
+     *  or DISCARDED_BLOCK if readCBOR would drop this block
+     * @throws ParseException if the block is malformed or fails its CRC check
+     */
+    static int skipCBOR(CBORDecoder in, Bundle bundle) throws ParseException {
+        int blockStart = in.position();
+        CBORHeader header = readCBORHeader(in, blockStart);
+        if (header.blockType() == PriorityBlock.PRIORITY_BLOCK_TYPE) {
+            byte[] data = in.readByteString();
+            readCBORCRC(in, header, blockStart);
+            BundlePriority priority = PriorityBlock.readPriority(data);
+            if (priority == null)//someone else's block of that type, like any unknown block
+                return (header.flags() & FDBL) == FDBL ? DISCARDED_BLOCK : SKIPPED_BLOCK;
+            bundle.setRawPriority(priority);
+            return SKIPPED_BLOCK;
+        }
+        int length = in.skipByteString();
+        readCBORCRC(in, header, blockStart);
+        if (header.blockType() == PayloadBlock.PAYLOAD_BLOCK_TYPE) {
+            if (header.blockNum() != PayloadBlock.PAYLOAD_BLOCK_NUM)
+                throw new ParseException("Payload block must be block number 1, was " + header.blockNum(), blockStart);
+            return length;
+        }
+        return (header.flags() & FDBL) == FDBL ? DISCARDED_BLOCK : SKIPPED_BLOCK;
+    }
+
+    /**
+     * The fields of a CBOR-encoded canonical block that come before its data
+     * @param blockType type of block
+     * @param blockNum unique identifier within the bundle
+     * @param flags block processing control flags
+     * @param crcType CRC type of the block
+     */
+    private record CBORHeader(int blockType, int blockNum, long flags, int crcType) {}
+
+    /**
+     * Starts the CRC and reads the fields of a canonical block that come before its data
+     * @param in decoder to read from
+     * @param blockStart where the block started, for error messages
+     * @return the fields
+     * @throws ParseException if the fields are malformed
+     */
+    private static CBORHeader readCBORHeader(CBORDecoder in, int blockStart) throws ParseException {
+        in.beginCRC();
+        int length = in.readArrayHeader(5, 6);
+        int blockType = in.readUnsignedInt();
+        int blockNum = in.readUnsignedInt();
+        long flags = in.readUnsigned();
+        int crcType = in.readUnsignedInt();
+        if (crcType > BlockCRC.CRC_32C)
+            throw new ParseException("Unknown CRC type: " + crcType, blockStart);
+        in.selectCRC(crcType);
+        if (length != (crcType != BlockCRC.CRC_NONE ? 6 : 5))
+            throw new ParseException("Canonical block has the wrong number of fields: " + length, blockStart);
+        return new CBORHeader(blockType, blockNum, flags, crcType);
+    }
+
+    /**
+     * Reads the CRC that ends a canonical block (if it has one) and checks it
+     * @param in decoder to read from
+     * @param header fields read by readCBORHeader
+     * @param blockStart where the block started, for error messages
+     * @return the CRC, -1 if the block has none
+     * @throws ParseException if the CRC is malformed or does not match
+     */
+    private static short readCBORCRC(CBORDecoder in, CBORHeader header, int blockStart) throws ParseException {
+        if (header.crcType() == BlockCRC.CRC_NONE) {
+            in.endCRC(header.crcType());
+            return -1;
+        }
+        long received = in.readCRCValue(header.crcType());
+        if (received != in.endCRC(header.crcType()))
+            throw new ParseException("CRC check failed for block number " + header.blockNum(), blockStart);
+        return (short) received;
+    }
+
+    /**
+     * Writes this block in the fixed-layout binary format: type, number, flags, then the data
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     * @throws IllegalArgumentException if a field cannot be encoded
+     */
+    @Override
+    void writeBinary(DataOutput out) throws IOException, IllegalArgumentException {
+        out.writeInt(blockType);
+        out.writeInt(blockNum);
+        out.writeLong(flags);
+        writeBlockData(out);
+    }
+
+    /**
+     * Writes the block-type-specific data of this block as an int length followed by the bytes
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     * @throws IllegalArgumentException if the data cannot be encoded
+     */
+    abstract void writeBlockData(DataOutput out) throws IOException, IllegalArgumentException;
+
+    /**
+     * Reads a canonical block in the fixed-layout binary format (inverse of writeBinary)
+     * @param in stream to read from
+     * @param maxDataLength largest block data length we are willing to allocate
+     * @return the block, or null if the block is not recognized and its flags say to discard it
+     * @throws IOException if the stream throws or ends early
+     * @throws ParseException if the block is malformed
+     */
+    static CanonicalBlock readBinary(DataInput in, int maxDataLength) throws IOException, ParseException {
+        int blockType = in.readInt();
+        int blockNum = in.readInt();
+        long flags = in.readLong();
+        int length = in.readInt();
+        if (length < 0 || length > maxDataLength)
+            throw new ParseException("Invalid length for block number " + blockNum + ": " + length, -1);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return newBlock(blockType, blockNum, flags, (short) -1, data, -1);
+    }
+
+    /**
+     * Instantiates the subclass matching a decoded block's type
+     * @param blockType type of block
+     * @param blockNum unique identifier within the bundle
+     * @param flags block processing control flags
+     * @param crc CRC that came with the block
+     * @param data block-type-specific data
+     * @param blockStart where the block started, for error messages
+     * @return the block, or null if the block is not recognized and its flags say to discard it (a block of the priority
+     *  block type without a known priority code is not recognized)
+     * @throws ParseException if the block is not valid for its type
+     */
+    private static CanonicalBlock newBlock(int blockType, int blockNum, long flags, short crc,
+                                           byte[] data, int blockStart) throws ParseException {
+        CanonicalBlock block;
+        BundlePriority priority = blockType == PriorityBlock.PRIORITY_BLOCK_TYPE ? PriorityBlock.readPriority(data) : null;
+        if (blockType == PayloadBlock.PAYLOAD_BLOCK_TYPE) {
+            if (blockNum != PayloadBlock.PAYLOAD_BLOCK_NUM)
+                throw new ParseException("Payload block must be block number 1, was " + blockNum, blockStart);
+            block = new PayloadBlock(data);
+        } else if (priority != null) {
+            block = new PriorityBlock(priority, blockNum);
+        } else if ((flags & FDBL) == FDBL) {
+            return null;//not something we understand, and the sender said it's fine to just drop it
+        } else {
+            block = new UnknownBlock(blockType, blockNum, data);
         }
+        block.flags = flags;
+        block.crc = crc;
+        return block;
     }
 
     /**
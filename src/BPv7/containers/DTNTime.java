@@ -62,6 +62,17 @@ public class DTNTime {
         return timeInMS;
     }
 
+    /**
+     * Converts this time to ms since the Unix epoch, taking the wrap-around of timeInMS (every 2^31 ms) closest to a
+     * reference time, so the same DTN time always gives the same result (unlike subtracting the current DTN time)
+     * @param near a time less than 2^30 ms away from this one (ms since the Unix epoch), usually the current time
+     * @return this time in ms since the Unix epoch
+     */
+    public long toEpochMillis(long near) {
+        long ahead = Math.floorMod(timeInMS - (near - DTNEpoc), 1L << 31);
+        return near + (ahead >= 1L << 30 ? ahead - (1L << 31) : ahead);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
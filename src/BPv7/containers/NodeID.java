@@ -1,14 +1,19 @@
 package BPv7.containers;
 
+import BPv7.utils.CBORDecoder;
+import BPv7.utils.CBOREncoder;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import java.text.ParseException;
 import java.util.Objects;
 
 /**
  * Java "records" are so cool
  *
  * @param id Contains a node ID, which could be in a variety of formats
- * @implSpec CBOR: todo
+ * @implSpec CBOR array of length 2: [scheme code, scheme-specific part]<br>
+ *  "dtn:none" is [1, 0], "ipn:N.S" is [2, [N, S]], everything else is a dtn scheme EID
+ *  whose SSP is a text string (the "dtn:" prefix is dropped if the rest starts with "//")
  * @implNote pretending for now that it's just an int
  * (in reality each endpoint ID is an URI -- Uniform Resource Identifier)
  * (technically, node IDs don't have to be URIs, but that is implementation determined)
@@ -16,11 +21,73 @@ import java.util.Objects;
 public record NodeID(String id) {
     /** null source ID */
     private static final String NULL_SOURCE_ID = "dtn:none";
+    /** URI scheme codes (RFC 9171 section 9.6) */
+    private static final int DTN_SCHEME = 1, IPN_SCHEME = 2;
+    /** URI scheme prefixes */
+    private static final String DTN_PREFIX = "dtn:", IPN_PREFIX = "ipn:";
 
     //default generated
     @JsonIgnore
     public static NodeID getNullSourceID() { return new NodeID(NULL_SOURCE_ID); }
 
+    /**
+     * Writes this ID as a CBOR-encoded EID
+     * @param out encoder to write to
+     */
+    void writeCBOR(CBOREncoder out) {
+        out.writeArrayHeader(2);
+        if (NULL_SOURCE_ID.equals(id)) {
+            out.writeUnsigned(DTN_SCHEME);
+            out.writeUnsigned(0);
+            return;
+        }
+        if (id.startsWith(IPN_PREFIX)) {
+            int dot = id.indexOf('.', IPN_PREFIX.length());
+            try {
+                long node = Long.parseLong(id.substring(IPN_PREFIX.length(), dot));
+                long service = Long.parseLong(id.substring(dot + 1));
+                if (node >= 0 && service >= 0) {
+                    out.writeUnsigned(IPN_SCHEME);
+                    out.writeArrayHeader(2);
+                    out.writeUnsigned(node);
+                    out.writeUnsigned(service);
+                    return;
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                //not a well-formed ipn EID, fall through and send it as a dtn SSP instead
+            }
+        }
+        out.writeUnsigned(DTN_SCHEME);
+        out.writeTextString(id.startsWith(DTN_PREFIX + "//") ? id.substring(DTN_PREFIX.length()) : id);
+    }
+
+    /**
+     * Reads a CBOR-encoded EID (inverse of writeCBOR)
+     * @param in decoder to read from
+     * @return the node ID
+     * @throws ParseException if the EID is malformed or uses an unknown scheme
+     */
+    static NodeID readCBOR(CBORDecoder in) throws ParseException {
+        int start = in.position();
+        in.readArrayHeader(2);
+        int scheme = in.readUnsignedInt();
+        if (scheme == DTN_SCHEME) {
+            if (in.peekUnsigned()) {
+                if (in.readUnsigned() != 0)
+                    throw new ParseException("Invalid dtn scheme SSP", start);
+                return getNullSourceID();
+            }
+            String ssp = in.readTextString();
+            return new NodeID(ssp.startsWith("//") ? DTN_PREFIX + ssp : ssp);
+        } else if (scheme == IPN_SCHEME) {
+            in.readArrayHeader(2);
+            long node = in.readUnsigned();
+            long service = in.readUnsigned();
+            return new NodeID(IPN_PREFIX + node + "." + service);
+        }
+        throw new ParseException("Unknown EID scheme: " + scheme, start);
+    }
+
     //default generated
     @Override
     public boolean equals(Object o) {
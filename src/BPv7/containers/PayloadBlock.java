@@ -1,22 +1,22 @@
 package BPv7.containers;
 
+import BPv7.utils.CBORDecoder;
+import BPv7.utils.CBOREncoder;
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.DataOutput;
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.InvalidPropertiesFormatException;
 import java.util.logging.Logger;
 
 /**
  * Represents the PayloadBlock
+ * @implSpec block-type-specific data is the payload itself as a raw CBOR byte string
  */
 public class PayloadBlock extends CanonicalBlock {
     /** Block types for this type of block */
-    private static final int PAYLOAD_BLOCK_TYPE = 1, PAYLOAD_BLOCK_NUM = 1;
+    static final int PAYLOAD_BLOCK_TYPE = 1, PAYLOAD_BLOCK_NUM = 1;
     /** What this block contains */
     protected byte[] payload;
 
@@ -27,26 +27,6 @@ public class PayloadBlock extends CanonicalBlock {
         this.payload = payload;
     }
 
-    /**
-     * Returns a valid network encoding as a byte array
-     *
-     * @param logger logger to log things with (containers don't get loggers -- no context)
-     * @return networking encoding
-     * @throws InvalidPropertiesFormatException if block is not ready to be encoded
-     */
-    @JsonIgnore
-    @Override
-    public byte[] getNetworkEncoding(final Logger logger) throws InvalidPropertiesFormatException {
-        ObjectMapper mapper = new ObjectMapper();
-
-        try {
-            return mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(this);//no logging, done only in Bundle
-        } catch (JsonProcessingException e) {
-            logger.severe("ERROR! Unable to write PayloadBlock to byte[]: " + e.getMessage());
-            throw new InvalidPropertiesFormatException(e.getMessage());
-        }
-    }
-
     /**
      * Decodes the byte array into the implementing object (each class only responsible for its own decoding)
      *
@@ -57,19 +37,45 @@ public class PayloadBlock extends CanonicalBlock {
      */
     @Override
     public NetworkSerializable deserializeNetworkEncoding(byte[] toDecode, final Logger logger) throws ParseException {
-        //todo:: figure out which subclass to instantiate and finish decoding with
-        //  isn't this done automatically?
-        ObjectMapper mapper = new ObjectMapper();
-
         try {
-            return mapper.readValue(toDecode, PayloadBlock.class);//no logging, done only in Bundle
-        } catch (IOException e) {
+            CanonicalBlock ret = readCBOR(new CBORDecoder(toDecode));//no logging, done only in Bundle
+            if (!(ret instanceof PayloadBlock))
+                throw new ParseException("Block is not a payload block", 0);
+            return ret;
+        } catch (ParseException e) {
             logger.severe("ERROR! Unable to read a PayloadBlock from byte array: " + e.getMessage());
-            throw new ParseException(e.getMessage(), -1);
+            throw e;
         }
     }
 
+    /**
+     * Writes the payload as a raw byte string (no copies, no base64)
+     * @param out encoder to write to
+     * @throws IllegalArgumentException if there is no payload
+     */
+    @Override
+    void writeBlockData(CBOREncoder out) throws IllegalArgumentException {
+        if (payload == null)
+            throw new IllegalArgumentException("PayloadBlock has no payload");
+        out.writeByteString(payload);
+    }
+
+    /**
+     * Writes the payload length followed by the payload
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     * @throws IllegalArgumentException if there is no payload
+     */
+    @Override
+    void writeBlockData(DataOutput out) throws IOException, IllegalArgumentException {
+        if (payload == null)
+            throw new IllegalArgumentException("PayloadBlock has no payload");
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
     //getters and setters
+    /** @implNote changing the returned array in place is not seen by cached encodings, use setPayload */
     public byte[] getPayload() { return payload; }
-    public void setPayload(byte[] payload) { this.payload = payload; }
+    public void setPayload(byte[] payload) { this.payload = payload; modified(); }
 }
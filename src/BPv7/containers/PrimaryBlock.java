@@ -1,12 +1,15 @@
 package BPv7.containers;
 
+import BPv7.utils.BlockCRC;
+import BPv7.utils.CBORDecoder;
+import BPv7.utils.CBOREncoder;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import javax.naming.directory.InvalidAttributesException;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.InvalidPropertiesFormatException;
@@ -222,37 +225,37 @@ public class PrimaryBlock extends Block {
     /*setters*/
     @JsonIgnore
     public boolean isAdminRecord() { return getADMN(); }
-    public void setFRAG() { this.flags = flags | FRAG;/*sets the FRAG flag*/ }
-    public void setADMN() { this.flags = flags | ADMN;/*sets the ADMN flag*/ }
-    public void setNFRG() { this.flags = flags | NFRG;/*sets the NFRG flag*/ }
-    public void setACKR() { this.flags = flags | ACKR;/*sets the ACKR flag*/ }
-    public void setTIME() { this.flags = flags | TIME;/*sets the TIME flag*/ }
-    public void setRECP() { this.flags = flags | RECP;/*sets the RECP flag*/ }
-    public void setFRWD() { this.flags = flags | FRWD;/*sets the FRWD flag*/ }
-    public void setDLIV() { this.flags = flags | DLIV;/*sets the DLIV flag*/ }
-    public void setDELT() { this.flags = flags | DELT;/*sets the DELT flag*/ }
+    public void setFRAG() { this.flags = flags | FRAG; modified();/*sets the FRAG flag*/ }
+    public void setADMN() { this.flags = flags | ADMN; modified();/*sets the ADMN flag*/ }
+    public void setNFRG() { this.flags = flags | NFRG; modified();/*sets the NFRG flag*/ }
+    public void setACKR() { this.flags = flags | ACKR; modified();/*sets the ACKR flag*/ }
+    public void setTIME() { this.flags = flags | TIME; modified();/*sets the TIME flag*/ }
+    public void setRECP() { this.flags = flags | RECP; modified();/*sets the RECP flag*/ }
+    public void setFRWD() { this.flags = flags | FRWD; modified();/*sets the FRWD flag*/ }
+    public void setDLIV() { this.flags = flags | DLIV; modified();/*sets the DLIV flag*/ }
+    public void setDELT() { this.flags = flags | DELT; modified();/*sets the DELT flag*/ }
     //unsetters :)
-    private void unsetFRAG() { this.flags = flags & (~FRAG);/*unsets the FRAG flag*/ }
-    private void unsetADMN() { this.flags = flags & (~ADMN);/*unsets the ADMN flag*/ }
-    private void unsetNFRG() { this.flags = flags & (~NFRG);/*unsets the NFRG flag*/ }
-    private void unsetACKR() { this.flags = flags & (~ACKR);/*unsets the ACKR flag*/ }
-    private void unsetTIME() { this.flags = flags & (~TIME);/*unsets the TIME flag*/ }
-    private void unsetRECP() { this.flags = flags & (~RECP);/*unsets the RECP flag*/ }
-    private void unsetFRWD() { this.flags = flags & (~FRWD);/*unsets the FRWD flag*/ }
-    private void unsetDLIV() { this.flags = flags & (~DLIV);/*unsets the DLIV flag*/ }
-    private void unsetDELT() { this.flags = flags & (~DELT);/*unsets the DELT flag*/ }
+    private void unsetFRAG() { this.flags = flags & (~FRAG); modified();/*unsets the FRAG flag*/ }
+    private void unsetADMN() { this.flags = flags & (~ADMN); modified();/*unsets the ADMN flag*/ }
+    private void unsetNFRG() { this.flags = flags & (~NFRG); modified();/*unsets the NFRG flag*/ }
+    private void unsetACKR() { this.flags = flags & (~ACKR); modified();/*unsets the ACKR flag*/ }
+    private void unsetTIME() { this.flags = flags & (~TIME); modified();/*unsets the TIME flag*/ }
+    private void unsetRECP() { this.flags = flags & (~RECP); modified();/*unsets the RECP flag*/ }
+    private void unsetFRWD() { this.flags = flags & (~FRWD); modified();/*unsets the FRWD flag*/ }
+    private void unsetDLIV() { this.flags = flags & (~DLIV); modified();/*unsets the DLIV flag*/ }
+    private void unsetDELT() { this.flags = flags & (~DELT); modified();/*unsets the DELT flag*/ }
 
     //you will know if you need this
-    public void setReportToNode(NodeID reportToNode) { this.reportToNode = reportToNode; }
-    public void setADULen(int ADULen) { this.ADULen = ADULen; }
-    public void setCrc(short crc) { this.crc = crc; }
+    public void setReportToNode(NodeID reportToNode) { this.reportToNode = reportToNode; modified(); }
+    public void setADULen(int ADULen) { this.ADULen = ADULen; modified(); }
+    public void setCrc(short crc) { this.crc = crc; modified(); }
 
     /**
      * Set the fragment offset AND sets the FRAG flag
      * @param fragmentOffset Offset from the start of the original bundle the bytes of this bundle's payload
      *  started at
      */
-    public void setFragmentOffset(int fragmentOffset) { this.fragmentOffset = fragmentOffset; setFRAG(); }
+    public void setFragmentOffset(int fragmentOffset) { this.fragmentOffset = fragmentOffset; setFRAG(); }//setFRAG calls modified()
 
     //NO!  We are hardcoding this
     private void setCrcType() { }
@@ -270,14 +273,18 @@ public class PrimaryBlock extends Block {
      */
     public void addLifetime(int lifetime) {
         this.lifetime += lifetime;
+        modified();
     }
 
 
     /**
-     * Sets the creation time to right now
-     * todo:: update sequencenum.. static class variable probably would work
+     * Sets the creation time to right now, with a sequence number that makes it unique among the bundles this node
+     * creates (see Timestamp.next)
      */
-    public void setTimestampToCurr(){ this.creationTimestamp = new Timestamp(DTNTime.getCurrentDTNTime(), 0); }
+    public void setTimestampToCurr(){
+        this.creationTimestamp = Timestamp.next();
+        modified();
+    }
 
     /**
      * Returns a valid network encoding as a byte array
@@ -289,14 +296,14 @@ public class PrimaryBlock extends Block {
     @JsonIgnore
     @Override
     public byte[] getNetworkEncoding(final Logger logger) throws InvalidPropertiesFormatException {
-        ObjectMapper mapper = new ObjectMapper();
-
+        CBOREncoder out = new CBOREncoder();
         try {
-            return mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(this);//no logging, done only in Bundle
-        } catch (JsonProcessingException e) {
+            writeCBOR(out);//no logging, done only in Bundle
+        } catch (IllegalArgumentException e) {
             logger.severe("ERROR! Unable to write PrimaryBlock to byte[]: " + e.getMessage());
             throw new InvalidPropertiesFormatException(e.getMessage());
         }
+        return out.toByteArray();
     }
 
     /**
@@ -310,14 +317,125 @@ public class PrimaryBlock extends Block {
     @JsonIgnore
     @Override
     public NetworkSerializable deserializeNetworkEncoding(byte[] toDecode, final Logger logger) throws ParseException {
-        ObjectMapper mapper = new ObjectMapper();
-
         try {
-            return mapper.readValue(toDecode, PrimaryBlock.class);//no logging, done only in Bundle
-        } catch (IOException e) {
+            return readCBOR(new CBORDecoder(toDecode));//no logging, done only in Bundle
+        } catch (ParseException e) {
             logger.severe("ERROR! Unable to read a PrimaryBlock from byte array: " + e.getMessage());
-            throw new ParseException(e.getMessage(), -1);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes this block as a CBOR array (see class header for the length), CRC included
+     * @param out encoder to write to
+     * @throws IllegalArgumentException if a field cannot be encoded
+     */
+    @Override
+    void writeCBOR(CBOREncoder out) throws IllegalArgumentException {
+        if (destNode == null || srcNode == null || reportToNode == null || creationTimestamp == null)
+            throw new IllegalArgumentException("PrimaryBlock is missing an EID or its creation timestamp");
+        int blockStart = out.position();
+        boolean fragment = getFRAG();
+        out.writeArrayHeader((fragment ? 10 : 8) + (crcType != BlockCRC.CRC_NONE ? 1 : 0));
+        out.writeUnsigned(version);
+        out.writeUnsigned(flags);
+        out.writeUnsigned(crcType);
+        destNode.writeCBOR(out);
+        srcNode.writeCBOR(out);
+        reportToNode.writeCBOR(out);
+        creationTimestamp.writeCBOR(out);
+        out.writeUnsigned(lifetime);
+        if (fragment) {
+            out.writeUnsigned(fragmentOffset);
+            out.writeUnsigned(ADULen);
+        }
+        if (crcType != BlockCRC.CRC_NONE) {
+            int crcPos = out.writeCRCPlaceholder(crcType);
+            out.patchCRC(crcType, blockStart, crcPos);
+        }
+    }
+
+    /**
+     * Reads a CBOR-encoded primary block, checking its CRC (inverse of writeCBOR)
+     * @param in decoder to read from
+     * @return the primary block
+     * @throws ParseException if the block is malformed, is not BPv7, or fails its CRC check
+     */
+    static PrimaryBlock readCBOR(CBORDecoder in) throws ParseException {
+        int blockStart = in.position();
+        in.beginCRC();
+        int length = in.readArrayHeader(8, 9, 10, 11);
+        int version = in.readUnsignedInt();
+        if (version != 7)
+            throw new ParseException("Unsupported bundle protocol version: " + version, blockStart);
+        long flags = in.readUnsigned();
+        int crcType = in.readUnsignedInt();
+        if (crcType > BlockCRC.CRC_32C)
+            throw new ParseException("Unknown CRC type: " + crcType, blockStart);
+        in.selectCRC(crcType);
+        boolean fragment = (flags & FRAG) == FRAG;
+        if (length != (fragment ? 10 : 8) + (crcType != BlockCRC.CRC_NONE ? 1 : 0))
+            throw new ParseException("Primary block has the wrong number of fields: " + length, blockStart);
+
+        NodeID destNode = NodeID.readCBOR(in);
+        NodeID srcNode = NodeID.readCBOR(in);
+        NodeID reportToNode = NodeID.readCBOR(in);
+        Timestamp creationTimestamp = Timestamp.readCBOR(in);
+        int lifetime = in.readUnsignedInt();
+        int fragmentOffset = -1, ADULen = -1;
+        if (fragment) {
+            fragmentOffset = in.readUnsignedInt();
+            ADULen = in.readUnsignedInt();
+        }
+        short crc = -1;
+        if (crcType != BlockCRC.CRC_NONE) {
+            long received = in.readCRCValue(crcType);
+            if (received != in.endCRC(crcType))
+                throw new ParseException("Primary block CRC check failed", blockStart);
+            crc = (short) received;
+        } else {
+            in.endCRC(crcType);
         }
+        return new PrimaryBlock(flags, destNode, srcNode, reportToNode, creationTimestamp,
+                                lifetime, fragmentOffset, ADULen, crc);
+    }
+
+    /**
+     * Writes this block in the fixed-layout binary format:
+     * flags, dest, src, report-to, creation time, seq num, lifetime, fragment offset, ADU length
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     * @throws IllegalArgumentException if a field cannot be encoded
+     */
+    @Override
+    void writeBinary(DataOutput out) throws IOException, IllegalArgumentException {
+        if (destNode == null || srcNode == null || reportToNode == null || creationTimestamp == null)
+            throw new IllegalArgumentException("PrimaryBlock is missing an EID or its creation timestamp");
+        out.writeLong(flags);
+        out.writeUTF(destNode.id());
+        out.writeUTF(srcNode.id());
+        out.writeUTF(reportToNode.id());
+        out.writeInt(creationTimestamp.creationTime().getTimeInMS());
+        out.writeInt(creationTimestamp.seqNum());
+        out.writeInt(lifetime);
+        out.writeInt(fragmentOffset);
+        out.writeInt(ADULen);
+    }
+
+    /**
+     * Reads a primary block in the fixed-layout binary format (inverse of writeBinary)
+     * @param in stream to read from
+     * @return the primary block
+     * @throws IOException if the stream throws or ends early
+     */
+    static PrimaryBlock readBinary(DataInput in) throws IOException {
+        long flags = in.readLong();
+        NodeID destNode = new NodeID(in.readUTF());
+        NodeID srcNode = new NodeID(in.readUTF());
+        NodeID reportToNode = new NodeID(in.readUTF());
+        Timestamp creationTimestamp = new Timestamp(new DTNTime(in.readInt()), in.readInt());
+        return new PrimaryBlock(flags, destNode, srcNode, reportToNode, creationTimestamp,
+                                in.readInt(), in.readInt(), in.readInt(), (short) -1);
     }
 
     /**
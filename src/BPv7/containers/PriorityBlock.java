@@ -0,0 +1,78 @@
+package BPv7.containers;
+
+import BPv7.utils.CBORDecoder;
+import BPv7.utils.CBOREncoder;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Extension block carrying the priority class of a bundle (BundlePriority). A bundle without one is NORMAL.
+ * Nodes that do not know this block type forward it untouched (it is not flagged to be discarded)
+ * @implSpec block type PRIORITY_BLOCK_TYPE (free for experimentation); block-type-specific data is the priority code
+ *  as a CBOR unsigned int, wrapped in a byte string like every block's data
+ */
+public class PriorityBlock extends CanonicalBlock {
+    /** Block type of this type of block */
+    public static final int PRIORITY_BLOCK_TYPE = 192;
+
+    /** Priority class of the bundle */
+    private final BundlePriority priority;
+
+    /**
+     * Constructs a priority block
+     * @param priority priority class of the bundle
+     * @param blockNum unique identifier within the bundle
+     */
+    public PriorityBlock(BundlePriority priority, int blockNum) {
+        super(PRIORITY_BLOCK_TYPE, blockNum);
+        this.priority = priority;
+    }
+
+    /** @return priority class of the bundle */
+    public BundlePriority getPriority() { return priority; }
+
+    /**
+     * Decodes the block-type-specific data of a priority block. The block type is free for experimentation, so a block
+     * of this type that does not hold a priority code we know may belong to someone else: it is then kept as an
+     * UnknownBlock (and the bundle is NORMAL) rather than rejecting the bundle
+     * @param data the data, as read off the wire
+     * @return the priority class, or null if the data is not a known priority code
+     */
+    static BundlePriority readPriority(byte[] data) {
+        try {
+            CBORDecoder in = new CBORDecoder(data);
+            BundlePriority priority = BundlePriority.of(in.readUnsigned());
+            return in.hasRemaining() ? null : priority;
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the priority code as a CBOR unsigned int in a byte string
+     * @param out encoder to write to
+     */
+    @Override
+    void writeBlockData(CBOREncoder out) { out.writeByteString(encodedPriority()); }
+
+    /**
+     * Writes the data length followed by the data (the same CBOR-encoded priority code)
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     */
+    @Override
+    void writeBlockData(DataOutput out) throws IOException {
+        byte[] data = encodedPriority();
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /** @return the priority code as a CBOR unsigned int */
+    private byte[] encodedPriority() {
+        CBOREncoder data = new CBOREncoder(16);
+        data.writeUnsigned(priority.code);
+        return data.toByteArray();
+    }
+}
@@ -1,17 +1,48 @@
 package BPv7.containers;
 
+import BPv7.utils.CBORDecoder;
+import BPv7.utils.CBOREncoder;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Wraps the timestamp of a bundle (two ints)
  *
  * @param creationTime Bundle creation time in ms since EPOC; CBOR:: check DTNTime header
  * @param seqNum Sequence number -- to add greater than ms granularity (for bundles created in the same ms); CBOR unsigned int
- * @implSpec CBOR array
+ * @implSpec CBOR array of length 2: [creation time, sequence number]
  */
 public record Timestamp(DTNTime creationTime, int seqNum) {
     public static final Timestamp UNKNOWN_TIMESTAMP = getUnknownTimestamp();
 
+    /** Last creation timestamp handed out by next, packed: creation time in the high half, sequence number in the low */
+    private static final AtomicLong last = new AtomicLong();
+
+    /**
+     * Hands out a new creation timestamp (RFC 9171 section 4.2.7): the current time, with a sequence number counting
+     * up from zero within each millisecond, so no two bundles created by this node share one, whatever the thread
+     * or the rate. Lock-free.
+     * If the clock goes back, the last time handed out is kept (and its sequence number goes on counting up) until
+     * the clock catches up, so timestamps stay unique
+     * @return the timestamp
+     */
+    static Timestamp next() {
+        while (true) {
+            int now = DTNTime.getCurrentDTNTime().timeInMS;
+            long prev = last.get();
+            int prevTime = (int) (prev >>> 32);
+            //DTN times wrap around at 2^31, now is ahead of prevTime if it is less than half that ahead
+            int ahead = (now - prevTime) & Integer.MAX_VALUE;
+            long next = prev != 0 && (ahead == 0 || ahead >= 1 << 30)
+                    ? prev + 1//same millisecond, or the clock went back: next sequence number
+                    : (long) now << 32;
+            if (last.compareAndSet(prev, next))
+                return new Timestamp(new DTNTime((int) (next >>> 32)), (int) next);
+        }
+    }
+
     /**
      * The DTN time value zero indicates that the time is unknown
      * @return a value representing an unknown Timestamp
@@ -20,4 +51,27 @@ public record Timestamp(DTNTime creationTime, int seqNum) {
     private static Timestamp getUnknownTimestamp() {
         return new Timestamp(DTNTime.getUnknownDTNTime(), -1);
     }
+
+    /**
+     * Writes this timestamp as a CBOR array
+     * @param out encoder to write to
+     */
+    void writeCBOR(CBOREncoder out) {
+        out.writeArrayHeader(2);
+        out.writeUnsigned(creationTime.getTimeInMS());
+        out.writeUnsigned(seqNum);
+    }
+
+    /**
+     * Reads a CBOR-encoded timestamp (inverse of writeCBOR)
+     * @param in decoder to read from
+     * @return the timestamp
+     * @throws ParseException if the timestamp is malformed
+     */
+    static Timestamp readCBOR(CBORDecoder in) throws ParseException {
+        in.readArrayHeader(2);
+        //other implementations send the full DTN time, we keep it modulo 2^31 just like DTNTime does
+        int time = (int) (in.readUnsigned() % (1L << 31));
+        return new Timestamp(new DTNTime(time), in.readUnsignedInt());
+    }
 }
@@ -0,0 +1,48 @@
+package BPv7.containers;
+
+import BPv7.utils.CBOREncoder;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A received extension block whose type this implementation does not understand.
+ * RFC 9171 says to keep forwarding such blocks unless their flags say otherwise, so the
+ * block-type-specific data is kept as-is and written back out untouched.
+ */
+public class UnknownBlock extends CanonicalBlock {
+    /** Block-type-specific data, exactly as it was received */
+    private final byte[] data;
+
+    /**
+     * Constructs a block from what was read off the wire
+     * @param blockType type of block
+     * @param blockNum unique identifier within the bundle
+     * @param data block-type-specific data
+     */
+    UnknownBlock(int blockType, int blockNum, byte[] data) {
+        super(blockType, blockNum);
+        this.data = data;
+    }
+
+    /** @return block-type-specific data, exactly as it was received */
+    public byte[] getData() { return data; }
+
+    /**
+     * Writes the data back out exactly as it was received
+     * @param out encoder to write to
+     */
+    @Override
+    void writeBlockData(CBOREncoder out) { out.writeByteString(data); }
+
+    /**
+     * Writes the data length followed by the data exactly as it was received
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     */
+    @Override
+    void writeBlockData(DataOutput out) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+}
@@ -1,5 +1,6 @@
 package BPv7.interfaces;
 
+import BPv7.containers.BundlePriority;
 import BPv7.containers.NodeID;
 import BPv7.containers.Timestamp;
 
@@ -21,6 +22,15 @@ public interface ApplicationAgentInterface {
      */
     Timestamp send(byte[] packetToSend, NodeID destNodeID);
 
+    /**
+     * [blocking] Sends a message to the BPA to bundle with a priority class and send to the end destination
+     * (EXPEDITED bundles to a next hop go before NORMAL ones, which go before BULK ones)
+     * @param packetToSend message to send
+     * @param priority priority class of the bundle
+     * @return packet(bundle) timestamp
+     */
+    Timestamp send(byte[] packetToSend, NodeID destNodeID, BundlePriority priority);
+
     /**
      * Returns the next message from the stream.
      * Calls BPA::getPayload once and saves all the payload in a buffer to return to user at some point
@@ -45,4 +55,13 @@ public interface ApplicationAgentInterface {
      * @return key (timestamp) for the bundle
      */
     Timestamp sendWithACK(byte[] payload, NodeID destNodeID);
+
+    /**
+     * create the bundle with a priority class and request an ACK from [the next hop, the final destination]
+     * @param payload message to send in payload block of the bundle
+     * @param destNodeID destination node id of the bundle
+     * @param priority priority class of the bundle
+     * @return key (timestamp) for the bundle
+     */
+    Timestamp sendWithACK(byte[] payload, NodeID destNodeID, BundlePriority priority);
 }
@@ -1,5 +1,6 @@
 package BPv7.interfaces;
 
+import BPv7.containers.BundlePriority;
 import BPv7.containers.NodeID;
 import BPv7.containers.Timestamp;
 import BPv7.utils.DispatchStatus;
@@ -41,6 +42,15 @@ public interface BPAInterface {
      */
     Timestamp send(byte[] payload, NodeID destNodeID);
 
+    /**
+     * create the bundle with a priority class and save to sending queue
+     * @param payload message to send in payload block of the bundle
+     * @param destNodeID destination node id of the bundle
+     * @param priority priority class of the bundle
+     * @return key (timestamp) for the bundle
+     */
+    Timestamp send(byte[] payload, NodeID destNodeID, BundlePriority priority);
+
     /**
      * create the bundle and request an ACK from [the next hop, the final destination]
      * @param payload message to send in payload block of the bundle
@@ -49,6 +59,15 @@ public interface BPAInterface {
      */
     Timestamp sendWithACK(byte[] payload, NodeID destNodeID);
 
+    /**
+     * create the bundle with a priority class and request an ACK from [the next hop, the final destination]
+     * @param payload message to send in payload block of the bundle
+     * @param destNodeID destination node id of the bundle
+     * @param priority priority class of the bundle
+     * @return key (timestamp) for the bundle
+     */
+    Timestamp sendWithACK(byte[] payload, NodeID destNodeID, BundlePriority priority);
+
     /**
      * create the admin bundle and save to sending queue
      * @param payload message to send in payload block of the bundle
@@ -0,0 +1,58 @@
+package BPv7.interfaces;
+
+import BPv7.containers.Bundle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.InvalidPropertiesFormatException;
+
+/**
+ * Defines a wire format for bundles.
+ * Implementations are shared by every connection, so they must be thread safe and should cache
+ * anything expensive to build. Get them through {@link BPv7.utils.CodecRegistry}.
+ */
+public interface Codec {
+    /**
+     * @return id of this format on the wire (used when DTCP peers negotiate a format), in [0, 255]
+     */
+    int id();
+
+    /**
+     * @return name of this format, as used in config files
+     */
+    String name();
+
+    /**
+     * Encodes a bundle in this format
+     * @param bundle bundle to encode
+     * @return the encoded bundle
+     * @throws InvalidPropertiesFormatException if the bundle is not ready to be encoded
+     */
+    byte[] encode(Bundle bundle) throws InvalidPropertiesFormatException;
+
+    /**
+     * Decodes a bundle encoded in this format
+     * @param toDecode the encoded bundle
+     * @return the bundle
+     * @throws ParseException if invalid input (bad formatting, not enough fields, too many fields, etc)
+     */
+    Bundle decode(byte[] toDecode) throws ParseException;
+
+    /**
+     * Decodes a bundle encoded in this format straight from a stream, reading it to its end.
+     * By default the stream is buffered (up to maxSize bytes) and then decoded, formats that can
+     * be decoded incrementally should override this.
+     * @param in stream to read the encoded bundle from
+     * @param maxSize most bytes to accept
+     * @return the bundle
+     * @throws IOException if the stream throws
+     * @throws ParseException if invalid input (bad formatting, too long, etc)
+     */
+    default Bundle decode(InputStream in, int maxSize) throws IOException, ParseException {
+        byte[] toDecode = in.readNBytes((int) Math.min((long) maxSize + 1, Integer.MAX_VALUE));
+        if (toDecode.length > maxSize)
+            throw new ParseException("Bundle longer than the maximum of " + maxSize + " bytes", maxSize);
+        return decode(toDecode);
+    }
+}
@@ -0,0 +1,380 @@
+package BPv7.test;
+
+import BPv7.utils.RingBuffer;
+import BPv7.utils.RingBuffer.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of RingBuffer: order and wrap-around, concurrent put/take with every wait strategy, offerAll, drainTo,
+ * timeouts and interrupts. Throws an AssertionError on the first failure.
+ * <p>
+ * Usage: java BPv7.test.RingBufferTest
+ */
+public class RingBufferTest {
+    /** Elements handed over by each producer in the concurrent tests */
+    private static final int PER_PRODUCER = 10_000;
+    /** How long (ms) the timeout tests wait */
+    private static final long TIMEOUT_MS = 50;
+    /** Longest a concurrent test may take (ms) before it counts as hung */
+    private static final long HANG_MS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        wrapAround();
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            putTake(strategy, 1, 1);
+            putTake(strategy, 3, 1);
+            putTake(strategy, 3, 3);
+            offerAll(strategy);
+            drainTo(strategy);
+            timeouts(strategy);
+            interrupt(strategy);
+        }
+        System.out.println("RingBufferTest: all passed");
+    }
+
+    /**
+     * Checks a condition
+     * @param condition the condition
+     * @param message what failed if it is false
+     * @throws AssertionError if it is false
+     */
+    private static void check(boolean condition, String message) throws AssertionError {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * A tiny ring goes around many laps in order, refuses elements when full and gives none when empty
+     */
+    private static void wrapAround() {
+        RingBuffer<Integer> ring = new RingBuffer<>(3, true, WaitStrategy.PARK);
+        check(ring.capacity() == 4, "capacity 3 should round up to 4, was " + ring.capacity());
+        int next = 0, expected = 0;
+        for (int lap = 0; lap < 1000; lap++) {
+            while (ring.offer(next))
+                next++;
+            check(ring.size() == 4 && ring.remainingCapacity() == 0, "full ring has size " + ring.size());
+            int taken = lap % 4 + 1;//leave the head at a different slot every lap
+            for (int i = 0; i < taken; i++) {
+                Integer e = ring.poll();
+                check(e != null && e == expected, "lap " + lap + ": expected " + expected + ", got " + e);
+                expected++;
+            }
+        }
+        for (Integer e; (e = ring.poll()) != null; expected++)
+            check(e == expected, "expected " + expected + ", got " + e);
+        check(expected == next, "lost elements: " + (next - expected));
+        check(ring.isEmpty() && ring.poll() == null && ring.peek() == null, "drained ring is not empty");
+
+        RingBuffer<Integer> tiny = new RingBuffer<>(1, true, WaitStrategy.PARK);
+        check(tiny.capacity() == 2, "capacity 1 should round up to 2, was " + tiny.capacity());
+        for (int lap = 0; lap < 10; lap++) {
+            check(tiny.offer(lap) && tiny.offer(-lap) && !tiny.offer(0), "lap " + lap + ": ring of 2 not full after 2");
+            check(tiny.poll() == lap && tiny.poll() == -lap && tiny.poll() == null, "lap " + lap + ": out of order");
+        }
+        System.out.println("wrap-around: passed");
+    }
+
+    /**
+     * Producers put (element = producer * PER_PRODUCER + index) while consumers take, through a ring much smaller than
+     * what goes through it: every element comes out exactly once, and with a single consumer in the order each
+     * producer put them
+     * @param strategy wait strategy of the ring
+     * @param producers producer threads
+     * @param consumers consumer threads
+     * @throws InterruptedException if interrupted
+     */
+    private static void putTake(WaitStrategy strategy, int producers, int consumers) throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<>(64, producers == 1, strategy);
+        int total = producers * PER_PRODUCER;
+        boolean[] seen = new boolean[total];
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < PER_PRODUCER; i++)
+                        ring.put(producer * PER_PRODUCER + i);
+                } catch (InterruptedException e) {
+                    failure.compareAndSet(null, "producer interrupted");
+                }
+            }));
+        }
+        int[] share = new int[consumers];
+        for (int c = 0; c < consumers; c++)
+            share[c] = total / consumers + (c < total % consumers ? 1 : 0);
+        for (int c = 0; c < consumers; c++) {
+            int consumer = c;
+            threads.add(new Thread(() -> {
+                int[] last = new int[producers];
+                Arrays.fill(last, -1);
+                try {
+                    for (int i = 0; i < share[consumer]; i++) {
+                        int e = ring.take();
+                        synchronized (seen) {
+                            if (seen[e])
+                                failure.compareAndSet(null, "taken twice: " + e);
+                            seen[e] = true;
+                        }
+                        int producer = e / PER_PRODUCER, index = e % PER_PRODUCER;
+                        if (index <= last[producer])
+                            failure.compareAndSet(null, "out of order from producer " + producer + ": " + index
+                                    + " after " + last[producer]);
+                        last[producer] = index;//in order per consumer, whatever the number of consumers
+                    }
+                } catch (InterruptedException e) {
+                    failure.compareAndSet(null, "consumer interrupted");
+                }
+            }));
+        }
+        runAll(threads);
+        check(failure.get() == null, failure.get());
+        for (int e = 0; e < total; e++)
+            check(seen[e], "never taken: " + e);
+        check(ring.isEmpty(), "ring not empty after the run");
+        System.out.println("put/take " + strategy + " " + producers + "x" + consumers + ": passed");
+    }
+
+    /**
+     * A producer puts while a consumer drains in runs of at most 7: everything comes out once, in order, never more
+     * than asked for
+     * @param strategy wait strategy of the ring
+     * @throws InterruptedException if interrupted
+     */
+    private static void drainTo(WaitStrategy strategy) throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<>(16, true, strategy);
+        check(ring.drainTo(new ArrayList<>(), 5) == 0, "drained an empty ring");
+        boolean refused = false;
+        try {
+            ring.drainTo(ring);
+        } catch (IllegalArgumentException e) {
+            refused = true;
+        }
+        check(refused, "drained a ring into itself");
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < PER_PRODUCER; i++)
+                    ring.put(i);
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, "producer interrupted");
+            }
+        });
+        Thread consumer = new Thread(() -> {
+            List<Integer> batch = new ArrayList<>();
+            int expected = 0;
+            try {
+                while (expected < PER_PRODUCER) {
+                    batch.clear();
+                    int n = ring.drainTo(batch, 7);
+                    if (n == 0) {
+                        batch.add(ring.take());//wait for more
+                        n = 1;
+                    }
+                    if (n != batch.size() || n > 7) {
+                        failure.compareAndSet(null, "drainTo returned " + n + " for " + batch.size() + " elements");
+                        return;
+                    }
+                    for (int e : batch) {
+                        if (e != expected) {
+                            failure.compareAndSet(null, "expected " + expected + ", got " + e);
+                            return;
+                        }
+                        expected++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, "consumer interrupted");
+            }
+        });
+        runAll(List.of(producer, consumer));
+        check(failure.get() == null, failure.get());
+        check(ring.isEmpty(), "ring not empty after the run");
+
+        //a collection that throws part way through still gets the ring's slots freed
+        for (int i = 0; i < 10; i++)
+            check(ring.offer(i), "ring of 16 refused element " + i);
+        List<Integer> refusing = new ArrayList<>() {
+            @Override
+            public boolean add(Integer e) {
+                if (size() == 3)
+                    throw new IllegalStateException("full");
+                return super.add(e);
+            }
+        };
+        try {
+            ring.drainTo(refusing, 8);
+        } catch (IllegalStateException expected) {
+            //the elements after the third are lost, as BlockingQueue.drainTo allows
+        }
+        check(ring.size() == 2 && ring.poll() == 8 && ring.poll() == 9, "drainTo into a failing collection left "
+                + ring.size() + " elements");
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 16; i++)
+                check(ring.offer(i), "lap " + lap + ": ring wedged after a failed drainTo, refused " + i);
+            for (int i = 0; i < 16; i++)
+                check(ring.poll() == i, "lap " + lap + ": out of order after a failed drainTo");
+        }
+        System.out.println("drainTo " + strategy + ": passed");
+    }
+
+    /**
+     * Producers offerAll batches of 1 to 9 elements (putting what does not fit one by one) while a consumer takes:
+     * every element comes out once, in the order each producer added them; a batch bigger than the room left is only
+     * partly added
+     * @param strategy wait strategy of the ring
+     * @throws InterruptedException if interrupted
+     */
+    private static void offerAll(WaitStrategy strategy) throws InterruptedException {
+        RingBuffer<Integer> small = new RingBuffer<>(4, true, strategy);
+        check(small.offerAll(List.of()) == 0, "added from an empty batch");
+        check(small.offerAll(List.of(1, 2, 3)) == 3 && small.offerAll(List.of(4, 5, 6)) == 1
+                && small.offerAll(List.of(7)) == 0, "offerAll did not stop at the capacity");
+        for (int i = 1; i <= 4; i++)
+            check(small.poll() == i, "offerAll out of order");
+
+        int producers = 3;
+        RingBuffer<Integer> ring = new RingBuffer<>(32, false, strategy);
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                List<Integer> batch = new ArrayList<>();
+                try {
+                    for (int i = 0; i < PER_PRODUCER; ) {
+                        batch.clear();
+                        for (int size = i % 9 + 1; size > 0 && i < PER_PRODUCER; size--, i++)
+                            batch.add(producer * PER_PRODUCER + i);
+                        int added = ring.offerAll(batch);
+                        for (int rest = added; rest < batch.size(); rest++)
+                            ring.put(batch.get(rest));
+                    }
+                } catch (InterruptedException e) {
+                    failure.compareAndSet(null, "producer interrupted");
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            int[] last = new int[producers];
+            Arrays.fill(last, -1);
+            try {
+                for (int i = 0; i < producers * PER_PRODUCER; i++) {
+                    int e = ring.take();
+                    int producer = e / PER_PRODUCER, index = e % PER_PRODUCER;
+                    if (index != last[producer] + 1)
+                        failure.compareAndSet(null, "producer " + producer + ": expected " + (last[producer] + 1)
+                                + ", got " + index);
+                    last[producer] = index;
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, "consumer interrupted");
+            }
+        }));
+        runAll(threads);
+        check(failure.get() == null, failure.get());
+        check(ring.isEmpty(), "ring not empty after the run");
+        System.out.println("offerAll " + strategy + ": passed");
+    }
+
+    /**
+     * Timed poll on an empty ring and timed offer on a full one give up after their timeout, and a timed poll returns
+     * as soon as an element arrives
+     * @param strategy wait strategy of the ring
+     * @throws InterruptedException if interrupted
+     */
+    private static void timeouts(WaitStrategy strategy) throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<>(2, false, strategy);
+        long start = System.nanoTime();
+        check(ring.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS) == null, "poll on an empty ring returned an element");
+        check(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS), "poll gave up early");
+
+        check(ring.offer(1) && ring.offer(2), "ring of 2 refused 2 elements");
+        start = System.nanoTime();
+        check(!ring.offer(3, TIMEOUT_MS, TimeUnit.MILLISECONDS), "offer on a full ring added an element");
+        check(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS), "offer gave up early");
+        check(ring.poll() == 1 && ring.poll() == 2 && ring.isEmpty(), "timed out offer changed the ring");
+
+        Thread late = new Thread(() -> {
+            try {
+                Thread.sleep(TIMEOUT_MS);
+                ring.put(4);
+            } catch (InterruptedException ignored) {
+                //the poll below fails instead
+            }
+        });
+        late.start();
+        start = System.nanoTime();
+        Integer e = ring.poll(HANG_MS, TimeUnit.MILLISECONDS);
+        check(e != null && e == 4, "timed poll missed the element put while it waited: " + e);
+        check(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(HANG_MS), "timed poll was not woken");
+        late.join();
+        System.out.println("timeouts " + strategy + ": passed");
+    }
+
+    /**
+     * Interrupting a thread blocked in take or put makes it throw InterruptedException
+     * @param strategy wait strategy of the ring
+     * @throws InterruptedException if interrupted
+     */
+    private static void interrupt(WaitStrategy strategy) throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<>(2, true, strategy);
+        AtomicReference<String> outcome = new AtomicReference<>("not interrupted");
+        Thread taker = new Thread(() -> {
+            try {
+                ring.take();
+                outcome.set("took from an empty ring");
+            } catch (InterruptedException e) {
+                outcome.set(null);
+            }
+        });
+        taker.start();
+        Thread.sleep(TIMEOUT_MS);
+        taker.interrupt();
+        taker.join(HANG_MS);
+        check(outcome.get() == null, "take: " + outcome.get());
+
+        check(ring.offer(1) && ring.offer(2), "ring of 2 refused 2 elements");
+        outcome.set("not interrupted");
+        Thread putter = new Thread(() -> {
+            try {
+                ring.put(3);
+                outcome.set("put into a full ring");
+            } catch (InterruptedException e) {
+                outcome.set(null);
+            }
+        });
+        putter.start();
+        Thread.sleep(TIMEOUT_MS);
+        putter.interrupt();
+        putter.join(HANG_MS);
+        check(outcome.get() == null, "put: " + outcome.get());
+        check(ring.poll() == 1 && ring.poll() == 2 && ring.isEmpty(), "interrupted put changed the ring");
+        System.out.println("interrupt " + strategy + ": passed");
+    }
+
+    /**
+     * Starts threads and waits for them all
+     * @param threads the threads
+     * @throws InterruptedException if interrupted
+     * @throws AssertionError if one is still running after HANG_MS
+     */
+    private static void runAll(List<Thread> threads) throws InterruptedException, AssertionError {
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long deadline = System.currentTimeMillis() + HANG_MS;
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            check(!thread.isAlive(), "hung: " + thread.getName() + " still running after " + HANG_MS + " ms");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package BPv7.utils;
+
+import BPv7.containers.Bundle;
+import BPv7.interfaces.Codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.InvalidPropertiesFormatException;
+import java.util.logging.Logger;
+
+/**
+ * Fixed-layout binary wire format (see {@link Bundle#writeBinary(java.io.DataOutput)}).
+ * Cheapest format to produce: no CRCs, no variable-length integers, but only other nodes
+ * running this implementation understand it.
+ */
+public class BinaryCodec implements Codec {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(BinaryCodec.class.getName());
+
+    /** Output buffer reused by every bundle encoded on a given thread */
+    private static final ThreadLocal<ByteArrayOutputStream> buffers =
+            ThreadLocal.withInitial(() -> new ByteArrayOutputStream(2048));
+
+    /** Wire id of this codec */
+    private final int id;
+    /** Config name of this codec */
+    private final String name;
+
+    /**
+     * Constructs the binary codec
+     * @param id wire id of this codec
+     * @param name config name of this codec
+     */
+    BinaryCodec(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    @Override
+    public int id() { return id; }
+
+    @Override
+    public String name() { return name; }
+
+    @Override
+    public byte[] encode(Bundle bundle) throws InvalidPropertiesFormatException {
+        ByteArrayOutputStream buf = buffers.get();
+        buf.reset();
+        try {
+            bundle.writeBinary(new DataOutputStream(buf));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.severe("ERROR! Unable to write bundle to byte[]: " + e.getMessage());
+            throw new InvalidPropertiesFormatException(e.getMessage());
+        }
+        return buf.toByteArray();
+    }
+
+    @Override
+    public Bundle decode(byte[] toDecode) throws ParseException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(toDecode));
+            Bundle ret = Bundle.readBinary(in, toDecode.length);
+            if (in.available() > 0)
+                throw new ParseException("Unexpected bytes after the end of the bundle", toDecode.length - in.available());
+            return ret;
+        } catch (IOException e) {
+            logger.severe("ERROR! Unable to read a bundle from byte array: " + e.getMessage());
+            throw new ParseException(e.getMessage(), -1);
+        } catch (ParseException e) {
+            logger.severe("ERROR! Unable to read a bundle from byte array: " + e.getMessage());
+            throw e;
+        }
+    }
+}
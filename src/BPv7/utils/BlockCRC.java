@@ -0,0 +1,124 @@
+package BPv7.utils;
+
+import java.util.zip.CRC32C;
+
+/**
+ * Running CRC over the bytes of one block, as required by RFC 9171 section 4.2.1.
+ * When decoding, the CRC type of a block is only known after its first few fields have been read, so both CRC types
+ * are accumulated until then (select), and only the block's own type after that (its data is most of the bytes).
+ */
+public class BlockCRC {
+    /** CRC type values, as carried in the blocks themselves */
+    public static final int CRC_NONE = 0, CRC_16_X25 = 1, CRC_32C = 2;
+    /** CRC type of a CRC not selected yet: every type is accumulated */
+    private static final int CRC_ANY = -1;
+
+    /** Lookup table for the reflected X-25 polynomial (0x1021 reflected = 0x8408) */
+    private static final int[] X25_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int j = 0; j < 8; j++)
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0x8408 : c >>> 1;
+            X25_TABLE[i] = c;
+        }
+    }
+
+    /** Current (not yet finalized) X-25 register */
+    private int x25 = 0xFFFF;
+    /** CRC32C accumulator, the JDK version is intrinsified so this costs next to nothing */
+    private final CRC32C crc32c = new CRC32C();
+    /** CRC type accumulated, CRC_ANY until selected */
+    private int crcType;
+
+    /** Starts a CRC whose type is not known yet (select it once it is) */
+    public BlockCRC() { this.crcType = CRC_ANY; }
+
+    /**
+     * Starts a CRC of a known type
+     * @param crcType CRC type to accumulate
+     */
+    public BlockCRC(int crcType) {
+        valueLength(crcType);//rejects unknown types
+        this.crcType = crcType;
+    }
+
+    /**
+     * Gets the number of bytes the CRC value takes up on the wire for the given CRC type
+     * @param crcType CRC type of the block
+     * @return number of bytes in the CRC field (0 if no CRC)
+     * @throws IllegalArgumentException if the CRC type is unknown
+     */
+    public static int valueLength(int crcType) {
+        return switch (crcType) {
+            case CRC_NONE -> 0;
+            case CRC_16_X25 -> 2;
+            case CRC_32C -> 4;
+            default -> throw new IllegalArgumentException("Unknown CRC type: " + crcType);
+        };
+    }
+
+    /**
+     * Computes the CRC of the given type over a range of bytes in one go
+     * @param crcType CRC type to compute
+     * @param buf bytes to compute over
+     * @param off start offset
+     * @param len number of bytes
+     * @return the CRC value
+     */
+    public static long compute(int crcType, byte[] buf, int off, int len) {
+        BlockCRC crc = new BlockCRC(crcType);
+        crc.update(buf, off, len);
+        return crc.getValue(crcType);
+    }
+
+    /**
+     * Stops accumulating the other CRC types, once the CRC type of the block is known
+     * @param crcType CRC type of the block
+     * @throws IllegalArgumentException if the CRC type is unknown
+     * @throws IllegalStateException if another type was selected already
+     */
+    public void select(int crcType) {
+        valueLength(crcType);
+        if (this.crcType != CRC_ANY && this.crcType != crcType)
+            throw new IllegalStateException("CRC type " + this.crcType + " already selected, not " + crcType);
+        this.crcType = crcType;
+    }
+
+    /** Adds a single byte to the running CRCs */
+    public void update(int b) {
+        if (crcType == CRC_16_X25 || crcType == CRC_ANY)
+            x25 = (x25 >>> 8) ^ X25_TABLE[(x25 ^ b) & 0xFF];
+        if (crcType == CRC_32C || crcType == CRC_ANY)
+            crc32c.update(b);
+    }
+
+    /** Adds a range of bytes to the running CRCs */
+    public void update(byte[] buf, int off, int len) {
+        if (crcType == CRC_16_X25 || crcType == CRC_ANY) {
+            int c = x25;
+            for (int i = off, end = off + len; i < end; i++)
+                c = (c >>> 8) ^ X25_TABLE[(c ^ buf[i]) & 0xFF];
+            x25 = c;
+        }
+        if (crcType == CRC_32C || crcType == CRC_ANY)
+            crc32c.update(buf, off, len);
+    }
+
+    /**
+     * Gets the finalized CRC value for the given type (does not reset anything)
+     * @param crcType CRC type of the block
+     * @return CRC value, or 0 if the block has no CRC
+     * @throws IllegalStateException if another type was selected (this one was not accumulated)
+     */
+    public long getValue(int crcType) {
+        if (this.crcType != CRC_ANY && this.crcType != crcType && crcType != CRC_NONE)
+            throw new IllegalStateException("CRC type " + crcType + " not accumulated, " + this.crcType + " was selected");
+        return switch (crcType) {
+            case CRC_NONE -> 0;
+            case CRC_16_X25 -> (~x25) & 0xFFFF;
+            case CRC_32C -> crc32c.getValue();
+            default -> throw new IllegalArgumentException("Unknown CRC type: " + crcType);
+        };
+    }
+}
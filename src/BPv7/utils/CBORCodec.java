@@ -0,0 +1,71 @@
+package BPv7.utils;
+
+import BPv7.containers.Bundle;
+import BPv7.interfaces.Codec;
+
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.InvalidPropertiesFormatException;
+import java.util.logging.Logger;
+
+/**
+ * RFC 9171 CBOR wire format (see {@link Bundle#writeCBOR(CBOREncoder)}).
+ * Decoded bundles are lazy (see {@link Bundle#readCBORLazy(CBORDecoder)}), so forwarded bundles are never fully decoded.
+ */
+public class CBORCodec implements Codec {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(CBORCodec.class.getName());
+
+    /** Wire id of this codec */
+    private final int id;
+    /** Config name of this codec */
+    private final String name;
+
+    /**
+     * Constructs the CBOR codec
+     * @param id wire id of this codec
+     * @param name config name of this codec
+     */
+    CBORCodec(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    @Override
+    public int id() { return id; }
+
+    @Override
+    public String name() { return name; }
+
+    @Override
+    public byte[] encode(Bundle bundle) throws InvalidPropertiesFormatException {
+        //Bundle already keeps a reusable CBOR buffer per thread
+        return bundle.getNetworkEncoding(logger);
+    }
+
+    @Override
+    public Bundle decode(byte[] toDecode) throws ParseException {
+        try {
+            return Bundle.readCBORLazy(new CBORDecoder(toDecode));
+        } catch (ParseException e) {
+            logger.severe("ERROR! Unable to read a bundle from byte array (offset " + e.getErrorOffset()
+                    + "): " + e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes while the bundle is still arriving: nothing but the blocks themselves is buffered,
+     * and a malformed or oversized bundle is rejected as soon as it is noticed
+     */
+    @Override
+    public Bundle decode(InputStream in, int maxSize) throws ParseException {
+        try {
+            return Bundle.readCBORLazy(new CBORDecoder(in, maxSize));
+        } catch (ParseException e) {
+            logger.severe("ERROR! Unable to read a bundle from stream (offset " + e.getErrorOffset()
+                    + "): " + e.getMessage());
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package BPv7.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import static BPv7.utils.CBOREncoder.*;
+
+/**
+ * Does all the really annoying CBOR stuff (decoding side).
+ * Streaming CBOR (RFC 8949) decoder for the subset of CBOR used by RFC 9171 bundles.
+ * Every malformed input results in a ParseException whose error offset is the position
+ * the decoder was at, so callers can discard the bytes as BP requires.
+ * Can decode from an array, or straight from a stream while the bytes are still arriving (byte strings
+ * are then read into exactly-sized arrays, without buffering the whole bundle first).
+ * @implNote not thread safe, one decoder per bundle being decoded
+ */
+public class CBORDecoder {
+    /** Additional information values with special meanings */
+    private static final int AI_INDEFINITE = 31;
+
+    /** Size of the read-ahead buffer when decoding from a stream */
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    /** Bytes being decoded (all of them, or the read-ahead buffer when decoding from a stream) */
+    private final byte[] buf;
+    /** Next byte to read */
+    private int pos;
+    /** One past the last byte we are allowed to read (last byte read so far when decoding from a stream) */
+    private int limit;
+    /** Stream to refill buf from, null when decoding an array */
+    private final InputStream source;
+    /** Number of bytes consumed from source before buf[0] */
+    private int base = 0;
+    /** Most bytes we are willing to read from source */
+    private final int maxBytes;
+    /** Running CRC of the current block, null when not inside a block that is being checked */
+    private BlockCRC crc = null;
+    /** Copy of every byte consumed since beginCapture, null when not capturing (or decoding an array) */
+    private CBOREncoder capture = null;
+    /** Where the capture started when decoding an array (the bytes are already all in buf), -1 if not capturing */
+    private int captureStart = -1;
+    /** Stream every consumed byte is also written to, null when not teeing */
+    private OutputStream tee = null;
+    /** First exception the tee threw (the tee is dropped after that), null if none */
+    private IOException teeError = null;
+
+    /**
+     * Creates a decoder over a whole array
+     * @param toDecode bytes to decode
+     */
+    public CBORDecoder(byte[] toDecode) { this(toDecode, 0, toDecode.length); }
+
+    /**
+     * Creates a decoder over part of an array
+     * @param toDecode bytes to decode
+     * @param off offset of the first byte
+     * @param len number of bytes to decode
+     */
+    public CBORDecoder(byte[] toDecode, int off, int len) {
+        this.buf = toDecode;
+        this.pos = off;
+        this.limit = off + len;
+        this.source = null;
+        this.maxBytes = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Creates a decoder that reads from a stream as it decodes
+     * @param source stream to decode (only read as far as needed, plus some read-ahead)
+     * @param maxBytes most bytes to accept, anything longer is rejected as soon as its length is known
+     */
+    public CBORDecoder(InputStream source, int maxBytes) {
+        this.buf = new byte[STREAM_BUFFER_SIZE];
+        this.pos = 0;
+        this.limit = 0;
+        this.source = source;
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return position of the next byte to be read */
+    public int position() { return base + pos; }
+
+    /**
+     * @return true if there are bytes left to read
+     * @throws ParseException if the stream throws
+     */
+    public boolean hasRemaining() throws ParseException {
+        if (pos < limit || source == null)
+            return pos < limit;
+        compact();
+        int b = read();//not limited by maxBytes, any byte after the end of a bundle is one too many
+        if (b == -1)
+            return false;
+        buf[limit++] = (byte) b;
+        return true;
+    }
+
+    /**
+     * Makes sure n more bytes can be read
+     * @param n number of bytes needed
+     * @throws ParseException if the input ends early (or would be too long)
+     */
+    private void require(int n) throws ParseException {
+        if (n >= 0 && limit - pos >= n)
+            return;
+        if (n < 0 || source == null || n > buf.length)
+            throw new ParseException("Unexpected end of CBOR input (needed " + n + " more bytes)", position());
+        compact();
+        while (limit < n) {
+            int max = Math.min(buf.length - limit, maxBytes - (base + limit));
+            if (max <= 0)
+                throw new ParseException("Input longer than the maximum of " + maxBytes + " bytes", position());
+            int r = read(buf, limit, max);
+            if (r == -1)
+                throw new ParseException("Unexpected end of CBOR input (needed " + (n - limit) + " more bytes)", base + limit);
+            limit += r;
+        }
+    }
+
+    /** Moves the unread bytes to the start of buf (stream mode only) */
+    private void compact() {
+        if (pos == 0)
+            return;
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        base += pos;
+        limit -= pos;
+        pos = 0;
+    }
+
+    /**
+     * Reads one byte from the stream
+     * @return the byte, or -1 at the end of the stream
+     * @throws ParseException if the stream throws
+     */
+    private int read() throws ParseException {
+        try {
+            return source.read();
+        } catch (IOException e) {
+            throw new ParseException("Unable to read CBOR input: " + e.getMessage(), position());
+        }
+    }
+
+    /**
+     * Reads from the stream
+     * @param b array to read into
+     * @param off offset to read to
+     * @param len most bytes to read
+     * @return number of bytes read, or -1 at the end of the stream
+     * @throws ParseException if the stream throws
+     */
+    private int read(byte[] b, int off, int len) throws ParseException {
+        try {
+            return source.read(b, off, len);
+        } catch (IOException e) {
+            throw new ParseException("Unable to read CBOR input: " + e.getMessage(), position());
+        }
+    }
+
+    /**
+     * Consumes the contents of a string into a freshly allocated, exactly-sized array.
+     * When decoding a stream, whatever is not already buffered is read straight into that array.
+     * @param len length of the string (from its head)
+     * @param what description for the error message
+     * @return the contents
+     * @throws ParseException if the input is too short, or the string would make the input too long
+     */
+    private byte[] readContents(long len, String what) throws ParseException {
+        if (len > Integer.MAX_VALUE || len > (long) maxBytes - position())
+            throw new ParseException(what + " too long: " + len, position());
+        int n = (int) len;
+        if (source == null)
+            require(n);
+        byte[] ret = new byte[n];
+        int have = Math.min(limit - pos, n);
+        System.arraycopy(buf, pos, ret, 0, have);
+        pos += have;
+        if (have < n) {//stream mode, buf is now empty
+            compact();
+            for (int off = have; off < n; ) {
+                int r = read(ret, off, n - off);
+                if (r == -1)
+                    throw new ParseException("Unexpected end of CBOR input (needed " + (n - off) + " more bytes)", base);
+                off += r;
+                base += r;
+            }
+        }
+        if (crc != null)
+            crc.update(ret, 0, n);
+        if (capture != null)
+            capture.writeRaw(ret, 0, n);
+        if (tee != null)
+            teeWrite(ret, 0, n);
+        return ret;
+    }
+
+    /**
+     * Consumes the contents of a string without keeping them (they still go to the CRC and the capture)
+     * @param len length of the string (from its head)
+     * @param what description for the error message
+     * @throws ParseException if the input is too short, or the string would make the input too long
+     */
+    private void skipContents(long len, String what) throws ParseException {
+        if (len > Integer.MAX_VALUE || len > (long) maxBytes - position())
+            throw new ParseException(what + " too long: " + len, position());
+        int remaining = (int) len;
+        if (source == null)
+            require(remaining);
+        while (remaining > 0) {
+            require(1);
+            int n = Math.min(limit - pos, remaining);
+            if (crc != null)
+                crc.update(buf, pos, n);
+            if (capture != null)
+                capture.writeRaw(buf, pos, n);
+            if (tee != null)
+                teeWrite(buf, pos, n);
+            pos += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Consumes a single byte
+     * @return the byte as an unsigned value
+     * @throws ParseException if the input ends early
+     */
+    private int next() throws ParseException {
+        require(1);
+        int b = buf[pos++] & 0xFF;
+        if (crc != null)
+            crc.update(b);
+        if (capture != null)
+            capture.writeRawByte(b);
+        if (tee != null)
+            teeWrite(b);
+        return b;
+    }
+
+    /**
+     * Looks at the next initial byte without consuming it
+     * @return the next byte as an unsigned value
+     * @throws ParseException if the input ends early
+     */
+    public int peek() throws ParseException {
+        require(1);
+        return buf[pos] & 0xFF;
+    }
+
+    /** @return true if the next byte is the "break" stop code */
+    public boolean peekBreak() throws ParseException { return peek() == BREAK; }
+
+    /**
+     * Reads the argument of a data item whose initial byte was already consumed
+     * @param initial the initial byte
+     * @return the argument (may be "negative" if it does not fit a signed long)
+     * @throws ParseException if the additional information is reserved or input ends early
+     */
+    private long readArgument(int initial) throws ParseException {
+        int ai = initial & 0x1F;
+        if (ai < 24)
+            return ai;
+        int n = switch (ai) {
+            case 24 -> 1;
+            case 25 -> 2;
+            case 26 -> 4;
+            case 27 -> 8;
+            default -> throw new ParseException("Unexpected CBOR additional information " + ai, position() - 1);
+        };
+        long value = 0;
+        for (int i = 0; i < n; i++)
+            value = (value << 8) | next();
+        return value;
+    }
+
+    /**
+     * Reads the head of a data item and checks its major type
+     * @param majorType expected shifted major type
+     * @param what description for the error message
+     * @return the argument of the head
+     * @throws ParseException if the major type is wrong or the input is malformed
+     */
+    private long readHead(int majorType, String what) throws ParseException {
+        int initial = next();
+        if ((initial & 0xE0) != majorType)
+            throw new ParseException("Expected " + what + " but found CBOR initial byte 0x"
+                    + Integer.toHexString(initial), position() - 1);
+        if ((initial & 0x1F) == AI_INDEFINITE)
+            throw new ParseException("Unexpected indefinite length " + what, position() - 1);
+        return readArgument(initial);
+    }
+
+    /**
+     * Reads an unsigned integer
+     * @return the value
+     * @throws ParseException if the next item is not an unsigned int or does not fit a long
+     */
+    public long readUnsigned() throws ParseException {
+        long value = readHead(MT_UNSIGNED, "unsigned int");
+        if (value < 0)
+            throw new ParseException("Unsigned int too large: " + Long.toUnsignedString(value), position());
+        return value;
+    }
+
+    /**
+     * Reads an unsigned integer that has to fit into a Java int
+     * @return the value
+     * @throws ParseException if the next item is not an unsigned int or is too big
+     */
+    public int readUnsignedInt() throws ParseException {
+        long value = readUnsigned();
+        if (value > Integer.MAX_VALUE)
+            throw new ParseException("Unsigned int too large for this implementation: " + value, position());
+        return (int) value;
+    }
+
+    /**
+     * Reads the head of an array
+     * @return number of items, or -1 if it is an indefinite-length array
+     * @throws ParseException if the next item is not an array
+     */
+    public int readArrayHeader() throws ParseException {
+        int initial = peek();
+        if (initial == INDEFINITE_ARRAY) {
+            next();
+            return -1;
+        }
+        long len = readHead(MT_ARRAY, "array");
+        if (len > Integer.MAX_VALUE)
+            throw new ParseException("Array too long: " + len, position());
+        return (int) len;
+    }
+
+    /**
+     * Reads the head of a definite-length array that must have one of the given lengths
+     * @param allowed allowed lengths
+     * @return number of items
+     * @throws ParseException if not a definite array of an allowed length
+     */
+    public int readArrayHeader(int... allowed) throws ParseException {
+        int start = position();
+        int len = readArrayHeader();
+        for (int a : allowed)
+            if (a == len)
+                return len;
+        throw new ParseException("Unexpected array length " + len, start);
+    }
+
+    /**
+     * Reads the "break" stop code
+     * @throws ParseException if the next byte is not a break
+     */
+    public void readBreak() throws ParseException {
+        if (next() != BREAK)
+            throw new ParseException("Expected CBOR break", position() - 1);
+    }
+
+    /**
+     * Reads a boolean simple value
+     * @return the value
+     * @throws ParseException if the next item is not a boolean
+     */
+    public boolean readBoolean() throws ParseException {
+        int b = next();
+        if (b == TRUE) return true;
+        if (b == FALSE) return false;
+        throw new ParseException("Expected CBOR boolean", position() - 1);
+    }
+
+    /**
+     * Reads a definite-length byte string into a freshly allocated, exactly-sized array
+     * @return the contents
+     * @throws ParseException if the next item is not a byte string or the input is too short
+     */
+    public byte[] readByteString() throws ParseException {
+        return readContents(readHead(MT_BYTES, "byte string"), "Byte string");
+    }
+
+    /**
+     * Reads a definite-length UTF-8 text string
+     * @return the string
+     * @throws ParseException if the next item is not a text string or the input is too short
+     */
+    public String readTextString() throws ParseException {
+        return new String(readContents(readHead(MT_TEXT, "text string"), "Text string"), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads past a definite-length byte string without allocating anything for its contents
+     * @return length of the byte string
+     * @throws ParseException if the next item is not a byte string or the input is too short
+     */
+    public int skipByteString() throws ParseException {
+        long len = readHead(MT_BYTES, "byte string");
+        skipContents(len, "Byte string");
+        return (int) len;
+    }
+
+    /** @return true if the next item is an unsigned int */
+    public boolean peekUnsigned() throws ParseException { return (peek() & 0xE0) == MT_UNSIGNED; }
+
+    /**
+     * Starts computing the CRC of a block, must be called before the block's array header is read
+     * @implNote blocks do not nest, so there is only ever one running CRC
+     */
+    public void beginCRC() { crc = new BlockCRC(); }
+
+    /**
+     * Tells the running CRC the CRC type of the block, once its CRC type field is read: from then on only that type is
+     * computed over the bytes consumed (none for CRC_NONE)
+     * @param crcType CRC type of the block
+     * @throws IllegalArgumentException if the CRC type is unknown
+     */
+    public void selectCRC(int crcType) {
+        if (crc != null)
+            crc.select(crcType);
+    }
+
+    /**
+     * Reads the CRC field of a block. Per RFC 9171 the CRC is computed with the CRC value itself
+     * set to zeroes, so the value bytes are not added to the running CRC, zeroes are.
+     * @param crcType CRC type of the block (must not be 0)
+     * @return the CRC value the sender put in the block
+     * @throws ParseException if the field is not a byte string of the right size
+     */
+    public long readCRCValue(int crcType) throws ParseException {
+        int expected = BlockCRC.valueLength(crcType);
+        long len = readHead(MT_BYTES, "CRC byte string");
+        if (len != expected)
+            throw new ParseException("CRC of type " + crcType + " must be " + expected + " bytes, was " + len, position());
+        require(expected);
+        long value = 0;
+        for (int i = 0; i < expected; i++) {
+            int b = buf[pos++] & 0xFF;
+            value = (value << 8) | b;
+            if (crc != null)
+                crc.update(0);
+            if (capture != null)
+                capture.writeRawByte(b);
+            if (tee != null)
+                teeWrite(b);
+        }
+        return value;
+    }
+
+    /**
+     * Stops computing the CRC of the current block
+     * @param crcType CRC type of the block
+     * @return CRC computed over the block (0 if crcType is 0 or no CRC was being computed)
+     */
+    public long endCRC(int crcType) {
+        long ret = crc == null ? 0 : crc.getValue(crcType);
+        crc = null;
+        return ret;
+    }
+
+    /**
+     * Starts keeping a copy of every byte consumed from now on (to hold on to encoded blocks without decoding them)
+     * @param expectedSize how many bytes will probably be captured (to size the buffer)
+     */
+    public void beginCapture(int expectedSize) {
+        if (source == null)
+            captureStart = pos;
+        else
+            capture = new CBOREncoder(expectedSize);
+    }
+
+    /**
+     * Stops keeping a copy of consumed bytes
+     * @return every byte consumed since beginCapture, exactly as it was encoded
+     */
+    public byte[] endCapture() {
+        byte[] ret;
+        if (captureStart >= 0)
+            ret = Arrays.copyOfRange(buf, captureStart, pos);
+        else
+            ret = capture == null ? new byte[0] : capture.toByteArray();
+        capture = null;
+        captureStart = -1;
+        return ret;
+    }
+
+    /**
+     * Starts writing every byte consumed from now on to a stream as well, e.g. to relay a bundle while it is
+     * still arriving. A failing stream never fails the decoding, it is just dropped (see endTee).
+     * @param out stream to copy consumed bytes to
+     */
+    public void beginTee(OutputStream out) {
+        tee = out;
+        teeError = null;
+    }
+
+    /**
+     * Stops copying consumed bytes
+     * @return the exception the stream threw (not every byte was copied), or null if every byte was copied
+     */
+    public IOException endTee() {
+        tee = null;
+        return teeError;
+    }
+
+    /**
+     * Stops copying consumed bytes because the copy must not be completed (e.g. what was copied is not what will be
+     * forwarded), so that endTee reports it as not every byte copied. Does nothing when not copying
+     * @param reason why, the message of the exception endTee returns
+     */
+    public void abortTee(String reason) {
+        if (tee == null)
+            return;
+        tee = null;
+        teeError = new IOException(reason);
+    }
+
+    /**
+     * Copies a consumed byte to the tee
+     * @param b the byte
+     */
+    private void teeWrite(int b) {
+        try {
+            tee.write(b);
+        } catch (IOException e) {
+            teeError = e;
+            tee = null;
+        }
+    }
+
+    /**
+     * Copies consumed bytes to the tee
+     * @param b array holding the bytes
+     * @param off offset of the first byte
+     * @param len number of bytes
+     */
+    private void teeWrite(byte[] b, int off, int len) {
+        try {
+            tee.write(b, off, len);
+        } catch (IOException e) {
+            teeError = e;
+            tee = null;
+        }
+    }
+}
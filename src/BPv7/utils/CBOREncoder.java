@@ -0,0 +1,193 @@
+package BPv7.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Does all the really annoying CBOR stuff (encoding side).
+ * Streaming CBOR (RFC 8949) encoder that writes straight into a growable byte buffer.
+ * Only the subset of CBOR that RFC 9171 bundles actually use is supported (unsigned ints,
+ * byte/text strings, definite and indefinite arrays, booleans).
+ * @implNote not thread safe, but meant to be reused (see {@link #reset()}) so that
+ *  encoding a bundle does not allocate anything except the final copy of the bytes
+ */
+public class CBOREncoder {
+    /** CBOR major types, already shifted into the top three bits of the initial byte */
+    static final int MT_UNSIGNED = 0x00, MT_BYTES = 0x40, MT_TEXT = 0x60, MT_ARRAY = 0x80;
+    /** Initial bytes with special meanings */
+    public static final int INDEFINITE_ARRAY = 0x9f, BREAK = 0xff, FALSE = 0xf4, TRUE = 0xf5;
+    /** Default starting size of the buffer, big enough for most of our bundles */
+    private static final int DEFAULT_CAPACITY = 2048;
+
+    /** The buffer being written into */
+    private byte[] buf;
+    /** Number of valid bytes in buf */
+    private int size = 0;
+
+    /** Creates an encoder with the default starting capacity */
+    public CBOREncoder() { this(DEFAULT_CAPACITY); }
+
+    /**
+     * Creates an encoder with the given starting capacity
+     * @param capacity starting capacity in bytes
+     */
+    public CBOREncoder(int capacity) { buf = new byte[Math.max(16, capacity)]; }
+
+    /** Throws away everything written so far (keeps the buffer for reuse) */
+    public void reset() { size = 0; }
+
+    /** @return number of bytes written so far, also the position the next byte will be written at */
+    public int position() { return size; }
+
+    /** @return copy of everything written so far */
+    public byte[] toByteArray() { return Arrays.copyOf(buf, size); }
+
+    /**
+     * Writes everything written so far to the given stream (no copy)
+     * @param out stream to write to
+     * @throws IOException if the stream throws
+     */
+    public void writeTo(OutputStream out) throws IOException { out.write(buf, 0, size); }
+
+    /**
+     * Makes sure at least n more bytes fit in the buffer
+     * @param n number of bytes about to be written
+     */
+    private void ensureCapacity(int n) {
+        if (size + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + n));
+    }
+
+    /**
+     * Writes the head of a data item (major type + argument) in its shortest form
+     * @param majorType shifted major type
+     * @param value argument, treated as unsigned
+     */
+    private void writeHead(int majorType, long value) {
+        ensureCapacity(9);
+        if (value >= 0 && value < 24) {
+            buf[size++] = (byte) (majorType | value);
+        } else if (value >= 0 && value <= 0xFFL) {
+            buf[size++] = (byte) (majorType | 24);
+            buf[size++] = (byte) value;
+        } else if (value >= 0 && value <= 0xFFFFL) {
+            buf[size++] = (byte) (majorType | 25);
+            buf[size++] = (byte) (value >>> 8);
+            buf[size++] = (byte) value;
+        } else if (value >= 0 && value <= 0xFFFFFFFFL) {
+            buf[size++] = (byte) (majorType | 26);
+            for (int shift = 24; shift >= 0; shift -= 8)
+                buf[size++] = (byte) (value >>> shift);
+        } else {
+            buf[size++] = (byte) (majorType | 27);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                buf[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    /**
+     * Writes a single raw byte (for things like the indefinite array start and break codes)
+     * @param b byte to write
+     */
+    public void writeRawByte(int b) {
+        ensureCapacity(1);
+        buf[size++] = (byte) b;
+    }
+
+    /**
+     * Writes already-encoded CBOR bytes as they are
+     * @param bytes bytes to copy
+     * @param off start offset
+     * @param len number of bytes
+     */
+    public void writeRaw(byte[] bytes, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(bytes, off, buf, size, len);
+        size += len;
+    }
+
+    /**
+     * Writes an unsigned integer
+     * @param value value, must not be negative (CBOR negative ints are not used by BP)
+     * @throws IllegalArgumentException if value is negative
+     */
+    public void writeUnsigned(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Negative value where an unsigned int is required: " + value);
+        writeHead(MT_UNSIGNED, value);
+    }
+
+    /**
+     * Writes the head of a definite-length array, the caller then writes exactly length items
+     * @param length number of items in the array
+     */
+    public void writeArrayHeader(int length) { writeHead(MT_ARRAY, length); }
+
+    /** Starts an indefinite-length array, must be closed with {@link #writeBreak()} */
+    public void writeIndefiniteArrayHeader() { writeRawByte(INDEFINITE_ARRAY); }
+
+    /** Writes the "break" stop code closing an indefinite-length array */
+    public void writeBreak() { writeRawByte(BREAK); }
+
+    /** Writes a boolean simple value */
+    public void writeBoolean(boolean value) { writeRawByte(value ? TRUE : FALSE); }
+
+    /**
+     * Writes a byte string (no base64 or anything silly, just the bytes)
+     * @param bytes contents of the string
+     */
+    public void writeByteString(byte[] bytes) { writeByteString(bytes, 0, bytes.length); }
+
+    /**
+     * Writes part of an array as a byte string
+     * @param bytes array to copy from
+     * @param off start offset
+     * @param len number of bytes
+     */
+    public void writeByteString(byte[] bytes, int off, int len) {
+        writeHead(MT_BYTES, len);
+        writeRaw(bytes, off, len);
+    }
+
+    /**
+     * Writes a UTF-8 text string
+     * @param text string to write
+     */
+    public void writeTextString(String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        writeHead(MT_TEXT, utf8.length);
+        writeRaw(utf8, 0, utf8.length);
+    }
+
+    /**
+     * Writes the CRC field of a block with the value zeroed out, to be filled in by
+     * {@link #patchCRC(int, int, int)} once the rest of the block has been written
+     * @param crcType CRC type of the block (must not be 0)
+     * @return position of the first byte of the CRC value
+     */
+    public int writeCRCPlaceholder(int crcType) {
+        int len = BlockCRC.valueLength(crcType);
+        writeHead(MT_BYTES, len);
+        int valuePos = size;
+        ensureCapacity(len);
+        Arrays.fill(buf, size, size + len, (byte) 0);
+        size += len;
+        return valuePos;
+    }
+
+    /**
+     * Computes the CRC over a finished block (whose CRC value is still all zeroes, per
+     * RFC 9171 4.2.1) and writes it over the placeholder
+     * @param crcType CRC type of the block
+     * @param blockStart position of the first byte of the block
+     * @param valuePos position returned by {@link #writeCRCPlaceholder(int)}
+     */
+    public void patchCRC(int crcType, int blockStart, int valuePos) {
+        int len = BlockCRC.valueLength(crcType);
+        long crc = BlockCRC.compute(crcType, buf, blockStart, size - blockStart);
+        for (int i = 0; i < len; i++)
+            buf[valuePos + i] = (byte) (crc >>> (8 * (len - 1 - i)));
+    }
+}
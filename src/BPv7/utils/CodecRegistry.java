@@ -0,0 +1,94 @@
+package BPv7.utils;
+
+import BPv7.interfaces.Codec;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Holds the one (cached, thread safe) instance of every wire format this node understands
+ */
+public class CodecRegistry {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(CodecRegistry.class.getName());
+
+    /**
+     * The only instance of this class allowed in the entire program
+     * @implNote not making this volatile because its value only changes once
+     *  (null -> instance), thus only one set of double-checked locking is needed
+     *  (caching ok because all variables are final)
+     */
+    private static CodecRegistry instance = null;
+
+    /** Wire ids of the built-in codecs (never reuse an id, older nodes may still send it) */
+    public static final int LEGACY_JSON_ID = 0, COMPACT_JSON_ID = 1, BINARY_ID = 2, CBOR_ID = 3;
+
+    /** Codecs by wire id, ids are bytes on the wire */
+    private final Codec[] byId = new Codec[256];
+    /** Codecs by config name, in registration order */
+    private final Map<String, Codec> byName = new LinkedHashMap<>();
+
+    /**
+     * Gets the singleton instance of the codec registry
+     * @return a reference to the codec registry instance
+     * @implNote not making this.instance volatile because its value only changes once
+     *  (null -> instance), thus only one set of double-checked locking is needed
+     */
+    public static CodecRegistry getInstance() {
+        //noinspection DoubleCheckedLocking
+        if (instance == null) {
+            synchronized (CodecRegistry.class) {
+                if (instance == null) {
+                    instance = new CodecRegistry();
+                    logger.info("Created CodecRegistry singleton");
+                }
+            }
+        }
+        return instance;
+    }
+
+    /** Hiding default constructor to force singleton use. Registers the built-in codecs */
+    private CodecRegistry() {
+        register(new JsonCodec(LEGACY_JSON_ID, "json", true));
+        register(new JsonCodec(COMPACT_JSON_ID, "json-compact", false));
+        register(new BinaryCodec(BINARY_ID, "binary"));
+        register(new CBORCodec(CBOR_ID, "cbor"));
+    }
+
+    /**
+     * Adds a codec to the registry
+     * @param codec codec to add
+     * @throws IllegalArgumentException if the id is out of range or the id or name is already taken
+     */
+    private void register(Codec codec) throws IllegalArgumentException {
+        if (codec.id() < 0 || codec.id() >= byId.length)
+            throw new IllegalArgumentException("Codec id out of range: " + codec.id());
+        if (byId[codec.id()] != null || byName.containsKey(codec.name()))
+            throw new IllegalArgumentException("Codec already registered: " + codec.name() + " (" + codec.id() + ")");
+        byId[codec.id()] = codec;
+        byName.put(codec.name(), codec);
+    }
+
+    /**
+     * @param name config name of the codec
+     * @return the codec, or null if there is no codec with that name
+     */
+    public Codec get(String name) { return byName.get(name); }
+
+    /**
+     * @param id wire id of the codec
+     * @return the codec, or null if there is no codec with that id
+     */
+    public Codec get(int id) { return id < 0 || id >= byId.length ? null : byId[id]; }
+
+    /** @return the format every node understands (what nodes sent before formats were negotiated) */
+    public Codec legacy() { return byId[LEGACY_JSON_ID]; }
+
+    /** @return every registered codec, in registration order */
+    public List<Codec> all() { return List.copyOf(byName.values()); }
+
+    /** @return config names of every registered codec, in registration order */
+    public List<String> names() { return List.copyOf(byName.keySet()); }
+}
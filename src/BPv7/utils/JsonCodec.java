@@ -0,0 +1,78 @@
+package BPv7.utils;
+
+import BPv7.containers.Bundle;
+import BPv7.interfaces.Codec;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.InvalidPropertiesFormatException;
+import java.util.logging.Logger;
+
+/**
+ * Jackson JSON wire format. The pretty-printed version is what every node sent before CBOR, so it
+ * is the one format every node understands.
+ */
+public class JsonCodec implements Codec {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(JsonCodec.class.getName());
+
+    /**
+     * The one ObjectMapper everything JSON should go through.
+     * @implNote ObjectMappers are expensive to build but thread safe once configured, so never build one per call
+     */
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /** Wire id of this codec */
+    private final int id;
+    /** Config name of this codec */
+    private final String name;
+    /** Cached (thread safe) writer, pretty printing or not */
+    private final ObjectWriter writer;
+    /** Cached (thread safe) reader for bundles */
+    private final ObjectReader reader = mapper.readerFor(Bundle.class);
+
+    /**
+     * Constructs a JSON codec
+     * @param id wire id of this codec
+     * @param name config name of this codec
+     * @param pretty true to pretty print (what older nodes send)
+     */
+    JsonCodec(int id, String name, boolean pretty) {
+        this.id = id;
+        this.name = name;
+        this.writer = pretty ? mapper.writerWithDefaultPrettyPrinter() : mapper.writer();
+    }
+
+    /** @return the shared ObjectMapper, for the things that still need plain JSON (admin records) */
+    public static ObjectMapper mapper() { return mapper; }
+
+    @Override
+    public int id() { return id; }
+
+    @Override
+    public String name() { return name; }
+
+    @Override
+    public byte[] encode(Bundle bundle) throws InvalidPropertiesFormatException {
+        try {
+            return writer.writeValueAsBytes(bundle);
+        } catch (JsonProcessingException e) {
+            logger.severe("ERROR! Unable to write bundle to byte[]: " + e.getMessage());
+            throw new InvalidPropertiesFormatException(e.getMessage());
+        }
+    }
+
+    @Override
+    public Bundle decode(byte[] toDecode) throws ParseException {
+        try {
+            return reader.readValue(toDecode);
+        } catch (IOException e) {
+            logger.severe("ERROR! Unable to read a bundle from byte array: " + e.getMessage());
+            throw new ParseException(e.getMessage(), -1);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package BPv7.utils;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded blocking queue on a preallocated ring of slots (a power of 2 of them), handing elements from one stage of
+ * the pipeline to the next without allocating or locking per element.
+ * <p>
+ * Every slot carries a sequence number saying whose turn it is: a producer claims the next slot by moving the tail
+ * (plainly if there is a single producer, by compare-and-set if there are several), writes the element, then publishes
+ * it by setting the slot's sequence; a consumer claims a published slot by moving the head (compare-and-set, so any
+ * number of consumers may take), reads it, then frees it for the producer one lap later. offerAll and drainTo claim and
+ * publish (or take and free) a whole run of slots at once.
+ * <p>
+ * How a thread waits for room (producers) or elements (consumers) is the WaitStrategy: busy-spinning and yielding keep
+ * the hand-off entirely lock-free at the cost of a core, parking blocks on a lock only while someone waits (publishing
+ * or freeing only takes the lock when a thread is parked).
+ * @param <E> type of the elements
+ */
+public class RingBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    /**
+     * How a thread waits for room or for elements
+     */
+    public enum WaitStrategy {
+        /** Spins on the CPU (Thread.onSpinWait): lowest latency, burns a core per waiting thread */
+        SPIN,
+        /** Spins, yielding the CPU between tries (Thread.yield) */
+        YIELD,
+        /** Blocks until signalled (like LinkedBlockingQueue), the default */
+        PARK;
+
+        /**
+         * @param name name of a strategy, any case
+         * @return the strategy
+         * @throws IllegalArgumentException if no strategy has that name
+         */
+        public static WaitStrategy of(String name) { return valueOf(name.toUpperCase(Locale.ROOT)); }
+    }
+
+    /** The elements, by slot */
+    private final Object[] items;
+    /**
+     * Sequence of every slot: its position when a producer may claim it, its position + 1 once published, its
+     * position + capacity once taken (free for the next lap)
+     */
+    private final AtomicLongArray sequences;
+    /** Slots - 1 (the slot of a position is position & mask) */
+    private final int mask;
+    /** True if only one thread ever adds (claims the tail without compare-and-set) */
+    private final boolean singleProducer;
+    /** How threads wait for room or elements */
+    private final WaitStrategy waitStrategy;
+    /** Next position to claim for producing */
+    private final AtomicLong tail = new AtomicLong();
+    /** Next position to claim for consuming */
+    private final AtomicLong head = new AtomicLong();
+    /** Guards the conditions parked threads wait on (WaitStrategy.PARK only) */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when elements are published while consumers are parked */
+    private final Condition notEmpty = lock.newCondition();
+    /** Signalled when slots are freed while producers are parked */
+    private final Condition notFull = lock.newCondition();
+    /** Consumers parked or about to (changed under the lock) */
+    private volatile int emptyWaiters = 0;
+    /** Producers parked or about to (changed under the lock) */
+    private volatile int fullWaiters = 0;
+
+    /**
+     * Creates an empty ring buffer
+     * @param capacity most elements held, rounded up to a power of 2 (at least 2: with a single slot, its sequence
+     *                 could not tell a published element from a slot freed for the next lap)
+     * @param singleProducer true if only one thread ever adds elements
+     * @param waitStrategy how threads wait for room or elements
+     */
+    public RingBuffer(int capacity, boolean singleProducer, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid ring buffer capacity: " + capacity);
+        int slots = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.items = new Object[slots];
+        this.sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++)
+            sequences.set(i, i);
+        this.mask = slots - 1;
+        this.singleProducer = singleProducer;
+        this.waitStrategy = Objects.requireNonNull(waitStrategy);
+    }
+
+    /** @return the number of slots (the capacity asked for, rounded up to a power of 2) */
+    public int capacity() { return items.length; }
+
+    // producing
+
+    @Override
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        long pos = claimOne();
+        if (pos < 0)
+            return false;
+        publish(pos, e);
+        signalNotEmpty(false);
+        return true;
+    }
+
+    /**
+     * Claims one free slot from the tail
+     * @return its position, -1 if the ring is full
+     */
+    private long claimOne() {
+        while (true) {
+            long pos = tail.get();
+            long diff = sequences.get((int) pos & mask) - pos;
+            if (diff < 0)
+                return -1;//the slot still holds the element of the last lap: full
+            if (diff == 0) {
+                if (singleProducer) {
+                    tail.lazySet(pos + 1);
+                    return pos;
+                }
+                if (tail.compareAndSet(pos, pos + 1))
+                    return pos;
+            }
+            //another producer claimed it, try the next one
+        }
+    }
+
+    /**
+     * Writes an element in a claimed slot and publishes it to the consumers
+     * @param pos position of the slot
+     * @param e the element
+     */
+    private void publish(long pos, E e) {
+        int slot = (int) pos & mask;
+        items[slot] = e;
+        sequences.set(slot, pos + 1);
+    }
+
+    /**
+     * Adds as many elements of a batch as there is room for, claiming their slots at once and publishing them in order
+     * @param batch the elements, in order
+     * @return how many were added (the first ones of the batch)
+     */
+    public int offerAll(List<? extends E> batch) {
+        int n = batch.size();
+        if (n == 0)
+            return 0;
+        for (E e : batch)//before claiming: a claimed slot must be published
+            Objects.requireNonNull(e);
+        long pos;
+        int claimedRun;
+        while (true) {//claim the longest run of free slots, up to n
+            pos = tail.get();
+            claimedRun = 0;
+            while (claimedRun < n && sequences.get((int) (pos + claimedRun) & mask) == pos + claimedRun)
+                claimedRun++;
+            if (claimedRun == 0) {
+                if (sequences.get((int) pos & mask) - pos < 0)
+                    return 0;//full
+                continue;//another producer claimed pos
+            }
+            if (singleProducer) {
+                tail.lazySet(pos + claimedRun);
+                break;
+            }
+            if (tail.compareAndSet(pos, pos + claimedRun))
+                break;
+        }
+        for (int i = 0; i < claimedRun; i++)
+            publish(pos + i, batch.get(i));
+        signalNotEmpty(claimedRun > 1);
+        return claimedRun;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        Objects.requireNonNull(e);
+        while (!offer(e))
+            awaitRoom(0);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(e);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e))
+            if (!awaitRoom(deadline))
+                return false;
+        return true;
+    }
+
+    // consuming
+
+    @Override
+    public E poll() {
+        while (true) {
+            long pos = head.get();
+            int slot = (int) pos & mask;
+            long diff = sequences.get(slot) - (pos + 1);
+            if (diff < 0)
+                return null;//not published yet: empty
+            if (diff == 0 && head.compareAndSet(pos, pos + 1)) {
+                E e = release(pos);
+                signalNotFull(false);
+                return e;
+            }
+            //another consumer took it, try the next one
+        }
+    }
+
+    /**
+     * Reads the element of a slot claimed for consuming and frees the slot for the next lap (producers waiting for
+     * room are left for the caller to signal)
+     * @param pos position of the slot
+     * @return the element
+     */
+    @SuppressWarnings("unchecked")
+    private E release(long pos) {
+        int slot = (int) pos & mask;
+        E e = (E) items[slot];
+        items[slot] = null;
+        sequences.set(slot, pos + items.length);
+        return e;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this)
+            throw new IllegalArgumentException("Cannot drain a ring buffer into itself");
+        if (maxElements <= 0)
+            return 0;
+        while (true) {//claim the longest run of published slots, up to maxElements
+            long pos = head.get();
+            int n = 0;
+            while (n < maxElements && sequences.get((int) (pos + n) & mask) == pos + n + 1)
+                n++;
+            if (n == 0) {
+                if (sequences.get((int) pos & mask) - (pos + 1) < 0)
+                    return 0;//empty
+                continue;//another consumer took pos
+            }
+            if (head.compareAndSet(pos, pos + n)) {
+                //free every claimed slot before handing anything to c: if c.add throws, the ring still moves on
+                List<E> taken = new ArrayList<>(n);
+                for (int i = 0; i < n; i++)
+                    taken.add(release(pos + i));
+                signalNotFull(n > 1);
+                c.addAll(taken);
+                return n;
+            }
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) { return drainTo(c, Integer.MAX_VALUE); }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null)
+            awaitElements(0);
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null)
+            if (!awaitElements(deadline))
+                return null;
+        return e;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long pos = head.get();
+        int slot = (int) pos & mask;
+        E e = (E) items[slot];
+        return sequences.get(slot) == pos + 1 ? e : null;//racy: the element may be taken meanwhile
+    }
+
+    // waiting
+
+    /**
+     * Waits (with the wait strategy) until a slot may have been freed
+     * @param deadline System.nanoTime() to give up at, 0 for never
+     * @return false if the deadline passed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private boolean awaitRoom(long deadline) throws InterruptedException {
+        if (waitStrategy != WaitStrategy.PARK)
+            return spin(deadline);
+        lock.lockInterruptibly();
+        try {
+            fullWaiters++;
+            try {
+                //re-check once counted as waiting: a slot freed from now on signals
+                long pos = tail.get();
+                if (sequences.get((int) pos & mask) - pos >= 0)
+                    return true;
+                return await(notFull, deadline);
+            } finally {
+                fullWaiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits (with the wait strategy) until an element may have been published
+     * @param deadline System.nanoTime() to give up at, 0 for never
+     * @return false if the deadline passed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private boolean awaitElements(long deadline) throws InterruptedException {
+        if (waitStrategy != WaitStrategy.PARK)
+            return spin(deadline);
+        lock.lockInterruptibly();
+        try {
+            emptyWaiters++;
+            try {
+                //re-check once counted as waiting: an element published from now on signals
+                long pos = head.get();
+                if (sequences.get((int) pos & mask) - (pos + 1) >= 0)
+                    return true;
+                return await(notEmpty, deadline);
+            } finally {
+                emptyWaiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parks on a condition (the lock is held)
+     * @param condition the condition
+     * @param deadline System.nanoTime() to give up at, 0 for never
+     * @return false if the deadline passed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static boolean await(Condition condition, long deadline) throws InterruptedException {
+        if (deadline == 0) {
+            condition.await();
+            return true;
+        }
+        long left = deadline - System.nanoTime();
+        return left > 0 && condition.awaitNanos(left) > 0;
+    }
+
+    /**
+     * Spins once (SPIN or YIELD)
+     * @param deadline System.nanoTime() to give up at, 0 for never
+     * @return false if the deadline passed
+     * @throws InterruptedException if interrupted
+     */
+    private boolean spin(long deadline) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (deadline != 0 && deadline - System.nanoTime() <= 0)
+            return false;
+        if (waitStrategy == WaitStrategy.YIELD)
+            Thread.yield();
+        else
+            Thread.onSpinWait();
+        return true;
+    }
+
+    /**
+     * Wakes parked consumers after publishing, if there are any
+     * @param all true to wake them all (several elements were published)
+     */
+    private void signalNotEmpty(boolean all) {
+        if (emptyWaiters == 0)
+            return;
+        lock.lock();
+        try {
+            if (all)
+                notEmpty.signalAll();
+            else
+                notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes parked producers after freeing slots, if there are any
+     * @param all true to wake them all (several slots were freed)
+     */
+    private void signalNotFull(boolean all) {
+        if (fullWaiters == 0)
+            return;
+        lock.lock();
+        try {
+            if (all)
+                notFull.signalAll();
+            else
+                notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // collection
+
+    @Override
+    public int size() {
+        while (true) {
+            long h = head.get();
+            long t = tail.get();
+            if (h == head.get())//consistent pair
+                return (int) Math.max(0, Math.min(items.length, t - h));
+        }
+    }
+
+    @Override
+    public int remainingCapacity() { return items.length - size(); }
+
+    /**
+     * @return an iterator over a snapshot of the elements published when called (removing is not supported)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        for (long pos = head.get(), end = tail.get(); pos < end; pos++) {
+            int slot = (int) pos & mask;
+            Object e = items[slot];
+            if (sequences.get(slot) == pos + 1 && e != null)
+                snapshot.add((E) e);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
@@ -0,0 +1,244 @@
+package BPv7.utils;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: schedules items to expire at a deadline, with O(1) schedule and cancel however many items
+ * are scheduled.
+ * <p>
+ * Time is cut into ticks of tickMs. Level 0 has one slot per tick for the next SLOTS ticks, level 1 one slot per SLOTS
+ * ticks for the next SLOTS^2 ticks, and so on; every slot is a doubly linked list of timers. Whenever a slot of a higher
+ * level comes due, its timers are moved down into the finer levels (each timer moves at most LEVELS - 1 times), and the
+ * timers of the level 0 slot of the current tick expire. Deadlines beyond the last level wait in its farthest slot and
+ * are put back until they are due.
+ * <p>
+ * Not thread safe: callers guard it with their own lock.
+ * @param <T> type of the items scheduled
+ */
+public class TimingWheel<T> {
+    /** Slots per level (a power of 2) */
+    private static final int SLOTS = 256;
+    /** Bits of a tick number indexing the slots of one level */
+    private static final int SLOT_BITS = Integer.numberOfTrailingZeros(SLOTS);
+    /** Levels, enough for SLOTS^LEVELS ticks ahead */
+    private static final int LEVELS = 4;
+
+    /**
+     * An item scheduled on a wheel, to cancel it with
+     * @param <T> type of the item
+     */
+    public static final class Timer<T> {
+        /** The item */
+        private final T item;
+        /** Tick it expires at (the first tick starting at or after its deadline) */
+        private final long tick;
+        /** Neighbours in its slot */
+        private Timer<T> prev = null, next = null;
+        /** Where it is on the wheel, level -1 once it expired or was cancelled */
+        private int level = -1, slot = 0;
+
+        /**
+         * @param item the item
+         * @param tick tick it expires at
+         */
+        private Timer(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+
+        /** @return the item */
+        public T item() { return item; }
+    }
+
+    /** Length of a tick (ms) */
+    private final long tickMs;
+    /** Heads of the timer lists, by level then slot */
+    private final Timer<T>[][] slots;
+    /** Last tick processed */
+    private long currentTick;
+    /** Timers on the wheel */
+    private int size = 0;
+
+    /**
+     * Creates an empty wheel
+     * @param tickMs length of a tick (ms), how late an item may expire after its deadline
+     * @param now current time (ms)
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMs, long now) {
+        this.tickMs = tickMs;
+        this.slots = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+        this.currentTick = now / tickMs;
+    }
+
+    /**
+     * Schedules an item
+     * @param item the item
+     * @param deadline when it expires (ms, same clock as advance); if already past, at the next advance
+     * @return its timer
+     */
+    public Timer<T> schedule(T item, long deadline) {
+        long tick = Math.max(currentTick + 1, Math.floorDiv(deadline, tickMs) + (Math.floorMod(deadline, tickMs) == 0 ? 0 : 1));
+        Timer<T> timer = new Timer<>(item, tick);
+        place(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Cancels a timer
+     * @param timer the timer
+     * @return true if it was cancelled, false if it had already expired or been cancelled
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (timer.level == -1)
+            return false;
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel up to a time, expiring every item whose deadline has passed
+     * @param now current time (ms)
+     * @param expired given every item that expired, in order of their deadlines (give or take a tick)
+     */
+    public void advance(long now, Consumer<T> expired) {
+        long target = now / tickMs;
+        if (size == 0) {//nothing to move down or expire on the way
+            currentTick = Math.max(currentTick, target);
+            return;
+        }
+        while (currentTick < target) {
+            currentTick = nextBusyTick(target);
+            //move down the timers of the higher level slots starting now, coarsest first so they end up in level 0
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0)
+                    for (Timer<T> timer = takeSlot(level, slotOf(currentTick, level)); timer != null; ) {
+                        Timer<T> next = timer.next;
+                        place(timer);
+                        timer = next;
+                    }
+            }
+            for (Timer<T> timer = takeSlot(0, slotOf(currentTick, 0)); timer != null; ) {
+                Timer<T> next = timer.next;
+                if (timer.tick > currentTick) {//waited beyond the last level, not due yet
+                    place(timer);
+                } else {
+                    size--;
+                    expired.accept(timer.item);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * Finds the next tick something happens at, so that advance skips the ticks in between (after a long idle period
+     * with only far away timers, it would otherwise walk every tick missed). While the finer levels are empty, nothing
+     * happens before the next tick at which a slot of the first level that is not comes due.
+     * @param target tick advance is moving to
+     * @return the next tick with timers to expire or move down, or target if there is none until then
+     */
+    private long nextBusyTick(long target) {
+        long tick = currentTick + 1;
+        for (int level = 0; level < LEVELS - 1 && isLevelEmpty(level); level++) {
+            long span = 1L << (SLOT_BITS * (level + 1));
+            tick = Math.max(tick, (tick + span - 1) & -span);//first tick of the next slot of level + 1
+        }
+        return Math.min(tick, target);
+    }
+
+    /**
+     * @param level a level
+     * @return true if none of its slots holds a timer
+     */
+    private boolean isLevelEmpty(int level) {
+        for (Timer<T> head : slots[level])
+            if (head != null)
+                return false;
+        return true;
+    }
+
+    /**
+     * Finds when advance next has something to do, so that a caller can sleep until then instead of every tick
+     * @return the start (ms) of the next tick with timers to expire or move down (possibly earlier, never later), or
+     *  Long.MAX_VALUE if no items are scheduled
+     */
+    public long nextDue() {
+        if (size == 0)
+            return Long.MAX_VALUE;
+        long due = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            long span = 1L << (SLOT_BITS * level);
+            //the slots of this level, in the order they come due after the current tick
+            for (long tick = (currentTick + span) & -span, i = 0; i < SLOTS && tick < due; i++, tick += span)
+                if (slots[level][slotOf(tick, level)] != null)
+                    due = tick;
+        }
+        return due * tickMs;
+    }
+
+    /** @return the number of items scheduled */
+    public int size() { return size; }
+
+    /** @return true if no items are scheduled */
+    public boolean isEmpty() { return size == 0; }
+
+    /**
+     * Puts a timer in the slot of the finest level that reaches its tick (the farthest slot of the last level if none)
+     * @param timer the timer, not on the wheel
+     */
+    private void place(Timer<T> timer) {
+        long ticksAhead = timer.tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && ticksAhead >= 1L << (SLOT_BITS * (level + 1)))
+            level++;
+        long tick = ticksAhead < 1L << (SLOT_BITS * LEVELS) ? timer.tick : currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        timer.level = level;
+        timer.slot = slotOf(tick, level);
+        timer.prev = null;
+        timer.next = slots[level][timer.slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        slots[level][timer.slot] = timer;
+    }
+
+    /**
+     * Takes a timer out of its slot
+     * @param timer the timer, on the wheel
+     */
+    private void unlink(Timer<T> timer) {
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[timer.level][timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        timer.prev = timer.next = null;
+        timer.level = -1;
+    }
+
+    /**
+     * Empties a slot
+     * @param level level of the slot
+     * @param slot index of the slot
+     * @return its first timer, the others follow through next (all marked as off the wheel)
+     */
+    private Timer<T> takeSlot(int level, int slot) {
+        Timer<T> head = slots[level][slot];
+        slots[level][slot] = null;
+        for (Timer<T> timer = head; timer != null; timer = timer.next)
+            timer.level = -1;
+        return head;
+    }
+
+    /**
+     * @param tick a tick
+     * @param level a level
+     * @return index of the slot of that level the tick falls in
+     */
+    private static int slotOf(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+}
@@ -0,0 +1,74 @@
+package BPv7.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executors of the parts of the stack that can run on virtual threads (see
+ * ConvergenceLayerParams.virtualThreads), falling back to a bounded pool of platform threads when the JVM has none.
+ * @implNote virtual threads are looked up reflectively so that this still compiles and runs on Java 17;
+ *  they need Java 21, or 19/20 with --enable-preview
+ */
+public final class VirtualThreads {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(VirtualThreads.class.getName());
+
+    /** Executors.newVirtualThreadPerTaskExecutor(), null if this JVM has no virtual threads */
+    private static final Method NEW_VIRTUAL_EXECUTOR;
+
+    static {
+        Method newVirtualExecutor;
+        try {
+            newVirtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            //throws if they are a preview feature that is not enabled
+            ((ExecutorService) newVirtualExecutor.invoke(null)).shutdown();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            newVirtualExecutor = null;
+        }
+        NEW_VIRTUAL_EXECUTOR = newVirtualExecutor;
+    }
+
+    /** Hiding default constructor, static helpers only */
+    private VirtualThreads() {}
+
+    /** @return true if this JVM can run virtual threads */
+    public static boolean isSupported() { return NEW_VIRTUAL_EXECUTOR != null; }
+
+    /**
+     * Gets an executor that runs every task on a new virtual thread of its own (Executors.newVirtualThreadPerTaskExecutor)
+     * if virtual is set and this JVM has virtual threads, otherwise on a fixed pool of platform threads, so peers can
+     * never make the node start threads without bound
+     * @param name prefix of the names of the platform threads
+     * @param virtual true for virtual threads (if this JVM has them), false for platform threads
+     * @param platformThreads size of the pool of platform threads
+     * @return the executor
+     */
+    public static ExecutorService newExecutor(String name, boolean virtual, int platformThreads) {
+        if (virtual && isSupported()) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warning("Unable to create virtual threads, using " + platformThreads + " platform threads for "
+                        + name + ": " + e.getMessage());
+            }
+        } else if (virtual) {
+            logger.warning("Virtual threads are not available in this JVM (Java 21, or 19/20 with --enable-preview), "
+                    + "using " + platformThreads + " platform threads for " + name);
+        }
+        return Executors.newFixedThreadPool(platformThreads, platformFactory(name));
+    }
+
+    /**
+     * Gets a factory of platform threads named name-0, name-1, ...
+     * @param name prefix of the thread names
+     * @return the factory
+     */
+    private static ThreadFactory platformFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, name + "-" + count.getAndIncrement());
+    }
+}
@@ -3,11 +3,14 @@ package Configs;
 import java.io.File;
 import java.security.InvalidParameterException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.logging.Logger;
 
 
+import BPv7.utils.CodecRegistry;
+import BPv7.utils.RingBuffer;
 import com.fasterxml.jackson.annotation.*;
 import com.fasterxml.jackson.databind.*;
 
@@ -32,6 +35,36 @@ public class ConvergenceLayerParams {
     private static String CONFIG_FILE = null;
     /** convergence layer configs folder within SimulationParams.resouceDir */
     private static final String convergenceConfigFolder = "ConvergenceLayerConfigs/";
+    /** Wire formats offered to peers when the config file does not list any, best first */
+    private static final List<String> DEFAULT_CODECS = List.of("cbor", "binary", "json-compact", "json");
+    /** Largest encoded bundle (bytes) accepted when the config file does not say */
+    private static final int DEFAULT_MAX_BUNDLE_SIZE = 16 * 1024 * 1024;
+    /** Most open sessions to one next hop when the config file does not say */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_PEER = 2;
+    /** Longest (ms) an unused session to a next hop is kept open when the config file does not say */
+    private static final int DEFAULT_IDLE_CONNECTION_TIMEOUT = 30_000;
+    /** Most bundles being sent at once when the config file does not say */
+    private static final int DEFAULT_MAX_SENDS_IN_FLIGHT = 64;
+    /** Most bundle statuses kept at once when the config file does not say */
+    private static final int DEFAULT_MAX_STATUS_ENTRIES = 100_000;
+    /** How long (ms) a bundle status is kept once the bundle can no longer be resent when the config file does not say */
+    private static final int DEFAULT_STATUS_RETENTION_MS = 60_000;
+    /**
+     * Slots of each ring buffer between the BPA stages when the config file does not say (about 12 bytes a slot, and
+     * there are a few rings per processor)
+     */
+    private static final int DEFAULT_RING_CAPACITY = 1 << 12;
+    /** Times in a row a lower priority class may be passed over when the config file does not say */
+    private static final int DEFAULT_PRIORITY_STARVATION_LIMIT = 16;
+
+    /** serverMode: one thread per connection, needed to relay bundles as they arrive (cutThrough) */
+    public static final String SERVER_BLOCKING = "blocking";
+    /** serverMode: a selector loop reads from every connection, bundles are decoded by nThreads workers */
+    public static final String SERVER_NIO = "nio";
+    /** Outbound scheduling: bundles waiting for a next hop are sent in the order they were queued */
+    public static final String SCHEDULING_FIFO = "fifo";
+    /** Outbound scheduling: bundles waiting for a next hop are sent the first to expire first */
+    public static final String SCHEDULING_EDF = "edf";
 
     /** Whether the Config File has been set or not */
     private static boolean hasSetConfig = false;
@@ -55,7 +88,9 @@ public class ConvergenceLayerParams {
 
     /**
      * The Routing Map for the current node, specified in context file, of the form URI/Node ID String -> IPv4 Address
-     * May map to null if host exists but no known route
+     * May map to null if host exists but no known route.
+     * A key ending in "*" is a prefix route for every node ID starting with the rest of it ("*" alone is the default
+     * route); node IDs without an exact route use their longest matching prefix route
      */
     public final Map<String, String> idToAddressRoutingMap;
 
@@ -70,7 +105,8 @@ public class ConvergenceLayerParams {
     public final int queueCapacity; //-1 for no limit
 
     /**
-     * The number of threads in the receiving thread pool
+     * The number of threads in the receiving thread pool (unused with virtualThreads on a JVM that has them, every
+     * connection gets its own)
      */
     public final int nThreads;
 
@@ -89,6 +125,116 @@ public class ConvergenceLayerParams {
      */
     public final int queueTimeoutInMillis;
 
+    /**
+     * Wire formats (codec names, see CodecRegistry) this node offers to peers, best first.
+     * Legacy JSON is always understood, even if not listed
+     */
+    public final List<String> codecs;
+
+    /**
+     * Largest encoded bundle (bytes) accepted from a peer, longer ones are dropped as soon as that is known
+     */
+    public final int maxBundleSize;
+
+    /**
+     * Whether bundles being forwarded may be relayed to their next hop while they are still arriving (cut-through),
+     * instead of only once they have been fully received
+     */
+    public final boolean cutThrough;
+
+    /**
+     * Most sessions this node keeps open to one next hop at once
+     */
+    public final int maxConnectionsPerPeer;
+
+    /**
+     * How long (ms) an unused session to a next hop is kept open before being closed
+     */
+    public final int idleConnectionTimeout;
+
+    /**
+     * How the DTCP server reads from peers: SERVER_NIO (default) or SERVER_BLOCKING (default if cutThrough or
+     * virtualThreads is set)
+     */
+    public final String serverMode;
+
+    /**
+     * Whether connection handlers (serverMode SERVER_BLOCKING) and asynchronous sends run on virtual threads
+     * (one per connection and one per send) instead of pools of nThreads and maxSendsInFlight platform threads.
+     * Falls back to those pools on JVMs without virtual threads (Java 17)
+     */
+    public final boolean virtualThreads;
+
+    /**
+     * Most bundles the BPA has being sent at once (asynchronously); it waits for one to finish before sending more
+     */
+    public final int maxSendsInFlight;
+
+    /**
+     * Bytes per second a link carries, to estimate how much can be sent during a contact (0 if unknown: no limit)
+     */
+    public final long linkRate;
+
+    /**
+     * Address of every node of the topology, by node ID (this one included), for contact graph routing.
+     * Empty if routing only uses idToAddressRoutingMap
+     */
+    public final Map<String, String> nodeAddresses;
+
+    /**
+     * Links of the topology (pairs of node IDs from nodeAddresses), for contact graph routing.
+     * Empty if routing only uses idToAddressRoutingMap
+     */
+    public final List<List<String>> links;
+
+    /**
+     * Most bundle statuses the BPA keeps at once (the least recently updated are forgotten first)
+     */
+    public final int maxStatusEntries;
+
+    /**
+     * How long (ms) the BPA keeps the status of a bundle once the bundle can no longer be resent
+     * (no status report about it can still come back)
+     */
+    public final int statusRetentionMS;
+
+    /**
+     * Number of threads handling received bundles in the BPA, bundles from one source node always on the same one
+     * (so in the order they arrived)
+     */
+    public final int receiveWorkers;
+
+    /**
+     * Number of threads dispatching bundles in the BPA, each one serving its own share of the next hops
+     * (so bundles to one next hop are sent in the order they were queued)
+     */
+    public final int dispatchWorkers;
+
+    /**
+     * Slots of each ring buffer handing bundles between the BPA stages, and of the DTCP receive queue if
+     * queueCapacity is -1 (rounded up to a power of 2)
+     */
+    public final int ringCapacity;
+
+    /**
+     * How threads wait on the ring buffers between the stages: PARK (default, blocks), YIELD or SPIN (lowest latency,
+     * a core per waiting thread)
+     */
+    public final RingBuffer.WaitStrategy queueWaitStrategy;
+
+    /**
+     * Times in a row the dispatcher may pass over the bundles of a priority class waiting for a next hop to send
+     * higher priority ones first, after which the lower class gets a turn (so bulk transfers are not starved)
+     */
+    public final int priorityStarvationLimit;
+
+    /**
+     * How the bundles of a priority class waiting for a next hop are ordered: SCHEDULING_FIFO (default, in the order
+     * they were queued) or SCHEDULING_EDF (earliest deadline first: the first to expire first, those that can no
+     * longer be sent before their lifetime ends deleted unsent)
+     */
+    public final String outboundScheduling;
+
 
     /**
      * Gets the singleton instance of the convergence layer parameters
@@ -128,7 +274,7 @@ public class ConvergenceLayerParams {
             Map<String, String> defaultRoutingTable = new HashMap<>();
             defaultRoutingTable.put("localhost", "127.0.0.1");
             ret = new ConvergenceLayerParams(defaultRoutingTable,"127.0.0.1", -1, 10,
-                                                100, 100, 100);
+                                                100, 100, 100, null, 0, false, 0, 0, null, false, 0, 0, null, null, 0, 0, 0, 0, 0, null, 0, null);
         } catch(InvalidParameterException e){
             logger.severe("ERROR! Unable to create default for ConvergenceLayerParams: " + e.getMessage());
             throw new InvalidParameterException(e.getMessage());
@@ -168,6 +314,29 @@ public class ConvergenceLayerParams {
      * @param maxConnections Max number of connections to have at once
      * @param connectionTimeout The connection timeout for the read socket for connections from clients
      * @param queueTimeoutInMillis How long to wait for a spot in the receive queue before dropping a bundle
+     * @param codecs wire formats to offer to peers, best first (optional, defaults to DEFAULT_CODECS)
+     * @param maxBundleSize largest encoded bundle accepted from a peer (optional, defaults to DEFAULT_MAX_BUNDLE_SIZE)
+     * @param cutThrough whether forwarded bundles may be relayed while they are still arriving (optional, defaults to false)
+     * @param maxConnectionsPerPeer most open sessions to one next hop (optional, defaults to DEFAULT_MAX_CONNECTIONS_PER_PEER)
+     * @param idleConnectionTimeout how long (ms) an unused session is kept open (optional, defaults to DEFAULT_IDLE_CONNECTION_TIMEOUT)
+     * @param serverMode how the DTCP server reads from peers (optional, defaults to SERVER_NIO, or SERVER_BLOCKING with
+     *                   cutThrough or virtualThreads)
+     * @param virtualThreads whether handlers and senders run on virtual threads (optional, defaults to false)
+     * @param maxSendsInFlight most bundles being sent at once (optional, defaults to DEFAULT_MAX_SENDS_IN_FLIGHT)
+     * @param linkRate bytes per second a link carries (optional, defaults to 0: unknown)
+     * @param nodeAddresses address of every node of the topology, for contact graph routing (optional, with links)
+     * @param links links of the topology, pairs of node IDs, for contact graph routing (optional, with nodeAddresses)
+     * @param maxStatusEntries most bundle statuses kept at once (optional, defaults to DEFAULT_MAX_STATUS_ENTRIES)
+     * @param statusRetentionMS how long (ms) a status is kept once its bundle can no longer be resent (optional,
+     *                          defaults to DEFAULT_STATUS_RETENTION_MS)
+     * @param receiveWorkers threads handling received bundles in the BPA (optional, defaults to the number of processors)
+     * @param dispatchWorkers threads dispatching bundles in the BPA (optional, defaults to the number of processors)
+     * @param ringCapacity slots of each ring buffer between the BPA stages (optional, defaults to DEFAULT_RING_CAPACITY)
+     * @param queueWaitStrategy how threads wait on the ring buffers: "park", "yield" or "spin" (optional, defaults to "park")
+     * @param priorityStarvationLimit times in a row a priority class may be passed over for a higher one (optional,
+     *                                defaults to DEFAULT_PRIORITY_STARVATION_LIMIT)
+     * @param outboundScheduling how bundles waiting for a next hop are ordered, SCHEDULING_FIFO or SCHEDULING_EDF
+     *                           (optional, defaults to SCHEDULING_FIFO)
      * @throws InvalidParameterException if invalid parameters
      */
     @JsonCreator
@@ -177,10 +346,32 @@ public class ConvergenceLayerParams {
                                   @JsonProperty("nThreads") int nThreads,
                                   @JsonProperty("maxConnections") int maxConnections,
                                   @JsonProperty("connectionTimeout") int connectionTimeout,
-                                  @JsonProperty("queueTimeoutInMillis") int queueTimeoutInMillis) throws InvalidParameterException {
+                                  @JsonProperty("queueTimeoutInMillis") int queueTimeoutInMillis,
+                                  @JsonProperty("codecs") List<String> codecs,
+                                  @JsonProperty("maxBundleSize") int maxBundleSize,
+                                  @JsonProperty("cutThrough") boolean cutThrough,
+                                  @JsonProperty("maxConnectionsPerPeer") int maxConnectionsPerPeer,
+                                  @JsonProperty("idleConnectionTimeout") int idleConnectionTimeout,
+                                  @JsonProperty("serverMode") String serverMode,
+                                  @JsonProperty("virtualThreads") boolean virtualThreads,
+                                  @JsonProperty("maxSendsInFlight") int maxSendsInFlight,
+                                  @JsonProperty("linkRate") long linkRate,
+                                  @JsonProperty("nodeAddresses") Map<String, String> nodeAddresses,
+                                  @JsonProperty("links") List<List<String>> links,
+                                  @JsonProperty("maxStatusEntries") int maxStatusEntries,
+                                  @JsonProperty("statusRetentionMS") int statusRetentionMS,
+                                  @JsonProperty("receiveWorkers") int receiveWorkers,
+                                  @JsonProperty("dispatchWorkers") int dispatchWorkers,
+                                  @JsonProperty("ringCapacity") int ringCapacity,
+                                  @JsonProperty("queueWaitStrategy") String queueWaitStrategy,
+                                  @JsonProperty("priorityStarvationLimit") int priorityStarvationLimit,
+                                  @JsonProperty("outboundScheduling") String outboundScheduling) throws InvalidParameterException {
         // Check Values
         if (idToAddressRoutingMap == null || idToAddressRoutingMap.size() == 0)
             throw new InvalidParameterException("Invalid idToAddressRoutingMap, null or empty: " + idToAddressRoutingMap);
+        for (String id : idToAddressRoutingMap.keySet())
+            if (id.indexOf('*') != -1 && id.indexOf('*') != id.length() - 1)
+                throw new InvalidParameterException("Invalid idToAddressRoutingMap route: " + id + ", a wildcard (*) may only end it");
         if (thisAddress == null)
             throw new InvalidParameterException("Invalid thisAddress, null");
         if (queueCapacity < -1 || queueCapacity == 0)
@@ -193,6 +384,60 @@ public class ConvergenceLayerParams {
             throw new InvalidParameterException("Invalid connectionTimeout: " + connectionTimeout + ", must be (strictly) positive");
         if (queueTimeoutInMillis <= 0)
             throw new InvalidParameterException("Invalid queueTimeoutInMillis: " + queueTimeoutInMillis + ", must be (strictly) positive");
+        if (maxBundleSize < 0)
+            throw new InvalidParameterException("Invalid maxBundleSize: " + maxBundleSize + ", must be positive (or 0 for the default)");
+        if (maxConnectionsPerPeer < 0)
+            throw new InvalidParameterException("Invalid maxConnectionsPerPeer: " + maxConnectionsPerPeer + ", must be positive (or 0 for the default)");
+        if (idleConnectionTimeout < 0)
+            throw new InvalidParameterException("Invalid idleConnectionTimeout: " + idleConnectionTimeout + ", must be positive (or 0 for the default)");
+        if (maxSendsInFlight < 0)
+            throw new InvalidParameterException("Invalid maxSendsInFlight: " + maxSendsInFlight + ", must be positive (or 0 for the default)");
+        if (linkRate < 0)
+            throw new InvalidParameterException("Invalid linkRate: " + linkRate + ", must be positive (or 0 if unknown)");
+        if (maxStatusEntries < 0)
+            throw new InvalidParameterException("Invalid maxStatusEntries: " + maxStatusEntries + ", must be positive (or 0 for the default)");
+        if (statusRetentionMS < 0)
+            throw new InvalidParameterException("Invalid statusRetentionMS: " + statusRetentionMS + ", must be positive (or 0 for the default)");
+        if (receiveWorkers < 0)
+            throw new InvalidParameterException("Invalid receiveWorkers: " + receiveWorkers + ", must be positive (or 0 for the default)");
+        if (dispatchWorkers < 0)
+            throw new InvalidParameterException("Invalid dispatchWorkers: " + dispatchWorkers + ", must be positive (or 0 for the default)");
+        if (ringCapacity < 0 || ringCapacity > 1 << 30)
+            throw new InvalidParameterException("Invalid ringCapacity: " + ringCapacity + ", must be positive and at most 2^30 (or 0 for the default)");
+        if (priorityStarvationLimit < 0)
+            throw new InvalidParameterException("Invalid priorityStarvationLimit: " + priorityStarvationLimit + ", must be positive (or 0 for the default)");
+        if (queueCapacity > 1 << 30)
+            throw new InvalidParameterException("Invalid queue capacity: " + queueCapacity + ", must be at most 2^30");
+        RingBuffer.WaitStrategy waitStrategy;
+        try {
+            waitStrategy = queueWaitStrategy == null ? RingBuffer.WaitStrategy.PARK : RingBuffer.WaitStrategy.of(queueWaitStrategy);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidParameterException("Invalid queueWaitStrategy: " + queueWaitStrategy + ", must be park, yield or spin");
+        }
+        if (nodeAddresses == null)
+            nodeAddresses = Map.of();
+        if (links == null)
+            links = List.of();
+        if (nodeAddresses.isEmpty() != links.isEmpty())
+            throw new InvalidParameterException("Invalid contact graph routing: nodeAddresses and links must be given together");
+        for (List<String> link : links)
+            if (link == null || link.size() != 2 || !nodeAddresses.containsKey(link.get(0)) || !nodeAddresses.containsKey(link.get(1)))
+                throw new InvalidParameterException("Invalid link: " + link + ", must be two node IDs from nodeAddresses");
+        if (serverMode == null)
+            serverMode = cutThrough || virtualThreads ? SERVER_BLOCKING : SERVER_NIO;
+        if (!serverMode.equals(SERVER_BLOCKING) && !serverMode.equals(SERVER_NIO))
+            throw new InvalidParameterException("Invalid serverMode: " + serverMode + ", must be " + SERVER_BLOCKING + " or " + SERVER_NIO);
+        if (outboundScheduling == null)
+            outboundScheduling = SCHEDULING_FIFO;
+        if (!outboundScheduling.equals(SCHEDULING_FIFO) && !outboundScheduling.equals(SCHEDULING_EDF))
+            throw new InvalidParameterException("Invalid outboundScheduling: " + outboundScheduling + ", must be " + SCHEDULING_FIFO + " or " + SCHEDULING_EDF);
+        if (cutThrough && !serverMode.equals(SERVER_BLOCKING))
+            throw new InvalidParameterException("Invalid serverMode: cutThrough needs serverMode " + SERVER_BLOCKING);
+        if (codecs == null || codecs.isEmpty())
+            codecs = DEFAULT_CODECS;
+        for (String codec : codecs)
+            if (CodecRegistry.getInstance().get(codec) == null)
+                throw new InvalidParameterException("Invalid codecs: unknown codec " + codec + ", must be one of " + CodecRegistry.getInstance().names());
 
         // Set the values
         this.idToAddressRoutingMap = idToAddressRoutingMap;//todo:: @aidan please convert all fields to lower case for consistency
@@ -202,5 +447,24 @@ public class ConvergenceLayerParams {
         this.maxConnections = maxConnections;
         this.connectionTimeout = connectionTimeout;
         this.queueTimeoutInMillis = queueTimeoutInMillis;
+        this.codecs = List.copyOf(codecs);
+        this.maxBundleSize = maxBundleSize == 0 ? DEFAULT_MAX_BUNDLE_SIZE : maxBundleSize;
+        this.cutThrough = cutThrough;
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer == 0 ? DEFAULT_MAX_CONNECTIONS_PER_PEER : maxConnectionsPerPeer;
+        this.idleConnectionTimeout = idleConnectionTimeout == 0 ? DEFAULT_IDLE_CONNECTION_TIMEOUT : idleConnectionTimeout;
+        this.serverMode = serverMode;
+        this.virtualThreads = virtualThreads;
+        this.maxSendsInFlight = maxSendsInFlight == 0 ? DEFAULT_MAX_SENDS_IN_FLIGHT : maxSendsInFlight;
+        this.linkRate = linkRate;
+        this.nodeAddresses = Map.copyOf(nodeAddresses);
+        this.links = links.stream().map(List::copyOf).toList();
+        this.maxStatusEntries = maxStatusEntries == 0 ? DEFAULT_MAX_STATUS_ENTRIES : maxStatusEntries;
+        this.statusRetentionMS = statusRetentionMS == 0 ? DEFAULT_STATUS_RETENTION_MS : statusRetentionMS;
+        this.receiveWorkers = receiveWorkers == 0 ? Runtime.getRuntime().availableProcessors() : receiveWorkers;
+        this.dispatchWorkers = dispatchWorkers == 0 ? Runtime.getRuntime().availableProcessors() : dispatchWorkers;
+        this.ringCapacity = ringCapacity == 0 ? DEFAULT_RING_CAPACITY : ringCapacity;
+        this.queueWaitStrategy = waitStrategy;
+        this.priorityStarvationLimit = priorityStarvationLimit == 0 ? DEFAULT_PRIORITY_STARVATION_LIMIT : priorityStarvationLimit;
+        this.outboundScheduling = outboundScheduling;
     }
 }
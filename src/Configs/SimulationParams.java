@@ -35,7 +35,7 @@ public class SimulationParams {
     /** config file name */
     private static String CONFIG_FILE = null; //resourceDir + "SimulationConfigs/Sim_0_A" + cfgFileExtension;
     @SuppressWarnings("FieldCanBeLocal")
-    private static final String DEFAULT_CONFIG_FILE = resourceDir + simulationConfigFolder + "Sim_0_A" + cfgFileExtension;
+    private static final String DEFAULT_CONFIG_FILE = resourceDir + simulationConfigFolder + "Sim_0_a" + cfgFileExtension;
 
     /** Whether the Config File has been set or not */
     private static boolean hasSetConfig = false;
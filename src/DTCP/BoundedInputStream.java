@@ -0,0 +1,108 @@
+package DTCP;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * View of the next bytes of a stream, ending (EOF) after a fixed number of them.
+ * Lets a codec read one message of a session as if it were the whole connection. Closing it does not close the
+ * underlying stream.
+ */
+class BoundedInputStream extends FilterInputStream {
+    /** Bytes left before this view ends */
+    private long remaining;
+
+    /**
+     * Creates a view of the next bytes of a stream
+     * @param in underlying stream
+     * @param length how many bytes the view has
+     */
+    BoundedInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    /** @return bytes left before this view ends */
+    long remaining() { return remaining; }
+
+    /**
+     * Reads one byte
+     * @return the byte, or -1 at the end of the view
+     * @throws IOException if the underlying stream throws
+     */
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int b = in.read();
+        if (b != -1)
+            remaining--;
+        return b;
+    }
+
+    /**
+     * Reads up to len bytes
+     * @param b where to put them
+     * @param off where in b to start
+     * @param len most bytes to read
+     * @return how many bytes were read, or -1 at the end of the view
+     * @throws IOException if the underlying stream throws
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0)
+            return len == 0 ? 0 : -1;
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0)
+            remaining -= n;
+        return n;
+    }
+
+    /**
+     * Skips up to n bytes
+     * @param n most bytes to skip
+     * @return how many bytes were skipped
+     * @throws IOException if the underlying stream throws
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    /**
+     * Skips whatever is left of the view
+     * @return how many bytes were skipped
+     * @throws IOException if the underlying stream throws or ends before the view does
+     */
+    long skipRemaining() throws IOException {
+        long skipped = 0;
+        while (remaining > 0) {
+            long n = skip(remaining);
+            if (n <= 0) {
+                if (read() == -1)
+                    throw new EOFException("Connection closed in the middle of a message");
+                n = 1;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    /** @return bytes that can be read without blocking, within the view */
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    /** Does not close the underlying stream, the rest of the session is still to be read */
+    @Override
+    public void close() {}
+
+    /** @return false, marks would cross the end of the view */
+    @Override
+    public boolean markSupported() { return false; }
+}
@@ -1,8 +1,19 @@
 package DTCP;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -10,11 +21,16 @@ import java.util.logging.Logger;
 
 import BPv7.containers.Bundle;
 import BPv7.containers.DTNTime;
+import BPv7.interfaces.Codec;
+import BPv7.utils.CBORDecoder;
+import BPv7.utils.CBOREncoder;
+import BPv7.utils.CodecRegistry;
+import BPv7.utils.RingBuffer;
 import Configs.ConvergenceLayerParams;
 
 /**
  * This class is to handle each client connections coming into the DTCP server, with a new one created for each
- * connection.
+ * connection. A connection carries either one bundle (legacy peers, DATA) or a session of frames.
  * @implSpec This will drop bundle if: an unexpected down, input queue is full for entire queue timeout, or exceptions
  */
 class ClientHandler implements Runnable{
@@ -37,45 +53,327 @@ class ClientHandler implements Runnable{
      */
     private final BlockingQueue<Bundle> outQueue;
 
+    /** The DTCP instance this handler receives for (for relaying bundles as they arrive) */
+    private final DTCP dtcp;
+
+    /** Connection the bundle is being relayed on as it arrives, null if it is not */
+    private Socket relay = null;
+
+    /** Buffered stream of relay */
+    private OutputStream relayOut = null;
+
+    /**
+     * When the session last carried a bundle (ms since epoch). KEEPALIVEs do not count: an idle pooled session would
+     * otherwise hold one of the nThreads handler threads for as long as the peer keeps it open
+     */
+    private long lastBundle = System.currentTimeMillis();
+
     /**
      * Constructor for creating a Client Handler
      * @param client the client connection Socket
      * @param outQueue the queue for sending Bundles to the BPA layer
+     * @param dtcp the DTCP instance this handler receives for
      */
-    public ClientHandler(Socket client, BlockingQueue<Bundle> outQueue) {
+    public ClientHandler(Socket client, BlockingQueue<Bundle> outQueue, DTCP dtcp) {
         this.client = client;
         this.outQueue = outQueue;
+        this.dtcp = dtcp;
     }
 
     /**
-     * The thread method for handling for receiving a bundle
+     * The thread method for receiving bundles: a single bundle from legacy peers and DATA messages, otherwise every
+     * frame of the session until the peer closes it (or sends no bundle for longer than the socket timeout)
      */
     @Override
     public void run() {
         try {
-            // This blocks until the whole bundle is received. There is a timeout on the socket if it takes too long.
-            byte[] result = client.getInputStream().readAllBytes();
-
-            //May need to change this later
-            Bundle bundle = (new Bundle()).deserializeNetworkEncoding(result, logger);
-            String bundleID = bundle.getLoggingBundleId();
+            BufferedInputStream in = new BufferedInputStream(client.getInputStream());
             String srcAddress = ((InetSocketAddress) client.getRemoteSocketAddress()).getAddress().getHostAddress();
-            if (DTCPUtils.isConnectionDownUnexpected(srcAddress))
-                logger.log(Level.INFO, "Dropping bundle due to unexpected down: " + bundleID);
-            else if (!outQueue.offer(bundle, config.queueTimeoutInMillis, TimeUnit.MILLISECONDS)) {
-                logger.log(Level.INFO, "Queue is full, dropping bundle:" + bundleID);
+
+            int version = DTCPProtocol.readPreamble(in);
+            if (version == 0) {
+                // legacy peers just send the bundle
+                receive(in, DTCPProtocol.legacyCodec(in), srcAddress);
+                return;
             }
-            else {
-                logger.log(Level.INFO, "[NetStats] Bundle Received: " + bundleID
-                        + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS)
-                        + "; Size of bundle payload (bytes):" + bundle.getPayload().getPayload().length);
+            DataInputStream dataIn = new DataInputStream(in);
+            while (true) {
+                int type;
+                try {
+                    type = readFrameType(dataIn);
+                } catch (SocketTimeoutException e) {
+                    logger.log(Level.FINE, "Closing idle session from " + srcAddress);
+                    return;
+                }
+                switch (type) {
+                    case -1 -> {
+                        logger.log(Level.INFO, "Session cut short by " + srcAddress);
+                        return;
+                    }
+                    case DTCPProtocol.HELLO -> answerHello(dataIn, version);
+                    case DTCPProtocol.DATA -> {
+                        receive(in, DTCPProtocol.readCodec(dataIn), srcAddress);
+                        return;//DATA runs until EOF
+                    }
+                    default -> {
+                        if (version < DTCPProtocol.SESSION_VERSION)
+                            throw new ProtocolException("Unexpected DTCP message type " + type);
+                        if (!receiveFrame(type, dataIn, srcAddress)) {
+                            logger.log(Level.FINE, "Session closed by " + srcAddress);
+                            return;
+                        }
+                    }
+                }
             }
+        } catch (ParseException e) {
+            logger.log(Level.WARNING, "Malformed or oversized bundle (offset " + e.getErrorOffset() + "), Bundle Dropped: " + e.getMessage());
         } catch (IOException e) {
             logger.log(Level.WARNING, "Client IOException, Bundle Dropped: " + e.getMessage());
         } catch (InterruptedException e) {
             logger.log(Level.WARNING, "Queue Interrupt Expection, Bundle Dropped: " + e.getMessage());
         } catch (Exception e) {
             logger.log(Level.WARNING, "Unspecified Failure To Read Bundle and add to Queue: " + e.getMessage());
+        } finally {
+            // also stops a sender of a rejected bundle from sending us the rest of it
+            try {
+                client.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to close client socket: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the type of the next message of a session, waiting no longer than what is left of connectionTimeout since
+     * the last bundle (the whole of it again for the rest of the frame)
+     * @param in stream to read from
+     * @return the type, -1 at EOF
+     * @throws SocketTimeoutException if no bundle came for connectionTimeout
+     * @throws IOException if the connection fails
+     */
+    private int readFrameType(DataInputStream in) throws IOException {
+        if (config.connectionTimeout <= 0)//no timeout
+            return in.read();
+        long left = config.connectionTimeout - (System.currentTimeMillis() - lastBundle);
+        if (left <= 0)
+            throw new SocketTimeoutException("No bundle for " + config.connectionTimeout + " ms");
+        client.setSoTimeout((int) left);
+        int type = in.read();
+        client.setSoTimeout(config.connectionTimeout);
+        return type;
+    }
+
+    /**
+     * Receives a bundle that runs until the peer closes its side, and hands it to the BPA
+     * @param in stream to read from, positioned at the start of the bundle
+     * @param codec codec the bundle is encoded with
+     * @param srcAddress address of the peer sending the bundle
+     * @throws IOException if the connection fails
+     * @throws ParseException if the bundle is malformed or too big
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    private void receive(BufferedInputStream in, Codec codec, String srcAddress)
+            throws IOException, ParseException, InterruptedException {
+        // Decodes as the bytes arrive, returns once the sender closed its side. There is a timeout on the socket
+        // if it takes too long, and a bad or oversized bundle is rejected without reading the rest of it.
+        Bundle bundle;
+        if (config.cutThrough && codec.id() == CodecRegistry.CBOR_ID) {
+            bundle = receiveCutThrough(in, srcAddress);
+            if (bundle == null)
+                return;//already relayed
+        } else {
+            bundle = codec.decode(in, config.maxBundleSize);
+        }
+        deliver(bundle, srcAddress, outQueue, logger);
+    }
+
+    /**
+     * Handles a frame (type already read). The bundle of a BUNDLE frame is handed to the BPA; a malformed bundle
+     * only drops that bundle, the session goes on with the next frame
+     * @param type frame type
+     * @param in stream to read from, positioned just after the frame type
+     * @param srcAddress address of the peer sending the bundle
+     * @return false if the peer closed the session, true if more frames follow
+     * @throws IOException if the connection fails, or the frame is too big to skip over
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    private boolean receiveFrame(int type, DataInputStream in, String srcAddress) throws IOException, InterruptedException {
+        int length = DTCPProtocol.readFrameLength(in);
+        if (length > config.maxBundleSize)//+1 for the codec id, but close enough
+            throw new ProtocolException("Frame of " + length + " bytes is over the " + config.maxBundleSize + " bytes limit");
+        BoundedInputStream frame = new BoundedInputStream(in, length);
+        switch (type) {
+            case DTCPProtocol.BUNDLE -> {
+                lastBundle = System.currentTimeMillis();
+                if (length == 0)
+                    throw new ProtocolException("Empty BUNDLE frame");
+                Codec codec = DTCPProtocol.readCodec(new DataInputStream(frame));
+                Bundle bundle;
+                try {
+                    if (config.cutThrough && codec.id() == CodecRegistry.CBOR_ID)
+                        bundle = receiveCutThrough(frame, srcAddress);
+                    else
+                        bundle = codec.decode(frame, length - 1);
+                } catch (ParseException e) {
+                    logger.log(Level.WARNING, "Malformed bundle (offset " + e.getErrorOffset() + "), Bundle Dropped: " + e.getMessage());
+                    frame.skipRemaining();
+                    return true;
+                }
+                frame.skipRemaining();//keeps the session aligned on the next frame
+                if (bundle != null)//null if already relayed
+                    deliver(bundle, srcAddress, outQueue, logger);
+            }
+            case DTCPProtocol.CLOSE -> {
+                frame.skipRemaining();
+                return false;
+            }
+            default -> {
+                if (type != DTCPProtocol.KEEPALIVE)
+                    logger.log(Level.FINE, "Skipping DTCP frame of unknown type " + type);
+                frame.skipRemaining();
+            }
         }
+        return true;
+    }
+
+    /**
+     * Hands a received bundle to the BPA, unless the link went down unexpectedly or the queue stays full
+     * (shared by both DTCP servers)
+     * @param bundle the bundle
+     * @param srcAddress address of the peer that sent it
+     * @param outQueue the queue for sending Bundles to the BPA layer
+     * @param logger logger of the caller
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    static void deliver(Bundle bundle, String srcAddress, BlockingQueue<Bundle> outQueue, Logger logger)
+            throws InterruptedException {
+        if (DTCPUtils.isConnectionDownUnexpected(srcAddress))
+            logger.log(Level.INFO, "Dropping bundle due to unexpected down: " + bundle.getLoggingBundleId());
+        else if (!outQueue.offer(bundle, ConvergenceLayerParams.getInstance().queueTimeoutInMillis, TimeUnit.MILLISECONDS))
+            logger.log(Level.INFO, "Queue is full, dropping bundle:" + bundle.getLoggingBundleId());
+        else
+            logReceived(bundle, logger);
+    }
+
+    /**
+     * Hands several bundles received from one peer to the BPA like deliver, publishing them with one claim of the
+     * ring (RingBuffer.offerAll) when the queue is one; those that do not fit wait for room one by one
+     * @param bundles the bundles, in the order they arrived
+     * @param srcAddress address of the peer that sent them
+     * @param outQueue the queue for sending Bundles to the BPA layer
+     * @param logger logger of the caller
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    static void deliverAll(List<Bundle> bundles, String srcAddress, BlockingQueue<Bundle> outQueue, Logger logger)
+            throws InterruptedException {
+        List<Bundle> kept = new ArrayList<>(bundles.size());
+        for (Bundle bundle : bundles) {
+            if (DTCPUtils.isConnectionDownUnexpected(srcAddress))
+                logger.log(Level.INFO, "Dropping bundle due to unexpected down: " + bundle.getLoggingBundleId());
+            else
+                kept.add(bundle);
+        }
+        int added = outQueue instanceof RingBuffer<Bundle> ring ? ring.offerAll(kept) : 0;
+        for (int i = 0; i < kept.size(); i++) {
+            Bundle bundle = kept.get(i);
+            if (i >= added && !outQueue.offer(bundle, ConvergenceLayerParams.getInstance().queueTimeoutInMillis, TimeUnit.MILLISECONDS))
+                logger.log(Level.INFO, "Queue is full, dropping bundle:" + bundle.getLoggingBundleId());
+            else
+                logReceived(bundle, logger);
+        }
+    }
+
+    /**
+     * Logs a bundle handed to the BPA
+     * @param bundle the bundle
+     * @param logger logger of the caller
+     */
+    private static void logReceived(Bundle bundle, Logger logger) {
+        logger.log(Level.INFO, "[NetStats] Bundle Received: " + bundle.getLoggingBundleId()
+                + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS)
+                + "; Size of bundle payload (bytes):" + bundle.getPayloadLength());
+    }
+
+    /**
+     * Receives a CBOR bundle, relaying it to its next hop as it arrives if DTCP and the BPA agree to that once its
+     * primary block is in. Everything is still checked while relaying; a bad bundle aborts the relayed copy too, and so
+     * does a block that store-and-forward would discard (the bundle is then stored and forwarded without it).
+     * @param in stream to read from, positioned at the start of the bundle
+     * @param srcAddress address of the peer sending the bundle
+     * @return the bundle if it still has to be handed to the BPA (not relayed, or relaying failed), null if relayed
+     * @throws ParseException if the bundle is malformed or too big
+     */
+    private Bundle receiveCutThrough(InputStream in, String srcAddress) throws ParseException {
+        try {
+            CBORDecoder decoder = new CBORDecoder(in, config.maxBundleSize);
+            Bundle bundle = Bundle.readCBORLazy(decoder, header -> {
+                if (DTCPUtils.isConnectionDownUnexpected(srcAddress))
+                    return;//going to be dropped anyway
+                relay = dtcp.openCutThrough(header);
+                if (relay == null)
+                    return;
+                try {
+                    relayOut = new BufferedOutputStream(relay.getOutputStream());
+                    CBOREncoder head = new CBOREncoder(128);
+                    header.writeCBORHeader(head);
+                    head.writeTo(relayOut);
+                    decoder.beginTee(relayOut);
+                    logger.log(Level.INFO, "Relaying bundle as it arrives: " + header.getLoggingBundleId());
+                } catch (IOException | IllegalArgumentException e) {
+                    logger.log(Level.INFO, "Unable to relay bundle as it arrives: " + e.getMessage());
+                    relayOut = null;
+                }
+            });
+            if (relayOut == null)
+                return bundle;
+
+            //the whole bundle (break included) went through the tee, finish the relayed copy
+            IOException relayError = decoder.endTee();
+            try {
+                if (relayError != null)
+                    throw relayError;
+                relayOut.flush();
+                relay.shutdownOutput();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Relaying bundle as it arrived failed, storing it instead: " + bundle.getLoggingBundleId()
+                        + ": " + e.getMessage());
+                return bundle;
+            }
+            dtcp.cutThroughSent(bundle);
+            return null;
+        } finally {
+            closeRelay();
+        }
+    }
+
+    /**
+     * Closes the connection the current bundle was relayed on, if any.
+     * If the bundle was not relayed in full, the next hop gets a truncated bundle, which it drops
+     */
+    private void closeRelay() {
+        if (relay == null)
+            return;
+        try {
+            relay.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close relay socket: " + e.getMessage());
+        }
+        relay = null;
+        relayOut = null;
+    }
+
+    /**
+     * Answers a HELLO (type already read) with the codec we pick from those offered
+     * @param in stream to read from, positioned just after the message type
+     * @param version version both sides speak
+     * @throws IOException if the connection fails
+     */
+    private void answerHello(DataInputStream in, int version) throws IOException {
+        Codec chosen = DTCPProtocol.readHello(in, DTCPProtocol.OFFERED);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        DTCPProtocol.writePreamble(out, version);
+        DTCPProtocol.writeSelect(out, chosen);
+        out.flush();
+        logger.log(Level.FINE, "Selected codec " + chosen.name() + " for " + client.getRemoteSocketAddress());
     }
 }
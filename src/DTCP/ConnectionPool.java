@@ -0,0 +1,253 @@
+package DTCP;
+
+import BPv7.interfaces.Codec;
+import Configs.ConvergenceLayerParams;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps DTCP sessions to next hops open between bundles, so that every bundle does not pay for a TCP handshake.
+ * At most maxConnectionsPerPeer sessions per next hop are in use (and kept idle) at once; idle ones are closed after
+ * idleConnectionTimeout and checked before being reused.
+ */
+class ConnectionPool {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+    /** How long (ms) a health check waits for the peer to show it closed the connection */
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 1;
+    /**
+     * Sessions idle for less than this (ms) are reused without a health check. A failed send is retried once on a
+     * new session anyway, so the check is only worth its cost for sessions the peer may have given up on
+     */
+    private static final long HEALTH_CHECK_AFTER_MS = 1000;
+
+    /**
+     * Opens sessions to next hops
+     */
+    interface Connector {
+        /**
+         * Opens a session to a next hop (preamble and negotiation done)
+         * @param dest address of the next hop
+         * @return the session, or null if the next hop does not support sessions
+         * @throws IOException if the next hop cannot be reached
+         */
+        Connection connect(String dest) throws IOException;
+    }
+
+    /**
+     * An open session to a next hop
+     */
+    static class Connection {
+        /** Address of the next hop */
+        final String dest;
+        /** The socket */
+        final Socket socket;
+        /** Buffered output of the socket */
+        final DataOutputStream out;
+        /** Codec agreed on with the next hop */
+        final Codec codec;
+        /** When this session was last given back to the pool (ms since epoch) */
+        private long lastUsed;
+        /** When a frame was last sent on this session (ms since epoch) */
+        private long lastSent;
+
+        /**
+         * Wraps a socket whose session is set up
+         * @param dest address of the next hop
+         * @param socket the socket
+         * @param codec codec agreed on with the next hop
+         * @throws IOException if the socket is closed
+         */
+        Connection(String dest, Socket socket, Codec codec) throws IOException {
+            this.dest = dest;
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.codec = codec;
+            this.lastUsed = System.currentTimeMillis();
+            this.lastSent = lastUsed;
+        }
+
+        /**
+         * Checks the peer did not close the session while it was idle. The peer never sends anything
+         * on a session, so any answer to a short read (data or EOF) means the session is unusable.
+         * @return true if the session still looks usable
+         */
+        boolean isHealthy() {
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+                return false;
+            try {
+                socket.setSoTimeout(HEALTH_CHECK_TIMEOUT_MS);
+                InputStream in = socket.getInputStream();
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;//nothing to read, as it should be
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Sends a KEEPALIVE frame so that the peer does not time the session out
+         * @return true if it was sent
+         */
+        boolean keepAlive() {
+            try {
+                DTCPProtocol.writeEmptyFrame(out, DTCPProtocol.KEEPALIVE);
+                out.flush();
+                lastSent = System.currentTimeMillis();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /** Tells the peer we are done with the session (CLOSE frame), then closes it, ignoring failures */
+        void closeGracefully() {
+            try {
+                DTCPProtocol.writeEmptyFrame(out, DTCPProtocol.CLOSE);
+                out.flush();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to send CLOSE to " + dest + ": " + e.getMessage());
+            }
+            close();
+        }
+
+        /** Closes the session, ignoring failures */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to close session to " + dest + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Opens new sessions */
+    private final Connector connector;
+    /** Most sessions to one next hop */
+    private final int maxPerPeer;
+    /** How long (ms) a session may stay idle */
+    private final long idleTimeout;
+    /** How long (ms) a session may go without sending anything before a KEEPALIVE is sent (peers time out sessions) */
+    private final long keepAliveInterval;
+    /** Idle sessions by next hop, most recently used first */
+    private final Map<String, ConcurrentLinkedDeque<Connection>> idle = new ConcurrentHashMap<>();
+    /** Sessions each next hop may still have in use at once, by next hop */
+    private final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a pool, and the daemon thread that keeps idle sessions alive, then closes them
+     * @param connector opens new sessions
+     * @param config where the caps and timeouts come from
+     */
+    ConnectionPool(Connector connector, ConvergenceLayerParams config) {
+        this.connector = connector;
+        this.maxPerPeer = config.maxConnectionsPerPeer;
+        this.idleTimeout = config.idleConnectionTimeout;
+        this.keepAliveInterval = Math.max(1, config.connectionTimeout / 2);//the peer's timeout, assuming the same config
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DTCP-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, Math.min(idleTimeout, keepAliveInterval) / 2);
+        evictor.scheduleAtFixedRate(this::sweepIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a session to a next hop: an idle one that is still healthy, or a new one.
+     * Waits up to timeout for one to be released if as many sessions as allowed are already in use.
+     * @param dest address of the next hop
+     * @param timeout how long (ms) to wait for a session to be released
+     * @return the session (give it back with release or discard), or null if the next hop does not support sessions
+     * @throws IOException if no session could be opened in time
+     */
+    Connection borrow(String dest, long timeout) throws IOException {
+        Semaphore available = permits.computeIfAbsent(dest, d -> new Semaphore(maxPerPeer));
+        try {
+            if (!available.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new IOException("All " + maxPerPeer + " sessions to " + dest + " are busy");
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for a session to " + dest, e);
+        }
+
+        ConcurrentLinkedDeque<Connection> idleForDest = idle.computeIfAbsent(dest, d -> new ConcurrentLinkedDeque<>());
+        Connection conn;
+        while ((conn = idleForDest.pollFirst()) != null) {
+            long idleFor = System.currentTimeMillis() - conn.lastUsed;
+            if (idleFor < idleTimeout && (idleFor < HEALTH_CHECK_AFTER_MS || conn.isHealthy()))
+                return conn;
+            conn.close();
+        }
+        try {
+            conn = connector.connect(dest);
+        } catch (IOException | RuntimeException e) {
+            available.release();
+            throw e;
+        }
+        if (conn == null)
+            available.release();
+        return conn;
+    }
+
+    /**
+     * Gives a session back to the pool after a successful send
+     * @param conn the session
+     */
+    void release(Connection conn) {
+        conn.lastUsed = System.currentTimeMillis();
+        ConcurrentLinkedDeque<Connection> idleForDest = idle.computeIfAbsent(conn.dest, d -> new ConcurrentLinkedDeque<>());
+        conn.lastSent = conn.lastUsed;
+        if (idleForDest.size() < maxPerPeer)
+            idleForDest.offerFirst(conn);
+        else
+            conn.closeGracefully();//more sessions than we need were opened at once
+        permits.get(conn.dest).release();
+    }
+
+    /**
+     * Closes a session that failed instead of giving it back
+     * @param conn the session
+     */
+    void discard(Connection conn) {
+        conn.close();
+        permits.get(conn.dest).release();
+    }
+
+    /** Closes sessions that have been idle for too long, and keeps the others from timing out at the peer */
+    private void sweepIdle() {
+        for (ConcurrentLinkedDeque<Connection> idleForDest : idle.values()) {
+            for (Connection conn : idleForDest) {
+                long now = System.currentTimeMillis();
+                if (now - conn.lastUsed >= idleTimeout) {
+                    if (idleForDest.removeFirstOccurrence(conn)) {
+                        logger.log(Level.FINE, "Closing idle session to " + conn.dest);
+                        conn.closeGracefully();
+                    }
+                } else if (now - conn.lastSent >= keepAliveInterval && idleForDest.removeFirstOccurrence(conn)) {
+                    //taken out while writing so nobody borrows it meanwhile
+                    if (conn.keepAlive())
+                        idleForDest.offerLast(conn);
+                    else
+                        conn.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package DTCP;
+
+import DTCP.interfaces.Contact;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Contact Graph Routing: finds the next hop towards a node over the contact plan of the whole topology
+ * (ConvergenceLayerParams.nodeAddresses and links). The contacts of every link are predicted like this node's own
+ * (DTCPUtils.findContact), and Dijkstra over them gives the route on which a bundle sent now arrives first.
+ * Routes are cached per destination until a contact they rely on ends, so they are not computed for every bundle.
+ */
+class ContactGraphRouter {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(ContactGraphRouter.class.getName());
+
+    /**
+     * Best route to a destination found at some point
+     * @param nextHop address of the next hop, null if no route arrives before horizon
+     * @param arrival when a bundle sent when the route was found arrives (ms since epoch)
+     * @param validUntil when the first of the contacts the route relies on ends (ms since epoch), after which it is stale
+     * @param horizon how far ahead contacts were looked for (ms since epoch)
+     */
+    private record Route(String nextHop, long arrival, long validUntil, long horizon) {}
+
+    /** Node IDs, by index */
+    private final String[] ids;
+    /** Node addresses, by index */
+    private final String[] addresses;
+    /** Indexes of the nodes linked to each node, by index */
+    private final int[][] neighbours;
+    /** Index of every node, by ID */
+    private final Map<String, Integer> index = new HashMap<>();
+    /** Index of this node */
+    private final int self;
+    /** Cached routes, by destination node ID */
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Builds the contact graph of a topology
+     * @param nodeAddresses address of every node, by node ID
+     * @param links pairs of linked node IDs
+     * @param selfID ID of this node
+     * @throws InvalidParameterException if this node is not part of the topology
+     */
+    ContactGraphRouter(Map<String, String> nodeAddresses, List<List<String>> links, String selfID) throws InvalidParameterException {
+        ids = nodeAddresses.keySet().toArray(new String[0]);
+        addresses = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            index.put(ids[i], i);
+            addresses[i] = nodeAddresses.get(ids[i]);
+        }
+        Integer selfIndex = index.get(selfID);
+        if (selfIndex == null)
+            throw new InvalidParameterException("Invalid nodeAddresses: this node (" + selfID + ") is not in the topology");
+        self = selfIndex;
+
+        List<List<Integer>> adjacent = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++)
+            adjacent.add(new ArrayList<>());
+        for (List<String> link : links) {
+            int a = index.get(link.get(0)), b = index.get(link.get(1));
+            adjacent.get(a).add(b);
+            adjacent.get(b).add(a);
+        }
+        neighbours = new int[ids.length][];
+        for (int i = 0; i < ids.length; i++)
+            neighbours[i] = adjacent.get(i).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @param nodeID ID of a node
+     * @return true if the node is part of the topology
+     */
+    boolean knows(String nodeID) { return index.containsKey(nodeID); }
+
+    /**
+     * Gets the next hop of the route on which a bundle sent now reaches a node first
+     * @param dest ID of the node
+     * @param deadline when the bundle must have arrived by (ms since epoch)
+     * @return address of the next hop, or null if the node is unknown or no route reaches it by the deadline
+     */
+    String nextHop(String dest, long deadline) {
+        Integer to = index.get(dest);
+        if (to == null)
+            return null;
+        if (to == self)
+            return addresses[self];
+        long now = System.currentTimeMillis();
+        Route route = routes.get(dest);
+        if (route == null || now >= route.validUntil() || (route.nextHop() == null && deadline > route.horizon())) {
+            route = findRoute(to, now, Math.max(deadline, now + 1));
+            routes.put(dest, route);
+        }
+        return route.nextHop() != null && route.arrival() <= deadline ? route.nextHop() : null;
+    }
+
+    /**
+     * Dijkstra over the contact graph: earliest arrival at every node for a bundle leaving this node now,
+     * taking each link at its next contact after the bundle gets to it (transmission time is not modelled)
+     * @param to index of the destination
+     * @param now current time (ms since epoch)
+     * @param horizon how far ahead to look for contacts (ms since epoch)
+     * @return the route to the destination
+     */
+    private Route findRoute(int to, long now, long horizon) {
+        long[] arrival = new long[ids.length];
+        long[] validUntil = new long[ids.length];
+        int[] firstHop = new int[ids.length];
+        Arrays.fill(arrival, Long.MAX_VALUE);
+        arrival[self] = now;
+        validUntil[self] = Long.MAX_VALUE;
+        PriorityQueue<long[]> queue = new PriorityQueue<>((x, y) -> Long.compare(x[0], y[0]));//{arrival, node}
+        queue.add(new long[] {now, self});
+
+        while (!queue.isEmpty()) {
+            long[] head = queue.poll();
+            int node = (int) head[1];
+            if (head[0] > arrival[node])
+                continue;//already reached earlier
+            if (node == to)
+                break;
+            for (int next : neighbours[node]) {
+                Contact contact = DTCPUtils.findContact(addresses[node], addresses[next], arrival[node], horizon);
+                if (contact == null || contact.start() >= arrival[next])
+                    continue;
+                arrival[next] = contact.start();
+                validUntil[next] = Math.min(validUntil[node], contact.end());
+                firstHop[next] = node == self ? next : firstHop[node];
+                queue.add(new long[] {arrival[next], next});
+            }
+        }
+
+        Route route = arrival[to] == Long.MAX_VALUE
+                ? new Route(null, Long.MAX_VALUE, Long.MAX_VALUE, horizon)
+                : new Route(addresses[firstHop[to]], arrival[to], validUntil[to], horizon);
+        logger.log(Level.FINE, "Route to " + ids[to] + ": " + (route.nextHop() == null ? "none" : "via " + ids[firstHop[to]]
+                + ", arriving in " + (route.arrival() - now) + " ms"));
+        return route;
+    }
+}
@@ -3,16 +3,30 @@ package DTCP;
 import BPv7.containers.Bundle;
 import BPv7.containers.DTNTime;
 import BPv7.containers.NodeID;
+import BPv7.interfaces.Codec;
+import BPv7.utils.CodecRegistry;
+import BPv7.utils.RingBuffer;
+import BPv7.utils.VirtualThreads;
 import Configs.ConvergenceLayerParams;
 import Configs.SimulationParams;
+import DTCP.interfaces.Contact;
+import DTCP.interfaces.CutThroughListener;
 import DTCP.interfaces.DTCPInterface;
 import DTCP.interfaces.ReachableStatus;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.InvalidPropertiesFormatException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,7 +59,7 @@ public class DTCP implements DTCPInterface {
     private static final SimulationParams simParams = SimulationParams.getInstance();
 
     /**
-     * The queue for bundles received to offer to the BPA layer.
+     * The queue for bundles received to offer to the BPA layer (a ring buffer, filled by every connection).
      */
     private final BlockingQueue<Bundle> outQueue;
 
@@ -55,6 +69,43 @@ public class DTCP implements DTCPInterface {
     @SuppressWarnings("FieldCanBeLocal")
     private final Thread server;
 
+    /** The registry of wire formats */
+    private static final CodecRegistry codecs = CodecRegistry.getInstance();
+
+    /** How long (ms) before we check whether a peer that only spoke legacy JSON has been upgraded */
+    private static final long LEGACY_RENEGOTIATE_MS = 60_000;
+
+    /**
+     * A codec and protocol version agreed on with a peer
+     * @param codec the codec
+     * @param version version of the protocol both sides speak (0 for legacy peers)
+     * @param negotiatedAt when it was agreed on (ms since epoch)
+     */
+    private record NegotiatedCodec(Codec codec, int version, long negotiatedAt) {}
+
+    /** Codec and protocol version agreed on with each peer, by address */
+    private final ConcurrentHashMap<String, NegotiatedCodec> peerCodecs = new ConcurrentHashMap<>();
+
+    /** Open sessions to peers, reused across bundles */
+    private final ConnectionPool pool = new ConnectionPool(this::connect, convParams);
+
+    /**
+     * Runs asynchronous sends, a virtual thread each with virtualThreads, otherwise on maxSendsInFlight platform
+     * threads (the BPA never has more sends in flight)
+     */
+    private final ExecutorService senders = VirtualThreads.newExecutor("DTCP-sender", convParams.virtualThreads,
+            convParams.maxSendsInFlight);
+
+    /** Next hops by node ID (exact, prefix and default routes) */
+    private final RoutingTable routingTable = new RoutingTable(convParams.idToAddressRoutingMap);
+
+    /** Finds routes over the contact plan of the whole topology, null if only idToAddressRoutingMap is used */
+    private final ContactGraphRouter router = convParams.links.isEmpty() ? null
+            : new ContactGraphRouter(convParams.nodeAddresses, convParams.links, simParams.hostID);
+
+    /** Decides which bundles may be relayed as they arrive, null if none may */
+    private volatile CutThroughListener cutThroughListener = null;
+
 
     /**
      * Gets the singleton instance of DTCP
@@ -80,57 +131,82 @@ public class DTCP implements DTCPInterface {
      * Hiding default constructor to force singleton use. Sets up the config, the input queue, then the receiving server
      */
     protected DTCP(){
-        if (convParams.queueCapacity != -1)
-            outQueue = new LinkedBlockingQueue<>(convParams.queueCapacity);
-        else
-            outQueue = new LinkedBlockingQueue<>();
-        server = new Thread(new DTCPServer(outQueue));
+        outQueue = new RingBuffer<>(convParams.queueCapacity != -1 ? convParams.queueCapacity : convParams.ringCapacity,
+                false, convParams.queueWaitStrategy);
+        server = new Thread(ConvergenceLayerParams.SERVER_NIO.equals(convParams.serverMode)
+                ? new DTCPNioServer(outQueue) : new DTCPServer(outQueue, this));
         server.start();
     }
 
     /**
-     * Sends bundle to bundle node
+     * Sends bundle to bundle node, through the next hop of the route that reaches it before the bundle expires
      * @param toBeSent bundle to be sent
      * @return true if successful, else false
      */
     @Override
     public boolean send(Bundle toBeSent) {
+        String dest = nodeToNetwork(toBeSent.getPrimary().getDestNode(), deadline(toBeSent)); //Should be IPv4
+        if (dest == null) {
+            // This means something really wrong happened, because it was never reachable in the first place
+            logger.log(Level.WARNING, "No route reaches the destination before the bundle expires. BundleID: "
+                    + toBeSent.getLoggingBundleId());
+            return false;
+        }
+        return send(toBeSent, dest);
+    }
+
+    /**
+     * Gets when a bundle expires, as the deadline of the route it is sent on
+     * @param bundle the bundle, only its primary block is used
+     * @return the time (ms since the epoch) the bundle expires
+     */
+    private static long deadline(Bundle bundle) {
+        return System.currentTimeMillis() + bundle.getPrimary().getLifetime()
+                + bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS - DTNTime.getCurrentDTNTime().timeInMS;
+    }
+
+    /**
+     * Sends bundle to a given next hop
+     * @param toBeSent bundle to be sent
+     * @param dest networkId of the next hop (picked with nodeToNetwork)
+     * @return true if successful, else false
+     */
+    @Override
+    public boolean send(Bundle toBeSent, String dest) {
         String loggingID = toBeSent.getLoggingBundleId(); // For logging, mostly arbitrary
-        NodeID destNode = toBeSent.getPrimary().getDestNode();
-        ReachableStatus status = canReach(destNode);
-        if (status == ReachableStatus.EXPECTED_DOWN) {
+        if (canReachHop(dest) == ReachableStatus.EXPECTED_DOWN) {
             // This (likely) means the status changed since they last checked, just let them know it didn't make it
             logger.log(Level.INFO, "Attempted to send a bundle during an expected down, potentially just a timing.");
             return false;
         }
-        if (status != ReachableStatus.REACHABLE) {
-            // This means something really wrong happened, because it was never reachable in the first place
-            logger.log(Level.WARNING, "Attempted to send to unreachable destination. BundleID: " + loggingID);
-            return false;
-        }
-
-        String dest = nodeToNetwork(destNode); //Should be IPv4
         if(dest.equals(convParams.thisAddress)){
             logger.warning("NOTE: SENDING BUNDLE TO SELF");
             return outQueue.offer(toBeSent);
         }
 
-        byte[] bundleAsBytes;
+        Codec codec = null;
         try {
-            // Get the CBOR converted Byte Array
-            bundleAsBytes = toBeSent.getNetworkEncoding(logger);
-
+            NegotiatedCodec peer = knownPeer(dest);
+            if (peer == null || peer.version() >= DTCPProtocol.SESSION_VERSION)
+                codec = sendOnSession(dest, toBeSent);
+            if (codec == null) {
+                // peers without sessions get one connection per bundle
+                peer = knownPeer(dest);//just negotiated by the pool
+                if (peer == null)
+                    throw new ProtocolException("No codec agreed on with " + dest);
+                codec = peer.codec();
+                try (Socket socket = openSocket(dest)) {
+                    writeBundle(socket, peer, toBeSent.getEncoding(codec));
+                }
+            }
+            logger.log(Level.INFO, "[NetStats] Bundle Sent: " + loggingID
+                                        + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - toBeSent.getPrimary().getCreationTimestamp().creationTime().timeInMS)
+                                        + "; Size of bundle payload (bytes):" + toBeSent.getPayloadLength()
+                                        + "; Codec: " + codec.name());
         } catch (InvalidPropertiesFormatException e) {
             // Something is wrong with the bundle, not DTCPs fault, so just drop it
             logger.log(Level.WARNING, "Attempted to send a bundle with invalid properties. BundleID: " + loggingID);
             return false;
-        }
-        try (Socket socket = new Socket(dest, simParams.scenario.dtcpPort())) {
-            // Just write the whole bundle
-            socket.getOutputStream().write(bundleAsBytes);
-            logger.log(Level.INFO, "[NetStats] Bundle Sent: " + loggingID
-                                        + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - toBeSent.getPrimary().getCreationTimestamp().creationTime().timeInMS)
-                                        + "; Size of bundle payload (bytes):" + toBeSent.getPayload().getPayload().length);
         } catch (UnknownHostException e) {
             // Something is wrong on internet network backside, not our problem, drop it
             logger.log(Level.WARNING, "Failed to find destination host of Bundle. BundleID: " + loggingID);
@@ -146,6 +222,252 @@ public class DTCP implements DTCPInterface {
         return true;
     }
 
+    /**
+     * Sends bundle to bundle node on a sender thread, so the caller never waits on a connect or a write
+     * (a blackholed peer can hold a connect up to the OS timeout)
+     * @param toBeSent bundle to be sent
+     * @return completes with true if successful, else false
+     */
+    @Override
+    public CompletableFuture<Boolean> sendAsync(Bundle toBeSent) {
+        return CompletableFuture.supplyAsync(() -> send(toBeSent), senders);
+    }
+
+    /**
+     * Sends bundle to a given next hop on a sender thread, so the caller never waits on a connect or a write
+     * @param toBeSent bundle to be sent
+     * @param nextHop networkId of the next hop (picked with nodeToNetwork)
+     * @return completes with true if successful, else false
+     */
+    @Override
+    public CompletableFuture<Boolean> sendAsync(Bundle toBeSent, String nextHop) {
+        return CompletableFuture.supplyAsync(() -> send(toBeSent, nextHop), senders);
+    }
+
+    /**
+     * Sends a bundle on a pooled session to the peer, opening one if there is none to reuse.
+     * A session that fails is dropped and the bundle is sent once more on a new session, since the peer
+     * may just have closed an idle session while we were picking it
+     * @param dest address of the peer
+     * @param toBeSent bundle to be sent
+     * @return the codec the bundle was sent with, or null if the peer does not support sessions (not sent)
+     * @throws IOException if sending failed on a new session too
+     * @throws InvalidPropertiesFormatException if the bundle cannot be encoded
+     */
+    private Codec sendOnSession(String dest, Bundle toBeSent) throws IOException, InvalidPropertiesFormatException {
+        for (int attempt = 0; ; attempt++) {
+            ConnectionPool.Connection conn = pool.borrow(dest, convParams.connectionTimeout);
+            if (conn == null)
+                return null;
+            try {
+                DTCPProtocol.writeBundleFrame(conn.out, conn.codec, toBeSent.getEncoding(conn.codec));
+                conn.out.flush();
+            } catch (InvalidPropertiesFormatException e) {
+                pool.release(conn);//nothing was written
+                throw e;
+            } catch (IOException e) {
+                pool.discard(conn);
+                if (attempt > 0)
+                    throw e;
+                logger.log(Level.FINE, "Session to " + dest + " failed, retrying on a new one: " + e.getMessage());
+                continue;
+            }
+            pool.release(conn);
+            return conn.codec;
+        }
+    }
+
+    /**
+     * Opens a session to a peer for the pool, negotiating a codec first if there is none agreed on yet
+     * @param dest address of the peer
+     * @return the session, or null if the peer does not support sessions (one bundle per connection)
+     * @throws IOException if the peer cannot be reached
+     */
+    private ConnectionPool.Connection connect(String dest) throws IOException {
+        Socket socket = openSocket(dest);
+        try {
+            NegotiatedCodec peer = knownPeer(dest);
+            boolean negotiated = peer == null;
+            if (negotiated)
+                peer = negotiate(socket, dest);
+            if (peer.version() < DTCPProtocol.SESSION_VERSION) {
+                socket.close();
+                return null;
+            }
+            socket.setSoTimeout(0);//only health checks read from a session, they set their own timeout
+            ConnectionPool.Connection conn = new ConnectionPool.Connection(dest, socket, peer.codec());
+            if (!negotiated)
+                DTCPProtocol.writePreamble(conn.out, peer.version());//goes out with the first bundle
+            logger.log(Level.FINE, "Opened session to " + dest);
+            return conn;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up the codec and protocol version negotiated with a peer
+     * @param dest address of the peer
+     * @return what was agreed on, or null if it has to be negotiated (again)
+     */
+    private NegotiatedCodec knownPeer(String dest) {
+        NegotiatedCodec known = peerCodecs.get(dest);
+        if (known == null)
+            return null;
+        if (known.codec() == codecs.legacy()
+                && System.currentTimeMillis() - known.negotiatedAt() > LEGACY_RENEGOTIATE_MS)
+            return null;
+        return known;
+    }
+
+    /**
+     * Offers our codecs to a peer and waits for its choice. Peers that do not answer in time, close the connection,
+     * or answer with garbage are older nodes, and get the legacy codec.
+     * @param socket fresh connection to the peer
+     * @param dest address of the peer
+     * @return the codec the peer chose and the version it speaks (legacy codec and version 0 if it did not negotiate)
+     * @throws IOException if the HELLO could not be sent
+     */
+    private NegotiatedCodec negotiate(Socket socket, String dest) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DTCPProtocol.writePreamble(out, DTCPProtocol.VERSION);
+        DTCPProtocol.writeHello(out, DTCPProtocol.OFFERED);
+        out.flush();
+
+        Codec chosen;
+        int version;
+        try {
+            socket.setSoTimeout(Math.min(convParams.connectionTimeout, DTCPProtocol.NEGOTIATION_TIMEOUT_MS));
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            version = DTCPProtocol.readPreamble(in);
+            if (version == 0)
+                throw new ProtocolException("No DTCP preamble in answer");
+            DataInputStream dataIn = new DataInputStream(in);
+            DTCPProtocol.expectType(dataIn, DTCPProtocol.SELECT);
+            chosen = DTCPProtocol.readCodec(dataIn);
+            if (chosen != codecs.legacy() && !DTCPProtocol.OFFERED.contains(chosen))
+                throw new ProtocolException("Peer selected a codec we did not offer: " + chosen.name());
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Peer " + dest + " did not negotiate a codec, using legacy encoding: " + e.getMessage());
+            chosen = codecs.legacy();
+            version = 0;
+        }
+        NegotiatedCodec agreed = new NegotiatedCodec(chosen, version, System.currentTimeMillis());
+        peerCodecs.put(dest, agreed);
+        logger.log(Level.INFO, "Using codec " + chosen.name() + " and DTCP version " + version + " for peer " + dest);
+        return agreed;
+    }
+
+    /**
+     * Writes a whole bundle on a fresh connection to a peer and closes our side of the connection
+     * @param socket connection to the peer
+     * @param peer codec and version agreed on with the peer
+     * @param bundleAsBytes encoded bundle
+     * @throws IOException if the connection fails
+     */
+    private void writeBundle(Socket socket, NegotiatedCodec peer, byte[] bundleAsBytes) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (peer.codec() != codecs.legacy()) {
+            // legacy peers only understand the bare bundle
+            DTCPProtocol.writePreamble(out, peer.version());
+            DTCPProtocol.writeDataHeader(out, peer.codec());
+        }
+        out.write(bundleAsBytes);
+        out.flush();
+        socket.shutdownOutput();
+    }
+
+    /**
+     * Sets who decides which bundles may be relayed while they are still arriving
+     * @param listener the decider, null to stop relaying bundles that way
+     */
+    @Override
+    public void setCutThroughListener(CutThroughListener listener) { cutThroughListener = listener; }
+
+    /**
+     * Opens a connection to the next hop of a bundle whose primary block just arrived, if the bundle can be relayed
+     * while the rest of it is still arriving: cut-through is enabled, the BPA agrees, the next hop is reachable right
+     * now, and it speaks CBOR (the bytes are relayed exactly as they arrive, see ClientHandler.receiveCutThrough
+     * for the bundles that turn out not to be relayable once their other blocks arrive)
+     * @param header the bundle, only its primary block is available
+     * @return a connection ready for the CBOR-encoded bundle, or null if the bundle has to be received in full first
+     */
+    Socket openCutThrough(Bundle header) {
+        CutThroughListener listener = cutThroughListener;
+        if (!convParams.cutThrough || listener == null)
+            return null;
+        //the same next hop send would pick, resolved once so it can't change (or vanish) between the checks
+        String dest = nodeToNetwork(header.getPrimary().getDestNode(), deadline(header));
+        if (dest == null || canReachHop(dest) != ReachableStatus.REACHABLE)
+            return null;
+        if (dest.equals(convParams.thisAddress) || !listener.mayCutThrough(header))
+            return null;
+
+        Codec cbor = codecs.get(CodecRegistry.CBOR_ID);
+        NegotiatedCodec peer = knownPeer(dest);
+        if (peer != null && peer.codec() != cbor)
+            return null;
+        Socket socket = null;
+        try {
+            socket = openSocket(dest);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (peer == null) {
+                if (negotiate(socket, dest).codec() != cbor) {
+                    socket.close();
+                    return null;
+                }
+            } else {
+                DTCPProtocol.writePreamble(out, peer.version());
+            }
+            DTCPProtocol.writeDataHeader(out, cbor);
+            out.flush();
+            return socket;
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Unable to relay bundle as it arrives, receiving it in full instead: " + e.getMessage());
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    //nothing left to do with it
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Connects to the DTCP server of a peer, giving up after connectionTimeout instead of the OS connect timeout (which
+     * can be minutes for a host that drops the SYN)
+     * @param dest address of the peer
+     * @return the connected socket
+     * @throws IOException if the peer cannot be reached in time
+     */
+    private Socket openSocket(String dest) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(dest, simParams.scenario.dtcpPort()), convParams.connectionTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Tells the BPA a bundle was relayed as it arrived
+     * @param bundle the relayed bundle
+     */
+    void cutThroughSent(Bundle bundle) {
+        logger.log(Level.INFO, "[NetStats] Bundle Sent: " + bundle.getLoggingBundleId()
+                + "; Time (ms) since creation: " + (DTNTime.getCurrentDTNTime().timeInMS - bundle.getPrimary().getCreationTimestamp().creationTime().timeInMS)
+                + "; Size of bundle payload (bytes):" + bundle.getPayloadLength()
+                + "; Codec: cbor (cut-through)");
+        CutThroughListener listener = cutThroughListener;
+        if (listener != null)
+            listener.cutThroughSent(bundle);
+    }
+
     /**
      * This function is used to receive a bundle that was sent to this node. It is blocking.
      * @return A bundle sent to this node
@@ -167,25 +489,63 @@ public class DTCP implements DTCPInterface {
     @Override
     public ReachableStatus canReach(NodeID ID) {
         String dest = nodeToNetwork(ID);
-        if (!ID.equals(NodeID.getNullSourceID()) && !convParams.idToAddressRoutingMap.containsKey(ID.id()))
+        if (!ID.equals(NodeID.getNullSourceID()) && !routingTable.knows(ID.id())
+                && (router == null || !router.knows(ID.id())))
             return ReachableStatus.UNKNOWN_ID;
         if (dest == null)
             return ReachableStatus.NO_ROUTE;
-        if (DTCPUtils.isConnectionDownExpected(dest))
-            return ReachableStatus.EXPECTED_DOWN;
-        return ReachableStatus.REACHABLE;
+        return canReachHop(dest);
     }
 
     /**
-     * Find the networkID for the given node
+     * Checks the network status of the link to a next hop only for PREDICTABLE disruptions
+     * @param nextHop networkId of the next hop
+     * @return EXPECTED_DOWN or REACHABLE
+     */
+    @Override
+    public ReachableStatus canReachHop(String nextHop) {
+        return DTCPUtils.isConnectionDownExpected(nextHop) ? ReachableStatus.EXPECTED_DOWN : ReachableStatus.REACHABLE;
+    }
+
+    /**
+     * Gets the next contact with a next hop from the contact plan (expected downs are known in advance)
+     * @param nextHop networkId of the next hop
+     * @param from earliest start of the contact (ms since epoch)
+     * @param until how far ahead to look (ms since epoch)
+     * @return the contact (its end capped at until), or null if there is none before until
+     */
+    @Override
+    public Contact nextContact(String nextHop, long from, long until) {
+        if (from >= until)
+            return null;
+        return DTCPUtils.findContact(nextHop, from, until);
+    }
+
+    /**
+     * Find the networkID for the given node: the next hop of its route if contact graph routing is configured
+     * (for a bundle that has to arrive within the scenario's bundle lifetime), otherwise from the routing table
      * @param ID node object
      * @return networkId of the node
      */
     @Override
     public String nodeToNetwork(NodeID ID) {
+        return nodeToNetwork(ID, System.currentTimeMillis() + simParams.scenario.bundleLifetimeMS());
+    }
+
+    /**
+     * Find the networkID for the given node: the next hop of the route that reaches it first, if contact graph
+     * routing is configured and the route arrives by the deadline, otherwise from the routing table
+     * @param ID node object
+     * @param deadline when a bundle must have arrived by (ms since epoch)
+     * @return networkId of the next hop, null if there is none
+     */
+    @Override
+    public String nodeToNetwork(NodeID ID, long deadline) {
         if (ID.equals(NodeID.getNullSourceID()))
             return null;
-        return convParams.idToAddressRoutingMap.getOrDefault(ID.id(), null);
+        if (router != null && router.knows(ID.id()))
+            return router.nextHop(ID.id(), deadline);
+        return routingTable.nextHop(ID.id());
     }
 
 
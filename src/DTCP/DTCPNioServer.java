@@ -0,0 +1,571 @@
+package DTCP;
+
+import BPv7.containers.Bundle;
+import BPv7.interfaces.Codec;
+import Configs.ConvergenceLayerParams;
+import Configs.SimulationParams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The server (thread) for receiving bundles without a thread per connection: one selector loop reads from every
+ * connection into a single shared buffer and cuts what arrives into bundles, which nThreads workers decode and hand
+ * to the BPA. Every connection is served by one worker (picked in turn as connections are accepted), so the bundles of
+ * a connection reach the BPA in the order they arrived. A slow or stalled peer costs the bytes it sent so far, not a
+ * thread.
+ * @implSpec speaks the same protocol as ClientHandler (legacy, DATA, sessions), but only hands bundles on once they
+ *  are fully received, so it cannot relay them as they arrive (cutThrough). Drops bundles in the same cases
+ * @implNote the loop never decodes a bundle itself: once MAX_QUEUED_BUNDLES bundles of a connection wait for its
+ *  worker, it stops reading the connection until the worker catches up, so TCP pushes back on that sender only
+ */
+class DTCPNioServer implements Runnable {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(DTCPNioServer.class.getName());
+
+    /**
+     * The instance of the ConvergenceLayerParams Class
+     */
+    private static final ConvergenceLayerParams convParams = ConvergenceLayerParams.getInstance();
+
+    /**
+     * The instance of the SimulationParams Class
+     */
+    private static final SimulationParams simParams = SimulationParams.getInstance();
+
+    /** Size of the buffer every connection is read into */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /** How often (ms) connections are checked for having been idle longer than connectionTimeout */
+    private static final long SWEEP_INTERVAL_MS = 1000;
+    /**
+     * First allocation for a bundle, which grows as it arrives (so a peer announcing a long frame costs nothing until it
+     * actually sends it)
+     */
+    private static final int INITIAL_BODY_SIZE = 8 * 1024;
+    /** Most bundles of a connection waiting for its worker before the connection stops being read */
+    private static final int MAX_QUEUED_BUNDLES = 16;
+
+    /** Where a connection is in the protocol */
+    private static final int PREAMBLE = 0, TYPE = 1, HELLO = 2, DATA_CODEC = 3, UNTIL_EOF = 4,
+                              FRAME_LENGTH = 5, FRAME_CODEC = 6, FRAME_BODY = 7, FRAME_SKIP = 8;
+
+    /**
+     * The queue for bundles received to offer to the BPA layer.
+     */
+    private final BlockingQueue<Bundle> outQueue;
+
+    /** Decode bundles and hand them to the BPA, each one for its share of the connections */
+    private ExecutorService[] workers;
+    /** Worker of the next connection accepted */
+    private int nextWorker = 0;
+    /** The selector loop's selector */
+    private Selector selector;
+    /** Connections whose worker caught up, to read again (handed from the workers to the loop) */
+    private final Queue<Connection> resumed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor for the DTCP NIO Server
+     * @param outQueue the queue for sending Bundles to the BPA layer
+     */
+    DTCPNioServer(BlockingQueue<Bundle> outQueue) {
+        this.outQueue = outQueue;
+    }
+
+    /**
+     * The thread method for actually running the server
+     */
+    @Override
+    public void run() {
+        workers = new ExecutorService[convParams.nThreads];
+        for (int i = 0; i < workers.length; i++) {
+            String name = "DTCP-nio-worker-" + i;
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        try (Selector selector = Selector.open(); ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(simParams.scenario.dtcpPort()), convParams.maxConnections);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            logger.log(Level.INFO, "DTCP Server Started (nio)");
+
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            long lastSweep = System.currentTimeMillis();
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                selector.select(SWEEP_INTERVAL_MS);
+                Connection caughtUp;
+                while ((caughtUp = resumed.poll()) != null)
+                    caughtUp.resume();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept(serverChannel, selector);
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isWritable())
+                            conn.flushPending();
+                        if (key.isValid() && key.isReadable())
+                            conn.read(readBuffer);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Client IOException, Bundle Dropped: " + e.getMessage());
+                        close(key);
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "CRITICAL INTERNAL ERROR:" + e.getMessage());
+                        close(key);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+                    closeIdle(selector, now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "DTCP Server Failed: " + e.getMessage());
+            throw new RuntimeException("DTCP Server Failed", e);
+        } finally {
+            for (ExecutorService worker : workers)
+                worker.shutdown();
+        }
+    }
+
+    /**
+     * Accepts every pending connection
+     * @param serverChannel the listening channel
+     * @param selector the selector to register connections with
+     * @throws IOException if a connection cannot be set up
+     */
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            logger.info("Connected to client! " + remote);
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(key, remote.getAddress().getHostAddress(), workers[nextWorker]));
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+    }
+
+    /**
+     * Closes connections that have been idle longer than connectionTimeout. Paused connections are not idle: they are
+     * not read because their worker is behind, not because the peer went quiet
+     * @param selector the selector connections are registered with
+     * @param now current time (ms since epoch)
+     */
+    private void closeIdle(Selector selector, long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection conn) || conn.paused
+                    || now - conn.lastActivity < convParams.connectionTimeout)
+                continue;
+            if (conn.state == TYPE || (conn.state == PREAMBLE && conn.headLength == 0))
+                logger.log(Level.FINE, "Closing idle connection from " + conn.srcAddress);
+            else
+                logger.log(Level.WARNING, "Client timed out, Bundle Dropped: " + conn.srcAddress);
+            close(key);
+        }
+    }
+
+    /**
+     * Closes a connection, ignoring failures
+     * @param key key of the connection
+     */
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close client socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A bundle received in full, still encoded
+     * @param codec codec it is encoded with
+     * @param bytes the encoded bundle
+     */
+    private record Encoded(Codec codec, byte[] bytes) {}
+
+    /**
+     * State of one connection: where it is in the protocol and what it received of the current message so far
+     */
+    private class Connection {
+        /** Key of the connection */
+        private final SelectionKey key;
+        /** The connection */
+        private final SocketChannel channel;
+        /** Address of the peer */
+        private final String srcAddress;
+        /** When something was last read from the connection (ms since epoch) */
+        private long lastActivity = System.currentTimeMillis();
+
+        /** Where the connection is in the protocol */
+        private int state = PREAMBLE;
+        /** Version both sides speak */
+        private int version = 0;
+        /** Fixed-size fields received so far (preamble, HELLO, frame length) */
+        private final byte[] head = new byte[256];
+        /** How many bytes of head were received */
+        private int headLength = 0;
+        /** Type of the current frame */
+        private int frameType;
+        /** Length of the current frame */
+        private int frameLength;
+        /** Codec of the current bundle */
+        private Codec codec;
+        /** Current bundle received so far */
+        private byte[] body;
+        /** How many bytes of body were received */
+        private int bodyLength;
+        /** Bytes of the current (unknown) frame still to skip */
+        private int skip;
+        /** Answer still to be written, null if none */
+        private ByteBuffer pending = null;
+        /** Decodes the bundles of this connection, one after the other */
+        private final ExecutorService worker;
+        /** Bundles completed by the current read, handed to the worker together once all of it is handled */
+        private List<Encoded> completed = new ArrayList<>();
+        /** Bundles handed to the worker and not delivered yet */
+        private final AtomicInteger queued = new AtomicInteger();
+        /** True while the connection is not read because too many of its bundles wait for the worker */
+        private boolean paused = false;
+
+        /**
+         * Sets up the state of a new connection
+         * @param key key of the connection
+         * @param srcAddress address of the peer
+         * @param worker decodes the bundles of this connection
+         */
+        Connection(SelectionKey key, String srcAddress, ExecutorService worker) {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+            this.srcAddress = srcAddress;
+            this.worker = worker;
+        }
+
+        /**
+         * Decodes the bundles completed by the current read on the worker of the connection and hands them to the BPA
+         * together (one claim of the ring for all of them), and stops reading the connection if MAX_QUEUED_BUNDLES of
+         * its bundles now wait for the worker
+         */
+        private void submitCompleted() {
+            if (completed.isEmpty())
+                return;
+            List<Encoded> batch = completed;
+            completed = new ArrayList<>();
+            if (queued.addAndGet(batch.size()) >= MAX_QUEUED_BUNDLES && key.isValid()) {
+                paused = true;
+                updateInterest();
+            }
+            worker.execute(() -> {
+                List<Bundle> bundles = new ArrayList<>(batch.size());
+                for (Encoded encoded : batch) {
+                    try {
+                        bundles.add(encoded.codec().decode(encoded.bytes()));
+                    } catch (ParseException e) {
+                        logger.log(Level.WARNING, "Malformed or oversized bundle (offset " + e.getErrorOffset() + "), Bundle Dropped: " + e.getMessage());
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Unspecified Failure To Read Bundle and add to Queue: " + e.getMessage());
+                    }
+                }
+                try {
+                    ClientHandler.deliverAll(bundles, srcAddress, outQueue, logger);
+                } catch (InterruptedException e) {
+                    logger.log(Level.WARNING, "Queue Interrupt Expection, Bundle Dropped: " + e.getMessage());
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Unspecified Failure To Read Bundle and add to Queue: " + e.getMessage());
+                }
+                int left = queued.addAndGet(-batch.size());
+                if (left < MAX_QUEUED_BUNDLES && left + batch.size() >= MAX_QUEUED_BUNDLES) {//the loop may have paused the connection
+                    resumed.add(this);
+                    selector.wakeup();
+                }
+            });
+        }
+
+        /**
+         * Reads the connection again if it was paused and its worker caught up (on the loop)
+         */
+        void resume() {
+            if (!paused || queued.get() >= MAX_QUEUED_BUNDLES || !key.isValid())
+                return;//still behind: the worker hands it back once it catches up
+            paused = false;
+            lastActivity = System.currentTimeMillis();//the peer was waiting on us, not idle
+            updateInterest();
+        }
+
+        /**
+         * Sets what the loop waits for on the connection: reads unless paused, writes while an answer is pending
+         */
+        private void updateInterest() {
+            key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (pending != null ? SelectionKey.OP_WRITE : 0));
+        }
+
+        /**
+         * Reads what arrived and handles it
+         * @param buffer buffer to read into (shared by all connections, only used during this call)
+         * @throws IOException if the connection fails or the peer does not follow the protocol
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read == -1) {
+                endOfStream();
+                submitCompleted();
+                close(key);
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            buffer.flip();
+            boolean open;
+            try {
+                open = consume(buffer);
+            } finally {
+                submitCompleted();//the bundles completed before a protocol error too
+            }
+            if (!open) {
+                logger.log(Level.FINE, "Session closed by " + srcAddress);
+                close(key);
+            }
+        }
+
+        /**
+         * Handles bytes that arrived on the connection
+         * @param in the bytes
+         * @return false if the peer closed the session (the connection should be closed)
+         * @throws IOException if the peer does not follow the protocol
+         */
+        private boolean consume(ByteBuffer in) throws IOException {
+            while (in.hasRemaining()) {
+                switch (state) {
+                    case PREAMBLE -> {
+                        head[headLength++] = in.get();
+                        int found = DTCPProtocol.parsePreamble(head, headLength);
+                        if (found == -1) {
+                            startLegacy();
+                        } else if (found > 0) {
+                            version = found;
+                            headLength = 0;
+                            state = TYPE;
+                        }
+                    }
+                    case TYPE -> {
+                        int type = in.get() & 0xff;
+                        if (type == DTCPProtocol.HELLO) {
+                            state = HELLO;
+                        } else if (type == DTCPProtocol.DATA) {
+                            state = DATA_CODEC;
+                        } else if (version < DTCPProtocol.SESSION_VERSION) {
+                            throw new ProtocolException("Unexpected DTCP message type " + type);
+                        } else {
+                            frameType = type;
+                            state = FRAME_LENGTH;
+                        }
+                    }
+                    case HELLO -> {
+                        head[headLength++] = in.get();
+                        if (headLength == 1 + (head[0] & 0xff))//count byte, then that many codec ids
+                            answerHello();
+                    }
+                    case DATA_CODEC -> {
+                        codec = DTCPProtocol.codec(in.get() & 0xff);
+                        startBody(INITIAL_BODY_SIZE);
+                        state = UNTIL_EOF;
+                    }
+                    case UNTIL_EOF -> {
+                        if ((long) bodyLength + in.remaining() > convParams.maxBundleSize)
+                            throw new ProtocolException("Bundle over the " + convParams.maxBundleSize + " bytes limit");
+                        if (bodyLength + in.remaining() > body.length)
+                            body = Arrays.copyOf(body, Math.min(convParams.maxBundleSize,
+                                    Math.max(body.length * 2, bodyLength + in.remaining())));
+                        int n = in.remaining();
+                        in.get(body, bodyLength, n);
+                        bodyLength += n;
+                    }
+                    case FRAME_LENGTH -> {
+                        head[headLength++] = in.get();
+                        if (headLength == 4)
+                            startFrame();
+                    }
+                    case FRAME_CODEC -> {
+                        codec = DTCPProtocol.codec(in.get() & 0xff);
+                        startBody(Math.min(INITIAL_BODY_SIZE, frameLength - 1));//grows as the body arrives
+                        state = FRAME_BODY;
+                        if (frameLength == 1)
+                            endBundleFrame();
+                    }
+                    case FRAME_BODY -> {
+                        int n = Math.min(in.remaining(), frameLength - 1 - bodyLength);
+                        if (bodyLength + n > body.length)
+                            body = Arrays.copyOf(body, Math.min(frameLength - 1, Math.max(body.length * 2, bodyLength + n)));
+                        in.get(body, bodyLength, n);
+                        bodyLength += n;
+                        if (bodyLength == frameLength - 1)
+                            endBundleFrame();
+                    }
+                    case FRAME_SKIP -> {
+                        int n = Math.min(in.remaining(), skip);
+                        in.position(in.position() + n);
+                        skip -= n;
+                        if (skip == 0)
+                            state = TYPE;
+                    }
+                    default -> throw new IllegalStateException("Unknown connection state " + state);
+                }
+                if (state == TYPE && frameType == DTCPProtocol.CLOSE)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Handles the end of the connection: a bundle running until EOF is complete
+         */
+        private void endOfStream() {
+            if (state == PREAMBLE && headLength > 0)
+                startLegacy();//shorter than a preamble, let the codec reject it
+            switch (state) {
+                case UNTIL_EOF -> completed.add(new Encoded(codec, Arrays.copyOf(body, bodyLength)));
+                case TYPE -> logger.log(Level.INFO, "Session cut short by " + srcAddress);
+                case PREAMBLE -> logger.log(Level.FINE, "Connection from " + srcAddress + " closed without sending anything");
+                default -> logger.log(Level.WARNING, "Connection closed in the middle of a message, Bundle Dropped: " + srcAddress);
+            }
+        }
+
+        /**
+         * Switches to reading a legacy bundle, which starts with the bytes taken for a preamble so far
+         */
+        private void startLegacy() {
+            codec = DTCPProtocol.legacyCodec(head[0] & 0xff);
+            startBody(INITIAL_BODY_SIZE);
+            System.arraycopy(head, 0, body, 0, headLength);
+            bodyLength = headLength;
+            headLength = 0;
+            state = UNTIL_EOF;
+        }
+
+        /**
+         * Starts receiving a bundle
+         * @param size first allocation for it
+         */
+        private void startBody(int size) {
+            body = new byte[size];
+            bodyLength = 0;
+        }
+
+        /**
+         * Starts a frame once its length is in
+         * @throws ProtocolException if the frame is too long
+         */
+        private void startFrame() throws ProtocolException {
+            frameLength = ((head[0] & 0xff) << 24) | ((head[1] & 0xff) << 16) | ((head[2] & 0xff) << 8) | (head[3] & 0xff);
+            headLength = 0;
+            if (frameLength < 0)
+                throw new ProtocolException("Frame of " + Integer.toUnsignedString(frameLength) + " bytes is too long");
+            if (frameLength > convParams.maxBundleSize)//+1 for the codec id, but close enough
+                throw new ProtocolException("Frame of " + frameLength + " bytes is over the " + convParams.maxBundleSize + " bytes limit");
+            if (frameType == DTCPProtocol.BUNDLE) {
+                if (frameLength == 0)
+                    throw new ProtocolException("Empty BUNDLE frame");
+                state = FRAME_CODEC;
+                return;
+            }
+            if (frameType != DTCPProtocol.KEEPALIVE && frameType != DTCPProtocol.CLOSE)
+                logger.log(Level.FINE, "Skipping DTCP frame of unknown type " + frameType);
+            skip = frameLength;
+            state = skip == 0 ? TYPE : FRAME_SKIP;
+        }
+
+        /**
+         * Hands the bundle of a BUNDLE frame on, and waits for the next frame
+         */
+        private void endBundleFrame() {
+            completed.add(new Encoded(codec, body));
+            body = null;
+            state = TYPE;
+        }
+
+        /**
+         * Answers a HELLO once all of it is in
+         * @throws IOException if the answer cannot be written
+         */
+        private void answerHello() throws IOException {
+            Codec chosen = DTCPProtocol.readHello(new DataInputStream(new ByteArrayInputStream(head, 0, headLength)),
+                    DTCPProtocol.OFFERED);
+            ByteArrayOutputStream answer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(answer);
+            DTCPProtocol.writePreamble(out, version);
+            DTCPProtocol.writeSelect(out, chosen);
+            logger.log(Level.FINE, "Selected codec " + chosen.name() + " for " + srcAddress);
+            write(answer.toByteArray());
+            headLength = 0;
+            state = TYPE;
+        }
+
+        /**
+         * Writes to the connection, leaving what does not fit right now for when the connection is writable
+         * @param bytes what to write
+         * @throws IOException if the connection fails
+         */
+        private void write(byte[] bytes) throws IOException {
+            if (pending != null) {
+                ByteBuffer joined = ByteBuffer.allocate(pending.remaining() + bytes.length);
+                joined.put(pending).put(bytes).flip();
+                pending = joined;
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                pending = buffer;
+                updateInterest();
+            }
+        }
+
+        /**
+         * Writes what was left over once the connection is writable
+         * @throws IOException if the connection fails
+         */
+        void flushPending() throws IOException {
+            if (pending != null)
+                channel.write(pending);
+            if (pending == null || !pending.hasRemaining()) {
+                pending = null;
+                updateInterest();
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package DTCP;
+
+import BPv7.interfaces.Codec;
+import BPv7.utils.CBOREncoder;
+import BPv7.utils.CodecRegistry;
+import Configs.ConvergenceLayerParams;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.List;
+
+/**
+ * Wire-format negotiation and session framing spoken on DTCP connections.
+ * <p>
+ * A connection either starts with the preamble ("DTCP" then a version byte), or is a legacy connection: the bundle
+ * in its legacy encoding until EOF (what nodes sent before negotiation existed). Legacy bundles start with '{' (JSON)
+ * or 0x9f (CBOR), so they can never be mistaken for the preamble. Both sides then speak the lower of the two versions.
+ * <p>
+ * Setting up a connection (any version):
+ * <ul>
+ *     <li>HELLO: count byte, then that many codec ids (best first). Answered by a preamble and SELECT,
+ *          after which the sender sends DATA, or frames, on the same connection</li>
+ *     <li>SELECT: id of the codec the receiver chose</li>
+ *     <li>DATA: codec id, then the encoded bundle until EOF. Sent straight after the preamble
+ *          once the sender already knows which codec the receiver picked</li>
+ * </ul>
+ * From version 2 on, a connection can instead carry a session: any number of frames, each a type byte, a length
+ * (4 bytes, unsigned, at most 2^31 - 1) and that many bytes of body, until a CLOSE frame or EOF. Bundles are sent
+ * back to back without waiting for the receiver. Frames of unknown types are skipped, so later versions can add some.
+ * <ul>
+ *     <li>BUNDLE: codec id, then the encoded bundle</li>
+ *     <li>KEEPALIVE: empty, keeps an idle session from timing out</li>
+ *     <li>CLOSE: empty, the sender is done with the session (EOF without it means the session was cut short)</li>
+ * </ul>
+ */
+final class DTCPProtocol {
+    /** First bytes of every non-legacy connection */
+    private static final byte[] MAGIC = {'D', 'T', 'C', 'P'};
+    /** Length of the preamble (MAGIC then the version byte) */
+    static final int PREAMBLE_LENGTH = MAGIC.length + 1;
+    /** Version of this protocol */
+    static final int VERSION = 2;
+    /** First version with sessions (frames) */
+    static final int SESSION_VERSION = 2;
+    /** Message types */
+    static final int HELLO = 1, SELECT = 2, DATA = 3;
+    /** Frame types */
+    static final int BUNDLE = 4, KEEPALIVE = 5, CLOSE = 6;
+    /**
+     * Longest we wait for a SELECT. Legacy peers never answer a HELLO (they read until EOF),
+     * so this bounds how long the first send to such a peer stalls
+     */
+    static final int NEGOTIATION_TIMEOUT_MS = 2000;
+    /** Codecs this node offers (from the config), best first */
+    static final List<Codec> OFFERED = ConvergenceLayerParams.getInstance().codecs.stream()
+            .map(CodecRegistry.getInstance()::get).toList();
+
+    /** Hiding default constructor, static helpers only */
+    private DTCPProtocol() {}
+
+    /**
+     * Writes the preamble
+     * @param out stream to write to
+     * @param version version to announce (ours, or a lower one the peer is known to speak)
+     * @throws IOException if the stream throws
+     */
+    static void writePreamble(DataOutputStream out, int version) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(version);
+    }
+
+    /**
+     * Reads the preamble if there is one, leaving legacy connections untouched
+     * @param in stream to read from (must support mark/reset)
+     * @return the version both sides speak (the lower of the peer's and ours), or 0 if this is a legacy connection
+     * @throws IOException if the stream throws, or if the preamble is malformed
+     */
+    static int readPreamble(BufferedInputStream in) throws IOException {
+        in.mark(PREAMBLE_LENGTH);
+        byte[] head = in.readNBytes(PREAMBLE_LENGTH);
+        int version = parsePreamble(head, head.length);
+        if (version <= 0) {
+            in.reset();
+            return 0;
+        }
+        return version;
+    }
+
+    /**
+     * Checks whether the first bytes of a connection are (the start of) a preamble
+     * @param head first bytes of the connection
+     * @param length how many bytes of head were received
+     * @return the version both sides speak if head holds a whole preamble, 0 if it could still become one
+     *  (connections shorter than a preamble are legacy ones), -1 if this is a legacy connection
+     * @throws ProtocolException if the preamble has an invalid version
+     */
+    static int parsePreamble(byte[] head, int length) throws ProtocolException {
+        for (int i = 0; i < Math.min(length, MAGIC.length); i++)
+            if (head[i] != MAGIC[i])
+                return -1;
+        if (length < PREAMBLE_LENGTH)
+            return 0;
+        int version = head[MAGIC.length] & 0xff;
+        if (version < 1)
+            throw new ProtocolException("Invalid DTCP version: " + version);
+        return Math.min(version, VERSION);
+    }
+
+    /**
+     * Works out how a legacy connection (no preamble) encodes its bundle, without consuming anything
+     * @param in stream to read from (must support mark/reset)
+     * @return CBOR codec if the bundle starts like a CBOR bundle, otherwise the legacy (JSON) codec
+     * @throws IOException if the stream throws
+     */
+    static Codec legacyCodec(BufferedInputStream in) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        return legacyCodec(first);
+    }
+
+    /**
+     * Works out how a legacy connection (no preamble) encodes its bundle
+     * @param first first byte of the connection
+     * @return CBOR codec if the bundle starts like a CBOR bundle, otherwise the legacy (JSON) codec
+     */
+    static Codec legacyCodec(int first) {
+        return first == CBOREncoder.INDEFINITE_ARRAY
+                ? CodecRegistry.getInstance().get(CodecRegistry.CBOR_ID) : CodecRegistry.getInstance().legacy();
+    }
+
+    /**
+     * Writes a HELLO offering the given codecs
+     * @param out stream to write to
+     * @param offered codecs to offer, best first
+     * @throws IOException if the stream throws
+     */
+    static void writeHello(DataOutputStream out, List<Codec> offered) throws IOException {
+        out.writeByte(HELLO);
+        out.writeByte(offered.size());
+        for (Codec codec : offered)
+            out.writeByte(codec.id());
+    }
+
+    /**
+     * Reads the body of a HELLO (type byte already read) and picks the first offered codec we also offer
+     * @param in stream to read from
+     * @param supported codecs we offer
+     * @return the chosen codec, or the legacy codec if there is nothing in common
+     * @throws IOException if the stream throws or ends early
+     */
+    static Codec readHello(DataInputStream in, List<Codec> supported) throws IOException {
+        int count = in.readUnsignedByte();
+        Codec chosen = null;
+        for (int i = 0; i < count; i++) {
+            Codec offered = CodecRegistry.getInstance().get(in.readUnsignedByte());
+            if (chosen == null && offered != null && supported.contains(offered))
+                chosen = offered;
+        }
+        return chosen == null ? CodecRegistry.getInstance().legacy() : chosen;
+    }
+
+    /**
+     * Writes a SELECT
+     * @param out stream to write to
+     * @param chosen chosen codec
+     * @throws IOException if the stream throws
+     */
+    static void writeSelect(DataOutputStream out, Codec chosen) throws IOException {
+        out.writeByte(SELECT);
+        out.writeByte(chosen.id());
+    }
+
+    /**
+     * Writes the header of a DATA message, the encoded bundle follows
+     * @param out stream to write to
+     * @param codec codec the bundle is encoded with
+     * @throws IOException if the stream throws
+     */
+    static void writeDataHeader(DataOutputStream out, Codec codec) throws IOException {
+        out.writeByte(DATA);
+        out.writeByte(codec.id());
+    }
+
+    /**
+     * Writes a BUNDLE frame
+     * @param out stream to write to
+     * @param codec codec the bundle is encoded with
+     * @param bundleAsBytes encoded bundle
+     * @throws IOException if the stream throws
+     */
+    static void writeBundleFrame(DataOutputStream out, Codec codec, byte[] bundleAsBytes) throws IOException {
+        out.writeByte(BUNDLE);
+        out.writeInt(bundleAsBytes.length + 1);
+        out.writeByte(codec.id());
+        out.write(bundleAsBytes);
+    }
+
+    /**
+     * Writes a frame without a body (KEEPALIVE, CLOSE)
+     * @param out stream to write to
+     * @param type frame type
+     * @throws IOException if the stream throws
+     */
+    static void writeEmptyFrame(DataOutputStream out, int type) throws IOException {
+        out.writeByte(type);
+        out.writeInt(0);
+    }
+
+    /**
+     * Reads the length of a frame (type already read)
+     * @param in stream to read from
+     * @return length of the frame body
+     * @throws IOException if the stream throws, ends early, or the length is over 2^31 - 1
+     */
+    static int readFrameLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new ProtocolException("Frame of " + Integer.toUnsignedString(length) + " bytes is too long");
+        return length;
+    }
+
+    /**
+     * Reads a message type
+     * @param in stream to read from
+     * @return the message type
+     * @throws IOException if the stream throws or ends early
+     */
+    static int readType(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1)
+            throw new EOFException("Connection closed before the DTCP message type");
+        return type;
+    }
+
+    /**
+     * Reads a message type and checks it
+     * @param in stream to read from
+     * @param expected expected message type
+     * @throws IOException if the stream throws, ends early, or the type is not the expected one
+     */
+    static void expectType(DataInputStream in, int expected) throws IOException {
+        int type = readType(in);
+        if (type != expected)
+            throw new ProtocolException("Unexpected DTCP message type " + type + ", expected " + expected);
+    }
+
+    /**
+     * Reads a codec id and looks it up
+     * @param in stream to read from
+     * @return the codec
+     * @throws IOException if the stream throws, ends early, or the codec is unknown
+     */
+    static Codec readCodec(DataInputStream in) throws IOException {
+        return codec(in.readUnsignedByte());
+    }
+
+    /**
+     * Looks up a codec id received from a peer
+     * @param id the codec id
+     * @return the codec
+     * @throws ProtocolException if the codec is unknown
+     */
+    static Codec codec(int id) throws ProtocolException {
+        Codec codec = CodecRegistry.getInstance().get(id);
+        if (codec == null)
+            throw new ProtocolException("Unknown codec id: " + id);
+        return codec;
+    }
+}
@@ -1,6 +1,7 @@
 package DTCP;
 
 import BPv7.containers.Bundle;
+import BPv7.utils.VirtualThreads;
 import Configs.ConvergenceLayerParams;
 import Configs.SimulationParams;
 
@@ -9,7 +10,6 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,12 +36,19 @@ class DTCPServer implements Runnable {
      */
     private final BlockingQueue<Bundle> outQueue;
 
+    /**
+     * The DTCP instance this server receives for (for relaying bundles as they arrive)
+     */
+    private final DTCP dtcp;
+
     /**
      * Constuctor for the DTCP Server
      * @param outQueue the queue for sending Bundles to the BPA layer
+     * @param dtcp the DTCP instance this server receives for
      */
-    public DTCPServer(BlockingQueue<Bundle> outQueue) {
+    public DTCPServer(BlockingQueue<Bundle> outQueue, DTCP dtcp) {
         this.outQueue = outQueue;
+        this.dtcp = dtcp;
         //Add Anything Needed Later
     }
 
@@ -53,7 +60,8 @@ class DTCPServer implements Runnable {
         //noinspection RedundantSuppression
         try {//try-with-resources doesn't work on ExecutorService thread pools
             //noinspection resource
-            threadPool = Executors.newFixedThreadPool(convParams.nThreads);
+            //a virtual thread per connection (a stalled peer only parks its own), otherwise nThreads platform threads
+            threadPool = VirtualThreads.newExecutor("DTCP-handler", convParams.virtualThreads, convParams.nThreads);
             try (ServerSocket serverSocket = new ServerSocket(simParams.scenario.dtcpPort(), convParams.maxConnections)) {
                 logger.log(Level.INFO, "DTCP Server Started");
 
@@ -64,7 +72,7 @@ class DTCPServer implements Runnable {
                         client = serverSocket.accept();
                         logger.info("Connected to client! " + client.getRemoteSocketAddress().toString());
                         client.setSoTimeout(convParams.connectionTimeout);
-                        threadPool.execute(new ClientHandler(client, outQueue));
+                        threadPool.execute(new ClientHandler(client, outQueue, dtcp));
                     } catch (IOException e) {
                         logger.log(Level.WARNING, "Failed to accept client in DTCP: " + e.getMessage());
                     } catch (Exception e) {
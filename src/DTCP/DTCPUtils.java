@@ -2,10 +2,11 @@ package DTCP;
 
 import Configs.ConvergenceLayerParams;
 import Configs.SimulationParams;
+import DTCP.interfaces.Contact;
 
 import java.security.SecureRandom;
-import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +15,12 @@ import java.util.logging.Logger;
  */
 class DTCPUtils {
 
+    /**
+     * Logger for this class. Prepends all logs from this class with the class name
+     * Might not be needed, but better to be safe than sorry
+     */
+     static final Logger logger = Logger.getLogger(DTCPUtils.class.getName());
+
     /**
      * The instance of the ConvergenceLayerParams Class
      */
@@ -26,31 +33,80 @@ class DTCPUtils {
 
 
     /**
-     * The latest timeFrame where a down check occured. Basically the last timeframe where the connectionDownTimeFrame
-     * was updated
+     * Down checks of every configured peer for one time frame. Never modified once published, so it can be read
+     * without locking
+     * @param timeFrame the time frame they hold for
+     * @param expectedDown whether the connection to each peer (by index in peerIndex) is expected to be down
+     * @param unexpectedDown whether bundles from each peer (by index in peerIndex) should be dropped
      */
-    private static Long lastTimeFrame = 0L;
+    private record LinkStates(long timeFrame, boolean[] expectedDown, boolean[] unexpectedDown) {}
 
     /**
-     * A lock for messing with timeFrame stuff, since could be happening by several threads
+     * This node's address as a long
      */
-    private static final Object timeFrameLock = new Object();
+    private static final long thisAddress = addressToLong(convParams.thisAddress);
 
     /**
-     * The map of the current connectionDownTimeFrame values. To make sure that things aren't calculated more than once
-     * and to speed up some calculations (hopefully)
+     * Index of every configured peer address in the LinkStates arrays
      */
-    private static Map<Long, Double> connectionDownTimeFrame = new HashMap<>();
+    private static final Map<String, Integer> peerIndex = new HashMap<>();
 
+    /**
+     * Address of every configured peer as a long, by index in the LinkStates arrays
+     */
+    private static final long[] peerAddresses;
+
+    static {
+        List<Long> addresses = new ArrayList<>();
+        List<String> configured = new ArrayList<>(convParams.idToAddressRoutingMap.values());
+        configured.addAll(convParams.nodeAddresses.values());
+        for (String address : configured) {
+            if (address == null || peerIndex.containsKey(address))
+                continue;//known node without a route
+            try {
+                addresses.add(addressToLong(address));
+                peerIndex.put(address, addresses.size() - 1);
+            } catch (NumberFormatException e) {
+                logger.warning("Not an IPv4 address, down checks for it cannot be precomputed: " + address);
+            }
+        }
+        peerAddresses = addresses.stream().mapToLong(Long::longValue).toArray();
+    }
 
     /**
-     * Logger for this class. Prepends all logs from this class with the class name
-     * Might not be needed, but better to be safe than sorry
+     * Down checks of the latest time frame. Replaced by whichever thread first finds it stale; two threads doing so
+     * at once compute the same values, so either one can win
      */
-     static final Logger logger = Logger.getLogger(DTCPUtils.class.getName());
+    private static volatile LinkStates linkStates = null;
+
 
      private static final Random rand = new Random(0);
 
+    /** Multiplier of the linear congruential generator of java.util.Random (see getConnectionValue) */
+    private static final long RANDOM_MULTIPLIER = 0x5DEECE66DL;
+    /** Addend of the linear congruential generator of java.util.Random */
+    private static final long RANDOM_ADDEND = 0xBL;
+    /** The generator of java.util.Random keeps 48 bits of state */
+    private static final long RANDOM_MASK = (1L << 48) - 1;
+
+    /** Time frames of expected downs findContact computes at once for a connection (see FrameStates) */
+    private static final int CACHED_FRAMES = 256;
+
+    /**
+     * Expected downs of one connection for consecutive time frames, so that predicting contacts (done for every lane
+     * and route planned) does not check the same time frames again every time it walks over them. Never modified once
+     * published, so it can be read without locking
+     * @param firstFrame the first time frame held
+     * @param down whether the connection is expected to be down, by time frame from firstFrame
+     */
+    private record FrameStates(long firstFrame, boolean[] down) {}
+
+    /**
+     * Expected downs cached for findContact, by connection ID (see isDownExpected; the checks of a time frame only
+     * depend on it). Replaced by whichever thread first needs time frames outside of them
+     */
+    private static final Map<Long, FrameStates> frameStates = new ConcurrentHashMap<>();
+
     /**
      * Gets the current timeframe, aka the number of milliseconds between occurrences and length of
      * an expected and unexpected down (multiple can occur back to back), and how often a connection
@@ -60,41 +116,100 @@ class DTCPUtils {
      * @return Get the current rounded time frame for the current connection
      */
     private static long getCurrentTimeFrame() {
-        Instant now = Instant.now();
-        return now.toEpochMilli() / simParams.scenario.milliPerDownPeriod();
+        return System.currentTimeMillis() / simParams.scenario.milliPerDownPeriod();
+    }
+
+
+    /**
+     * Predicts the next window during which the connection to the destination address is not expected to be down.
+     * Expected downs are known in advance for every time frame, so this is the contact plan of the connection
+     * @param destAddress the address of the next hop
+     * @param from earliest start of the window (ms since epoch)
+     * @param until how far ahead to look (ms since epoch)
+     * @return the window (its end capped at until), or null if the connection is expected to be down from "from"
+     *  until "until"
+     */
+    static Contact findContact(String destAddress, long from, long until) {
+        return findContact(convParams.thisAddress, destAddress, from, until);
+    }
+
+    /**
+     * Predicts the next window during which the connection between two nodes is not expected to be down. Both ends
+     * of a connection compute the same expected downs, so this works for connections this node is not part of too
+     * @param nodeAddress the address of one end
+     * @param peerAddress the address of the other end
+     * @param from earliest start of the window (ms since epoch)
+     * @param until how far ahead to look (ms since epoch)
+     * @return the window (its end capped at until), or null if the connection is expected to be down from "from"
+     *  until "until"
+     */
+    static Contact findContact(String nodeAddress, String peerAddress, long from, long until) {
+        long nodeAddr = toLong(nodeAddress), peerAddr = toLong(peerAddress);
+        long period = simParams.scenario.milliPerDownPeriod();
+        if (simParams.scenario.expectedDownProbability() <= 0 || nodeAddr == peerAddr)//never down, no need to walk
+            return new Contact(from, until, convParams.linkRate == 0 ? Long.MAX_VALUE : (until - from) * convParams.linkRate / 1000);
+        long connectionID = expectedDownConnectionID(nodeAddr, peerAddr);
+        long timeFrame = from / period;
+        while (isDownExpectedCached(connectionID, timeFrame)) {
+            timeFrame++;
+            if (timeFrame * period >= until)
+                return null;
+        }
+        long start = Math.max(from, timeFrame * period);
+        do {
+            timeFrame++;
+        } while (timeFrame * period < until && !isDownExpectedCached(connectionID, timeFrame));
+        long end = Math.min(until, timeFrame * period);
+        long capacity = convParams.linkRate == 0 ? Long.MAX_VALUE : (end - start) * convParams.linkRate / 1000;
+        return new Contact(start, end, capacity);
     }
 
+    /**
+     * Gets the down checks of the current time frame, computing them for every configured peer if they are stale
+     * @param timeFrame the current time frame
+     * @return the down checks
+     */
+    private static LinkStates getLinkStates(long timeFrame) {
+        LinkStates states = linkStates;
+        if (states != null && states.timeFrame() == timeFrame)
+            return states;
+
+        boolean[] expectedDown = new boolean[peerAddresses.length];
+        boolean[] unexpectedDown = new boolean[peerAddresses.length];
+        for (int i = 0; i < peerAddresses.length; i++) {
+            expectedDown[i] = isDownExpected(thisAddress, peerAddresses[i], timeFrame);
+            unexpectedDown[i] = isDownUnexpected(peerAddresses[i], timeFrame);
+        }
+        states = new LinkStates(timeFrame, expectedDown, unexpectedDown);
+        linkStates = states;
+        return states;
+    }
 
     /**
      * Gets the corresponding value of the time frame up/down check for a particular connection
-     * from the latest time frame
      * @param connectionID the connection ID to calculate this for (used in seeding along with timeframe)
-     * @return the double representing where on [0,1) the current time frame check landed on
+     * @param timeFrame the time frame to calculate this for
+     * @return the double representing where on [0,1) the time frame check landed on
      */
-    private static double getConnectionValue(long connectionID) {
-        long timeFrame = getCurrentTimeFrame();
-        double result;
-        synchronized (timeFrameLock) {
-            if (lastTimeFrame == timeFrame && connectionDownTimeFrame.containsKey(connectionID)) {
-                result = connectionDownTimeFrame.get(connectionID);
-            }
-            else {
-                if (lastTimeFrame < timeFrame) {
-                    lastTimeFrame = timeFrame;
-                    connectionDownTimeFrame = new HashMap<>();
-                }
-                // result is the double representing where on [0,1) the current time frame check landed on
-//                result = (new Random(connectionID ^ timeFrame)).nextDouble();
-                //THIS NEEDS TO BE EXACTLY KNOWN ON BOTH SIDES OF THE CONNECTION (symmetric expected donws)
-                Random rand = new Random(connectionID + timeFrame);
-                result = rand.nextDouble();
-                for(int i=0; i<timeFrame%16; i++)
-                    result = rand.nextDouble();
-
-                connectionDownTimeFrame.put(connectionID, result);
-                logger.log(Level.INFO, "New Connection Check For Connection Id: " + connectionID + ", Value: " + result);
-            }
+    private static double getConnectionValue(long connectionID, long timeFrame) {
+        // result is the double representing where on [0,1) the current time frame check landed on
+//        result = (new Random(connectionID ^ timeFrame)).nextDouble();
+        //THIS NEEDS TO BE EXACTLY KNOWN ON BOTH SIDES OF THE CONNECTION (symmetric expected donws)
+        // the (timeFrame%16 + 1)th nextDouble of new Random(connectionID + timeFrame), stepping the generator
+        // java.util.Random specifies here instead of allocating one per check
+        long seed = ((connectionID + timeFrame) ^ RANDOM_MULTIPLIER) & RANDOM_MASK;
+        double result = 0;
+        for (long i = 0; i <= timeFrame % 16; i++) {
+            seed = (seed * RANDOM_MULTIPLIER + RANDOM_ADDEND) & RANDOM_MASK;
+            long high = seed >>> (48 - 26);
+            seed = (seed * RANDOM_MULTIPLIER + RANDOM_ADDEND) & RANDOM_MASK;
+            long low = seed >>> (48 - 27);
+            result = ((high << 27) + low) * 0x1.0p-53;
         }
+
+        Level level = timeFrame == getCurrentTimeFrame() ? Level.INFO : Level.FINE;//predictions are not new checks
+        if (logger.isLoggable(level))
+            logger.log(level, "New Connection Check For Connection Id: " + connectionID + ", Value: " + result);
         return result;
     }
 
@@ -103,31 +218,89 @@ class DTCPUtils {
      * @param destAddress the address of the next hop
      * @return true if the connection is expected to be down, otherwise false
      */
-    @SuppressWarnings("DuplicatedCode")
     public static boolean isConnectionDownExpected(String destAddress) {
-        long firstAddr = addressToLong(convParams.thisAddress);
-        long secondAddr = addressToLong(destAddress);
-        if (secondAddr == firstAddr)
+        long timeFrame = getCurrentTimeFrame();
+        Integer peer = peerIndex.get(destAddress);
+        if (peer != null)
+            return getLinkStates(timeFrame).expectedDown()[peer];
+        return isDownExpected(thisAddress, addressToLong(destAddress), timeFrame);//not configured, not precomputed
+    }
+
+    /**
+     * Get if the bundles on a specific connection should be dropped or not (unexpected down)
+     * @param srcAddress the address of the previous hop
+     * @return true if the bundle should be dropped
+     */
+    public static boolean isConnectionDownUnexpected(String srcAddress) {
+        long timeFrame = getCurrentTimeFrame();
+        Integer peer = peerIndex.get(srcAddress);
+        if (peer != null)
+            return getLinkStates(timeFrame).unexpectedDown()[peer];
+        return isDownUnexpected(addressToLong(srcAddress), timeFrame);//not configured, not precomputed
+    }
+
+    /**
+     * Computes if the connection between two nodes is expected to be down during a time frame
+     * @param nodeAddress the address of one end as a long (this node's, unless predicting for other nodes)
+     * @param peerAddress the address of the other end as a long
+     * @param timeFrame the time frame
+     * @return true if the connection is expected to be down, otherwise false
+     */
+    private static boolean isDownExpected(long nodeAddress, long peerAddress, long timeFrame) {
+        if (nodeAddress == peerAddress)
             return false;
+        return getConnectionValue(expectedDownConnectionID(nodeAddress, peerAddress), timeFrame)
+                < simParams.scenario.expectedDownProbability();
+    }
+
+    /**
+     * Gets the ID the expected down checks of a connection are seeded with, the same from both ends
+     * @param nodeAddress the address of one end as a long
+     * @param peerAddress the address of the other end as a long (not the same)
+     * @return the connection ID
+     */
+    @SuppressWarnings("DuplicatedCode")
+    private static long expectedDownConnectionID(long nodeAddress, long peerAddress) {
+        long firstAddr = nodeAddress;
+        long secondAddr = peerAddress;
         if (firstAddr > secondAddr) {
             // This swaps without another variable, and is potentially faster
             firstAddr ^= secondAddr;
             secondAddr ^= firstAddr;
             firstAddr ^= secondAddr;
         }
-        long connectionID = (secondAddr << 16 + firstAddr);
-        return getConnectionValue(connectionID) < simParams.scenario.expectedDownProbability();
+        return (secondAddr << 16 + firstAddr);
     }
 
     /**
-     * Get if the bundles on a specific connection should be dropped or not (unexpected down)
-     * @param srcAddress the address of the previous hop
+     * Computes if a connection is expected to be down during a time frame like isDownExpected, from the cached
+     * expected downs of the connection (computing the CACHED_FRAMES time frames from this one if it is not cached)
+     * @param connectionID the connection ID (see expectedDownConnectionID)
+     * @param timeFrame the time frame
+     * @return true if the connection is expected to be down, otherwise false
+     */
+    private static boolean isDownExpectedCached(long connectionID, long timeFrame) {
+        FrameStates states = frameStates.get(connectionID);
+        if (states == null || timeFrame < states.firstFrame() || timeFrame - states.firstFrame() >= states.down().length) {
+            boolean[] down = new boolean[CACHED_FRAMES];
+            for (int i = 0; i < CACHED_FRAMES; i++)
+                down[i] = getConnectionValue(connectionID, timeFrame + i) < simParams.scenario.expectedDownProbability();
+            states = new FrameStates(timeFrame, down);
+            frameStates.put(connectionID, states);
+        }
+        return states.down()[(int) (timeFrame - states.firstFrame())];
+    }
+
+    /**
+     * Computes if the bundles from a peer should be dropped during a time frame (unexpected down)
+     * @param peerAddress the address of the peer as a long
+     * @param timeFrame the time frame
      * @return true if the bundle should be dropped
      */
     @SuppressWarnings("DuplicatedCode")
-    public static boolean isConnectionDownUnexpected(String srcAddress) {
-        long firstAddr = addressToLong(convParams.thisAddress);
-        long secondAddr = addressToLong(srcAddress);
+    private static boolean isDownUnexpected(long peerAddress, long timeFrame) {
+        long firstAddr = thisAddress;
+        long secondAddr = peerAddress;
         if (secondAddr == firstAddr)
             return false;
         if (firstAddr < secondAddr) {
@@ -136,7 +309,19 @@ class DTCPUtils {
             firstAddr ^= secondAddr;
         }
         long connectionID = (secondAddr << 16 + firstAddr);
-        return getConnectionValue(connectionID) < simParams.scenario.unexpectedDownProbability();
+        return getConnectionValue(connectionID, timeFrame) < simParams.scenario.unexpectedDownProbability();
+    }
+
+    /**
+     * Converts an address to a long, without parsing it again if it is this node's or a configured peer's
+     * @param address the IP address to convert
+     * @return the long version of the ip address
+     */
+    private static long toLong(String address) {
+        if (address.equals(convParams.thisAddress))
+            return thisAddress;
+        Integer peer = peerIndex.get(address);
+        return peer != null ? peerAddresses[peer] : addressToLong(address);
     }
 
     /**
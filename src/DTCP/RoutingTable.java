@@ -0,0 +1,174 @@
+package DTCP;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Routing table from node IDs to next hop addresses (ConvergenceLayerParams.idToAddressRoutingMap), with exact routes
+ * ("dtn://b/"), prefix routes ending in a wildcard ("dtn://region-a/*", every node ID starting with "dtn://region-a/")
+ * and a default route ("*"). A node ID uses its exact route if there is one, otherwise its longest matching prefix route.
+ * <p>
+ * Routes are kept in a radix tree (a trie whose single-child chains are merged into one node), so a lookup looks at
+ * every character of the node ID at most once, however many routes there are. Never modified once built, so it can be
+ * read without locking.
+ */
+class RoutingTable {
+    /** Logger for this class. Prepends all logs from this class with the class name */
+    private static final Logger logger = Logger.getLogger(RoutingTable.class.getName());
+
+    /** Ends a prefix route, alone it is the default route */
+    static final char WILDCARD = '*';
+
+    /**
+     * A route
+     * @param nextHop address of the next hop, null if the node IDs it matches exist but have no known route
+     */
+    private record Route(String nextHop) {}
+
+    /**
+     * A node of the radix tree: the node IDs (or prefixes) spelled by the labels from the root down to it
+     */
+    private static class Node {
+        /** Characters this node adds to its parent's (changes when the node is split while building) */
+        String label;
+        /** First character of the label of every child, sorted */
+        char[] firsts = new char[0];
+        /** Children, in the order of firsts */
+        Node[] children = new Node[0];
+        /** Route of the node ID this node spells, null if none */
+        Route exact = null;
+        /** Route of the node IDs starting with what this node spells, null if none */
+        Route prefix = null;
+
+        /**
+         * Creates a node without routes or children
+         * @param label characters it adds to its parent's
+         */
+        Node(String label) { this.label = label; }
+
+        /**
+         * @param c a character
+         * @return the child whose label starts with it, null if none
+         */
+        Node child(char c) {
+            int i = Arrays.binarySearch(firsts, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+
+    /** Root of the radix tree, spells the empty string (so its prefix route is the default route) */
+    private final Node root = new Node("");
+
+    /**
+     * Builds the routing table
+     * @param routes next hop address by node ID, or by node ID prefix ending in WILDCARD
+     */
+    RoutingTable(Map<String, String> routes) {
+        int prefixes = 0;
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            String pattern = route.getKey();
+            boolean isPrefix = !pattern.isEmpty() && pattern.charAt(pattern.length() - 1) == WILDCARD;
+            Node node = insert(isPrefix ? pattern.substring(0, pattern.length() - 1) : pattern);
+            if (isPrefix) {
+                node.prefix = new Route(route.getValue());
+                prefixes++;
+            } else {
+                node.exact = new Route(route.getValue());
+            }
+        }
+        logger.info("Built routing table: " + routes.size() + " routes, " + prefixes + " of them prefix routes"
+                + (root.prefix != null ? " (with a default route)" : ""));
+    }
+
+    /**
+     * @param nodeID ID of a node
+     * @return true if some route matches it (even one without a next hop)
+     */
+    boolean knows(String nodeID) { return find(nodeID) != null; }
+
+    /**
+     * @param nodeID ID of a node
+     * @return address of its next hop, null if no route matches it or the one that does has no next hop
+     */
+    String nextHop(String nodeID) {
+        Route route = find(nodeID);
+        return route == null ? null : route.nextHop();
+    }
+
+    /**
+     * Finds the route of a node ID: its exact route, otherwise its longest matching prefix route
+     * @param nodeID ID of a node
+     * @return the route, null if none matches
+     */
+    private Route find(String nodeID) {
+        Node node = root;
+        Route best = root.prefix;
+        int pos = 0;
+        while (pos < nodeID.length()) {
+            Node child = node.child(nodeID.charAt(pos));
+            if (child == null || !nodeID.startsWith(child.label, pos))
+                return best;
+            node = child;
+            pos += child.label.length();
+            if (node.prefix != null)
+                best = node.prefix;
+        }
+        return node.exact != null ? node.exact : best;
+    }
+
+    /**
+     * Finds the node spelling a key, adding it (and splitting the node whose label it ends within) if needed
+     * @param key the key
+     * @return the node
+     */
+    private Node insert(String key) {
+        Node node = root;
+        int pos = 0;
+        while (pos < key.length()) {
+            char c = key.charAt(pos);
+            int i = Arrays.binarySearch(node.firsts, c);
+            if (i < 0) {//no child starts with it: the rest of the key is a new leaf
+                Node leaf = new Node(key.substring(pos));
+                addChild(node, -i - 1, leaf);
+                return leaf;
+            }
+            Node child = node.children[i];
+            int common = 1;//the first character is known to match
+            while (common < child.label.length() && pos + common < key.length()
+                    && child.label.charAt(common) == key.charAt(pos + common))
+                common++;
+            if (common < child.label.length()) {//the key leaves (or ends within) the label: split it there
+                Node split = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                split.firsts = new char[] {child.label.charAt(0)};
+                split.children = new Node[] {child};
+                node.children[i] = split;
+                child = split;
+            }
+            node = child;
+            pos += common;
+        }
+        return node;
+    }
+
+    /**
+     * Adds a child to a node, keeping the children sorted
+     * @param node the node
+     * @param at where the child goes in the children
+     * @param child the child
+     */
+    private static void addChild(Node node, int at, Node child) {
+        int n = node.firsts.length;
+        char[] firsts = new char[n + 1];
+        Node[] children = new Node[n + 1];
+        System.arraycopy(node.firsts, 0, firsts, 0, at);
+        System.arraycopy(node.children, 0, children, 0, at);
+        firsts[at] = child.label.charAt(0);
+        children[at] = child;
+        System.arraycopy(node.firsts, at, firsts, at + 1, n - at);
+        System.arraycopy(node.children, at, children, at + 1, n - at);
+        node.firsts = firsts;
+        node.children = children;
+    }
+}
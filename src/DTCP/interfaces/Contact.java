@@ -0,0 +1,9 @@
+package DTCP.interfaces;
+
+/**
+ * A window during which a next hop can be reached (no expected down), from the contact plan
+ * @param start when it starts (ms since epoch)
+ * @param end when it ends (ms since epoch)
+ * @param capacity how many bytes can be sent during it (estimate, Long.MAX_VALUE if the link rate is unknown)
+ */
+public record Contact(long start, long end, long capacity) {}
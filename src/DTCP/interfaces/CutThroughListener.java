@@ -0,0 +1,22 @@
+package DTCP.interfaces;
+
+import BPv7.containers.Bundle;
+
+/**
+ * Lets the BPA decide which bundles DTCP may relay while they are still arriving (cut-through),
+ * and tells it about the ones that were relayed that way (they never reach DTCP.recv())
+ */
+public interface CutThroughListener {
+    /**
+     * Called as soon as the primary block of an inbound bundle is decoded, before the rest of it arrives
+     * @param header the bundle, only its primary block is available
+     * @return true if the bundle may be relayed to its next hop as it arrives (DTCP still checks the link itself)
+     */
+    boolean mayCutThrough(Bundle header);
+
+    /**
+     * Called once a bundle was relayed in full. Bundles that could not be relayed are received as usual instead.
+     * @param bundle the relayed bundle
+     */
+    void cutThroughSent(Bundle bundle);
+}
@@ -3,6 +3,8 @@ package DTCP.interfaces;
 import BPv7.containers.Bundle;
 import BPv7.containers.NodeID;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Interface defining any interaction between the BPA (or any class using DTCP) and DTCP
  * Any required functions should be added as needed.
@@ -15,6 +17,29 @@ public interface DTCPInterface {
      */
     boolean send(Bundle toBeSent);
 
+    /**
+     * Sends bundle to a given next hop (picked with nodeToNetwork), rather than to the next hop it would be routed to now
+     * @param toBeSent bundle to be sent
+     * @param nextHop networkId of the next hop
+     * @return true if successful, else false
+     */
+    boolean send(Bundle toBeSent, String nextHop);
+
+    /**
+     * Sends bundle to bundle node without waiting for the connection or the write
+     * @param toBeSent bundle to be sent
+     * @return completes with true if successful, else false (never exceptionally for network failures)
+     */
+    CompletableFuture<Boolean> sendAsync(Bundle toBeSent);
+
+    /**
+     * Sends bundle to a given next hop without waiting for the connection or the write
+     * @param toBeSent bundle to be sent
+     * @param nextHop networkId of the next hop (picked with nodeToNetwork)
+     * @return completes with true if successful, else false (never exceptionally for network failures)
+     */
+    CompletableFuture<Boolean> sendAsync(Bundle toBeSent, String nextHop);
+
     /**
      * The function for receiving from other nodes
      * @return the Bundle received
@@ -28,10 +53,42 @@ public interface DTCPInterface {
      */
     ReachableStatus canReach(NodeID ID);
 
+    /**
+     * Checks the network status of the link to a next hop only for PREDICTABLE disruptions
+     * @param nextHop networkId of the next hop (picked with nodeToNetwork)
+     * @return EXPECTED_DOWN or REACHABLE
+     */
+    ReachableStatus canReachHop(String nextHop);
+
+    /**
+     * Gets the next contact with a next hop from the contact plan: the next window during which canReachHop(nextHop)
+     * will be REACHABLE
+     * @param nextHop networkId of the next hop (picked with nodeToNetwork)
+     * @param from earliest start of the contact (ms since epoch)
+     * @param until how far ahead to look (ms since epoch)
+     * @return the contact (its end capped at until), or null if there is none before until
+     */
+    Contact nextContact(String nextHop, long from, long until);
+
     /**
      * Find the networkID for the given node
      * @param ID node object
      * @return networkId of the node
      */
     String nodeToNetwork(NodeID ID);
+
+    /**
+     * Find the networkID of the best next hop towards the given node for a bundle that must arrive by a deadline
+     * @param ID node object
+     * @param deadline when the bundle must have arrived by (ms since epoch)
+     * @return networkId of the next hop, null if there is none
+     */
+    String nodeToNetwork(NodeID ID, long deadline);
+
+    /**
+     * Sets who decides which bundles may be relayed while they are still arriving (only used if
+     * cut-through is enabled in the convergence layer config)
+     * @param listener the decider, null to stop relaying bundles that way
+     */
+    void setCutThroughListener(CutThroughListener listener);
 }
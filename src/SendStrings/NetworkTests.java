@@ -1,11 +1,143 @@
 package SendStrings;
 
+import BPv7.containers.Bundle;
+import BPv7.containers.NodeID;
+import BPv7.containers.PayloadBlock;
+import BPv7.containers.PrimaryBlock;
+import BPv7.interfaces.Codec;
+import BPv7.utils.CodecRegistry;
+import BPv7.utils.VirtualThreads;
+import Configs.ConvergenceLayerParams;
+import Configs.SimulationParams;
+import DTCP.DTCP;
+import DTCP.interfaces.DTCPInterface;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.System.*;
+
 /**
- * todo: write authorship header
- * todo: write purpose of this class (network testing + stats)
+ * Network benchmarks, run on a single machine over loopback.
+ * <p>
+ * Measures how the real DTCP server (DTCPServer and its ClientHandlers, or DTCPNioServer) copes when thousands of
+ * peers connect at once and some of them stall halfway through their bundle. Peers send bare (legacy) CBOR bundles;
+ * the run ends once every complete bundle came out of DTCP.recv. The server is a singleton, so a run measures one mode:
+ * run it once per mode to compare them. Modes are the convergence layer configs CL_bench_&lt;mode&gt;:
+ * nio (the default server), blocking (a pool of nThreads platform threads) and virtual (a virtual thread per
+ * connection, ConvergenceLayerParams.virtualThreads; the same pool as blocking on JVMs without virtual threads).
+ * <p>
+ * Usage: java SendStrings.NetworkTests [mode (nio)] [connections (2000)] [stalled percent (5)]
+ * (each connection uses two file descriptors, raise ulimit -n accordingly)
  */
 public class NetworkTests {
-    public static void main(String[] args){
-        //todo
+    /** Payload size (bytes) of the bundles sent */
+    private static final int PAYLOAD_SIZE = 500;
+    /** How long (ms) to wait for the complete bundles before giving up on the run */
+    private static final long RUN_TIMEOUT_MS = 300_000;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "nio";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int stalledPercent = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Logger.getLogger("").setLevel(Level.OFF);//every bundle received is logged
+        //before the simulation parameters pick the config of their host (default simulation: scenario 0, no disruptions)
+        ConvergenceLayerParams.setConfigFile("CL_bench_" + mode);
+        ConvergenceLayerParams convParams = ConvergenceLayerParams.getInstance();
+        Codec cbor = CodecRegistry.getInstance().get(CodecRegistry.CBOR_ID);
+        Bundle bundle = new Bundle(new PrimaryBlock(new NodeID("localhost"), new NodeID("a"), 600_000),
+                new PayloadBlock(new byte[PAYLOAD_SIZE]), null);
+        byte[] encoded = cbor.encode(bundle);
+
+        out.println("mode=" + mode + " (serverMode=" + convParams.serverMode + ", virtualThreads="
+                + (convParams.virtualThreads && VirtualThreads.isSupported()) + ", nThreads=" + convParams.nThreads
+                + "), connections=" + connections + ", stalled=" + stalledPercent + "%, read timeout="
+                + convParams.connectionTimeout + "ms, bundle=" + encoded.length + " bytes");
+        if (convParams.virtualThreads && !VirtualThreads.isSupported())
+            out.println("Virtual threads are not available in this JVM (Java 21, or 19/20 with --enable-preview), "
+                    + "the server uses its pool of nThreads platform threads");
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        DTCPInterface dtcp = DTCP.getInstance();
+        awaitServer(SimulationParams.getInstance().scenario.dtcpPort());
+        threads.resetPeakThreadCount();
+
+        Random random = new Random(42);//same peers stall in every mode
+        boolean[] stalls = new boolean[connections];
+        int complete = 0;
+        int port = SimulationParams.getInstance().scenario.dtcpPort();
+        for (int i = 0; i < connections; i++)
+            if (!(stalls[i] = random.nextInt(100) < stalledPercent))
+                complete++;
+
+        AtomicInteger received = new AtomicInteger();
+        int expected = complete;
+        Thread receiver = new Thread(() -> {
+            while (received.get() < expected)
+                if (dtcp.recv() != null)
+                    received.incrementAndGet();
+        }, "bench-receiver");
+        receiver.setDaemon(true);
+
+        List<Socket> peers = new ArrayList<>(connections);
+        long start = nanoTime();
+        receiver.start();
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket peer = new Socket(InetAddress.getLoopbackAddress(), port);
+                peers.add(peer);
+                OutputStream peerOut = peer.getOutputStream();
+                if (stalls[i]) {
+                    peerOut.write(encoded, 0, encoded.length / 2);//and never the rest
+                } else {
+                    peerOut.write(encoded);
+                    peer.shutdownOutput();
+                }
+            }
+            receiver.join(RUN_TIMEOUT_MS);
+        } finally {
+            for (Socket peer : peers)
+                peer.close();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(nanoTime() - start);
+
+        out.printf("%-10s %12s %10s %10s %13s%n", "mode", "elapsed (ms)", "received", "stalled", "peak threads");
+        out.printf("%-10s %12d %10d %10d %13d%n", mode, elapsedMs, received.get(), connections - complete,
+                threads.getPeakThreadCount());
+        if (received.get() < complete)
+            out.println("Gave up after " + RUN_TIMEOUT_MS + " ms, " + (complete - received.get()) + " bundles missing");
+        exit(0);
+    }
+
+    /**
+     * Waits until the DTCP server accepts connections
+     * @param port port of the server
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException if the server cannot be reached
+     */
+    private static void awaitServer(int port) throws InterruptedException, IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (ConnectException e) {
+                if (attempt == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
     }
 }